@@ -4,6 +4,7 @@ import static org.lwjgl.opengl.GL11.GL_COLOR_BUFFER_BIT;
 import static org.lwjgl.opengl.GL11.GL_DEPTH_BUFFER_BIT;
 import static org.lwjgl.opengl.GL11.glClear;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Scanner;
 
@@ -13,14 +14,21 @@ import org.lwjgl.input.Keyboard;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.GLGuru;
 import ss.linearlogic.christmascrashers.state.GameState;
+import ss.linearlogic.christmascrashers.state.HeadlessGame;
 import ss.linearlogic.christmascrashers.state.IntroState;
 import ss.linearlogic.christmascrashers.state.LevelEditorState;
 import ss.linearlogic.christmascrashers.state.MainMenuState;
+import ss.linearlogic.christmascrashers.state.Replay;
+import ss.linearlogic.christmascrashers.state.Simulation;
 import ss.linearlogic.christmascrashers.state.State;
 import ss.linearlogic.christmascrashers.state.StateType;
 import ss.linearlogic.christmascrashers.util.TextureMonkey;
+import ss.linearlogic.christmascrashers.world.LevelVerifier;
+import ss.linearlogic.christmascrashers.world.LevelWatcher;
+import ss.linearlogic.christmascrashers.world.WorldManager;
 
 /**
  * Main class - contains the {@link #ChristmasCrashers(int, int) game object constructor} and {@link #main(String[]) program entry point}
@@ -40,6 +48,11 @@ public class ChristmasCrashers {
 	 */
 	private static boolean debugModeEnabled;
 
+	/**
+	 * Indicates whether the program is running the simulation without a window or an openGL context
+	 */
+	private static boolean headless;
+
 	/**
 	 * Width of the game window in pixels
 	 */
@@ -72,11 +85,6 @@ public class ChristmasCrashers {
 	 */
 	private static boolean reload;
 
-	/**
-	 * The system time (retrieved using {@link #getTime()}) at which the most recent frame was rendered.
-	 */
-	private static long lastFrame;
-
 	/**
 	 * Game object constructor - initializes openGL, starts the timer, and runs the game logic and rendering loop.
 	 * 
@@ -95,16 +103,21 @@ public class ChristmasCrashers {
 		GLGuru.initGL2D(windowWidth, windowHeight);
 		TextureMonkey.init(); // The TextureMonkey MUST be initialized before the game states to prevent NPEs during texture retrieval
 		loadStates();
-		initTimer();
+		FrameClock.reset();
 		running = true;
 		reload = false;
 		currentState = states.get(StateType.INTRO);
 		currentState.initialize();
+		LevelWatcher.start(); // Levels changed on the disk by other programs are reloaded between frames
 
 		// Logic/rendering loop
 		while(running) {
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // Covers 2D and 3D
 
+			FrameClock.beginFrame(); // Sampled once, so every state and entity sees the same frame delta
+			synchronized (Simulation.TICK_LOCK) { // Never swap a level in mid-tick
+				LevelWatcher.applyPendingReloads();
+			}
 			currentState.handleInput();
 			currentState.logic();
 			currentState.draw();
@@ -122,11 +135,15 @@ public class ChristmasCrashers {
 		}
 		if (debugModeEnabled)
 			System.out.println("Destroying the openGL context and closing the game window.");
+		((GameState) states.get(StateType.GAME)).stopSimulation();
+		LevelWatcher.stop();
 		Display.destroy();
-		if (reload)
+		if (reload) {
 			new ChristmasCrashers(windowWidth, windowHeight);
-		else
+		} else {
+			WorldManager.closeJournals(); // Commit the buffered edits, which System.exit() would otherwise lose
 			System.exit(0);
+		}
 	}
 
 	/**
@@ -158,13 +175,6 @@ public class ChristmasCrashers {
 		states.put(StateType.LEVEL_EDITOR, new LevelEditorState());
 	}
 
-	/**
-	 * Initializes the {@link #lastFrame} value to the current system time
-	 */
-	private void initTimer() {
-		lastFrame = getTime();
-	}
-
 	/**
 	 * @return The adjusted current system time
 	 */
@@ -173,16 +183,14 @@ public class ChristmasCrashers {
 	}
 
 	/**
-	 * Returns the time between the current frame and the last (cast to an int value) and updates the
-	 * lastFrame value with the current system time.
+	 * Returns the time between the start of the previous frame and the start of the current one, as sampled by the
+	 * {@link FrameClock} at the start of the frame. Reading it doesn't reset anything, so every caller in a frame gets
+	 * the same value.
 	 * 
-	 * @return The integer time between frames
+	 * @return The time between frames, rounded to the nearest millisecond
 	 */
 	public static int getDelta() {
-		long currentTime = getTime();
-		int delta = (int) (currentTime - lastFrame);
-		lastFrame = getTime();
-		return delta;
+		return (int) Math.round(FrameClock.getDeltaMillis());
 	}
 
 	/**
@@ -206,6 +214,14 @@ public class ChristmasCrashers {
 		return debugModeEnabled;
 	}
 
+	/**
+	 * @return The value of the {@link #headless} flag, which is 'true' iff the program is running without a window or
+	 * an openGL context (in which case no textures can be loaded)
+	 */
+	public static boolean isHeadless() {
+		return headless;
+	}
+
 	/**
 	 * @param type
 	 * @return The {@link State} subclass paired with the specified {@link StateType} in the {@link #states} HashMap
@@ -235,10 +251,43 @@ public class ChristmasCrashers {
 
 	/**
 	 * Program entry point, creates a game object after determining whether to run the program in debug mode.
+	 * <p>If the "--verify" argument is supplied, the integrity of every level is {@link LevelVerifier verified} instead
+	 * and the program exits without opening the game window; "--repair" verifies the levels and repairs the damaged
+	 * ones. The exit status is 1 if damage was found that was not repaired.
+	 * <p>If the "--headless" argument is supplied, optionally followed by a number of ticks, the game is
+	 * {@link HeadlessGame simulated} without a window as fast as possible and the timings are printed ("--debug" enables
+	 * debug mode). "--replay &lt;file&gt;" plays back a {@link Replay} instead of the input script, and
+	 * "--record &lt;file&gt;" records the run. The exit status is 1 if the simulation could not be run, or the replay
+	 * didn't play back as it was recorded.
 	 * 
 	 * @param args ...
 	 */
 	public static void main(String[] args) {
+		for (String arg : args) {
+			if (arg.equals("--verify") || arg.equals("--repair")) {
+				boolean intact = LevelVerifier.run(arg.equals("--repair"));
+				System.exit(intact ? 0 : 1);
+			}
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				long ticks = HeadlessGame.DEFAULT_TICKS;
+				if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+					ticks = Long.parseLong(args[i + 1]);
+				File replayFile = null, recordFile = null;
+				for (int j = 0; j < args.length; j++) {
+					if (args[j].equals("--debug"))
+						debugModeEnabled = true;
+					else if (args[j].equals("--replay") && j + 1 < args.length)
+						replayFile = new File(args[++j]);
+					else if (args[j].equals("--record") && j + 1 < args.length)
+						recordFile = new File(args[++j]);
+				}
+				headless = true;
+				boolean completed = HeadlessGame.run(ticks, replayFile, recordFile);
+				System.exit(completed ? 0 : 1);
+			}
+		}
 		System.out.println("Welcome to Christmas Crashers! Run in DEBUG mode? (Y/N)");
 		Scanner sc = new Scanner(System.in);
 		while(true) {
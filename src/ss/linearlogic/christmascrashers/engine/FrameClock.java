@@ -0,0 +1,92 @@
+package ss.linearlogic.christmascrashers.engine;
+
+/**
+ * The FrameClock is the game's single source of time. It samples {@link System#nanoTime()} once at the start of each
+ * frame, so every state and entity that reads the frame delta during the frame sees the same value, however many
+ * times it is read.
+ * <p>The clock also defines the fixed timestep of the game's {@link ss.linearlogic.christmascrashers.state.Simulation
+ * simulation}, which runs a tick of exactly {@link #TICK_NANOS} nanoseconds on its own schedule, so the physics
+ * advance by the same amount per tick regardless of the framerate. Rendering interpolates between ticks by comparing
+ * the {@link #getFrameStart() start of the frame} with the end of the latest tick.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class FrameClock {
+
+	/**
+	 * The number of simulation ticks per second
+	 */
+	public static final int TICK_RATE = 60;
+
+	/**
+	 * The duration, in nanoseconds, of a simulation tick
+	 */
+	public static final long TICK_NANOS = 1000000000L / TICK_RATE;
+
+	/**
+	 * The duration, in milliseconds, of a simulation tick
+	 */
+	public static final double TICK_MILLIS = TICK_NANOS / 1000000.0;
+
+	/**
+	 * The longest frame, in nanoseconds, the clock accounts for - the time beyond it (a stall while the window is
+	 * dragged, for instance) is dropped, so a stall doesn't surface as one enormous frame delta
+	 */
+	private static final long MAX_FRAME_NANOS = 250000000L;
+
+	/**
+	 * The time, in nanoseconds, at which the current frame began
+	 */
+	private static long frameStart = System.nanoTime();
+
+	/**
+	 * The time, in nanoseconds, between the start of the previous frame and the start of the current one
+	 */
+	private static long frameNanos;
+
+	/**
+	 * Samples the time at the start of a frame, updating the frame delta. Called once per frame by the main loop,
+	 * before any state handles input.
+	 */
+	public static void beginFrame() {
+		long now = System.nanoTime();
+		long elapsed = now - frameStart;
+		frameStart = now;
+		if (elapsed < 0)
+			elapsed = 0;
+		if (elapsed > MAX_FRAME_NANOS)
+			elapsed = MAX_FRAME_NANOS;
+		frameNanos = elapsed;
+	}
+
+	/**
+	 * Discards the time that has built up since the current frame began, so that a slow operation such as loading a
+	 * world isn't counted towards the next frame.
+	 */
+	public static void reset() {
+		frameStart = System.nanoTime();
+		frameNanos = 0;
+	}
+
+	/**
+	 * @return The time, in milliseconds, between the start of the previous frame and the start of the current one
+	 */
+	public static double getDeltaMillis() {
+		return frameNanos / 1000000.0;
+	}
+
+	/**
+	 * @return The time, in nanoseconds, between the start of the previous frame and the start of the current one
+	 */
+	public static long getDeltaNanos() {
+		return frameNanos;
+	}
+
+	/**
+	 * @return The time, in nanoseconds, at which the current frame began
+	 */
+	public static long getFrameStart() {
+		return frameStart;
+	}
+}
@@ -65,6 +65,17 @@ public class Sprite {
 		RenderMonkey.renderTexturedRectangle(x, y, width, height, texture);
 	}
 
+	/**
+	 * Renders the sprite's {@link #texture} at the specified coordinates, rather than at the sprite's own location,
+	 * with the sprite's {@link #width} and {@link #height}.
+	 * 
+	 * @param x The pixel x-coordinate at which to render the bottom-lefthand corner of the sprite
+	 * @param y The pixel y-coordinate at which to render the bottom-lefthand corner of the sprite
+	 */
+	public void draw(double x, double y) {
+		RenderMonkey.renderTexturedRectangle(x, y, width, height, texture);
+	}
+
 	/**
 	 * @return The {@link #x x-coordinate} of the sprite
 	 */
@@ -2,11 +2,11 @@ package ss.linearlogic.christmascrashers.entity;
 
 import org.lwjgl.util.vector.Vector2f;
 
-import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.Sprite;
 import ss.linearlogic.christmascrashers.object.Object;
-import ss.linearlogic.christmascrashers.state.GameState;
-import ss.linearlogic.christmascrashers.state.StateType;
+import ss.linearlogic.christmascrashers.world.CollisionMap;
+import ss.linearlogic.christmascrashers.world.Level;
 
 /**
  * Represents an in-game entity, which can move around and interact with objects and other entities in the level.
@@ -39,6 +39,12 @@ public abstract class Entity {
 	 */
 	protected Sprite sprite;
 
+	/**
+	 * The {@link CollisionMap} of the {@link Level} the entity is in, or null if the entity isn't in a level (in which
+	 * case it doesn't collide with anything)
+	 */
+	protected CollisionMap collisionMap;
+
 	/**
 	 * Constructor - loads the entity's {@link #sprite} and passthrough flag ({@link #canPenetrateObjects}),
 	 * sets whether the entity {@link #canFly can fly}, and initializes the entity's {@link #movementVector} to stationary.
@@ -57,93 +63,104 @@ public abstract class Entity {
 	// TODO: add abstract update() method, which can call updatePosition()
 
 	/**
-	 * Adjusts the entity's position based on its {@link #movementVector} and handles collisions.
+	 * Advances the entity by one {@link FrameClock simulation tick}: adjusts its position based on its
+	 * {@link #movementVector} and handles collisions.
 	 */
 	public void updatePosition() {
 		applyGravity();
 		handleCollisionWithObject();
-		sprite.incrementX((int) movementVector.getX());
-		sprite.incrementY((int) movementVector.getY());
 	}
 
 	/**
-	 * Applies the force of gravity to the entity's motion, if applicable.
+	 * Applies one {@link FrameClock#TICK_MILLIS tick's} worth of gravity to the entity's motion, if applicable.
 	 */
 	public void applyGravity() {
 		if (canFly)
 			return;
 		if (movementVector.getY() > 0) {// Entity is travelling upwards - apply more gravity
-			movementVector.setY((float) (movementVector.getY() - ((double) 5 * ChristmasCrashers.getDelta() / 170)));
+			movementVector.setY((float) (movementVector.getY() - (5 * FrameClock.TICK_MILLIS / 170)));
 		}
 		else
-			movementVector.setY((float) (movementVector.getY() - ((double) 3 * ChristmasCrashers.getDelta() / 100)));
+			movementVector.setY((float) (movementVector.getY() - (3 * FrameClock.TICK_MILLIS / 100)));
 	}
 
 	/**
-	 * Checks for a collision with an in-game object and if detected adjusts the entity's location accordingly. If
-	 * the entity is able to {@link #canPenetrateObjects pass through objects}, this method returns immediately
-	 * and does not adjust the entity's location.
-	 * <p>To maximize efficiency, this method only checks the objects
-	 * in contact with the sides of the entity in which the entity is moving. For instance, if the entity is moving
-	 * to the right and down, only its its right and bottom faces will be checked for a collision with an object.
+	 * Moves the entity by its {@link #movementVector}, stopping it against any solid tile in its way. If the entity
+	 * is able to {@link #canPenetrateObjects pass through objects}, or isn't in a level, it is simply moved.
+	 * <p>The entity's bounding box is swept along its movement rather than only being tested at its destination, so
+	 * nothing tunnels through walls however far it moves in one step. The sweep walks the tile grid in the order the
+	 * box's leading edges cross the tile boundaries (a DDA over the grid): each time the leading vertical edge enters
+	 * a new column, the column is tested over the rows the box spans, and each time the leading horizontal edge enters
+	 * a new row, the row is tested over the columns the box spans, a word at a time, in the level's
+	 * {@link CollisionMap}. A blocked axis is stopped flush against the tile and its movement zeroed, while the other
+	 * axis carries on, so the entity slides along walls and floors; both axes are resolved in the same step. The
+	 * sweep allocates nothing and costs one bit test per column or row crossed, so it can run for hundreds of
+	 * projectiles per frame. Rows below and above the level are solid (its floor and ceiling).
 	 */
 	protected void handleCollisionWithObject() {
-		if (canPenetrateObjects)
+		int dx = (int) movementVector.getX();
+		int dy = (int) movementVector.getY();
+		CollisionMap map = collisionMap;
+		if (canPenetrateObjects || map == null) {
+			sprite.incrementX(dx);
+			sprite.incrementY(dy);
 			return;
-		if (movementVector.getX() != 0) { // Entity is moving horizontally
-			boolean movingLeft = true;
-			int i = (int) Math.floor((sprite.getX() + movementVector.getX()) / Object.TILE_SIZE); // Default to the left face
-			if (movementVector.getX() > 0) { // Object is moving to the right - switch to the right face
-				movingLeft = false;
-				i = (int) Math.floor((sprite.getX() + sprite.getWidth() + movementVector.getX()) / Object.TILE_SIZE);
-			}
-			for (int j = (int) Math.floor(sprite.getY() / Object.TILE_SIZE); j <= (int) Math.floor((sprite.getY() + sprite.getHeight()) / Object.TILE_SIZE); j++) {
-				Object o = ((GameState) ChristmasCrashers.getState(StateType.GAME)).getCurrentLevel().getObject(i, j);
-				if (o == null)
-					continue;
-				if (!o.getType().isPenetrable()) {
-					if (movingLeft)
-						sprite.setX((i + 1) * Object.TILE_SIZE);
-					else
-						sprite.setX((int) (Object.TILE_SIZE * Math.floor((sprite.getX() + movementVector.getX()) / Object.TILE_SIZE)) + (Object.TILE_SIZE - sprite.getWidth() - 1 /* Prevents a window offset glitch*/));
-					movementVector.setX(0);
-					break; // Prevent overcorrection if the entity is touching more than one non-penatrable object
-				}
-			}
 		}
-		if (movementVector.getY() != 0) { // Entity is moving vertically
-			boolean movingDownward = true;
-			int j = (int) Math.floor((sprite.getY() + movementVector.getY()) / Object.TILE_SIZE); // Default to the bottom face
-			if (movementVector.getY() > 0) { // Object is moving upward - switch to the top face
-				movingDownward = false;
-				j = (int) Math.floor((sprite.getY() + sprite.getHeight() + movementVector.getY()) / Object.TILE_SIZE);
-			}
-			for (int i = (int) Math.floor(sprite.getX() / Object.TILE_SIZE); i <= (int) Math.floor((sprite.getX() + sprite.getWidth()) / Object.TILE_SIZE); i++) {
-				if (j < 0 || j > 63) { // Location is out of range
-					if (movingDownward) {
-						sprite.setY(Object.TILE_SIZE); // Floor
-						airborne = false;
-					}
-					else
-						sprite.setY((int) (Object.TILE_SIZE * 63) + (Object.TILE_SIZE - sprite.getHeight() - 1 /* Prevents a window offset glitch*/));
-					movementVector.setY(0);
-					return;
+		int size = Object.TILE_SIZE;
+		int width = sprite.getWidth();
+		int height = sprite.getHeight();
+		int startX = sprite.getX();
+		int startY = sprite.getY();
+		double x = startX, y = startY;
+		boolean movingX = dx != 0, movingY = dy != 0;
+		// The column and row the leading edges currently occupy, which have already been found to be clear
+		int leadColumn = (int) Math.floor((dx > 0 ? startX + width : startX) / (double) size);
+		int leadRow = (int) Math.floor((dy > 0 ? startY + height : startY) / (double) size);
+		while (movingX || movingY) {
+			// The fraction of the step at which each leading edge enters the next column or row
+			double tx = Double.POSITIVE_INFINITY, ty = Double.POSITIVE_INFINITY;
+			if (movingX)
+				tx = dx > 0 ? ((leadColumn + 1) * size - (startX + width)) / (double) dx : (leadColumn * size - startX) / (double) dx;
+			if (movingY)
+				ty = dy > 0 ? ((leadRow + 1) * size - (startY + height)) / (double) dy : (leadRow * size - startY) / (double) dy;
+			double t = Math.min(tx, ty);
+			if (t > 1)
+				break; // The step ends before the next boundary
+			if (movingX)
+				x = startX + dx * t;
+			if (movingY)
+				y = startY + dy * t;
+			if (tx <= ty) { // The leading vertical edge enters a new column
+				int column = leadColumn + (dx > 0 ? 1 : -1);
+				int bottom = movingY && dy < 0 ? leadRow : (int) Math.floor(y / size);
+				int top = movingY && dy > 0 ? leadRow : (int) Math.floor((y + height) / size);
+				if (map.isAnySolidInColumn(column, bottom, top)) {
+					x = dx > 0 ? column * size - 1 - width : (column + 1) * size;
+					movingX = false;
+					movementVector.setX(0);
+				} else {
+					leadColumn = column;
 				}
-				Object o = ((GameState) ChristmasCrashers.getState(StateType.GAME)).getCurrentLevel().getObject(i, j);
-				if (o == null)
-					continue;
-				if (!o.getType().isPenetrable()) {
-					if (movingDownward) {
-						sprite.setY((j + 1) * Object.TILE_SIZE);
+			} else { // The leading horizontal edge enters a new row
+				int row = leadRow + (dy > 0 ? 1 : -1);
+				int left = movingX && dx < 0 ? leadColumn : (int) Math.floor(x / size);
+				int right = movingX && dx > 0 ? leadColumn : (int) Math.floor((x + width) / size);
+				if (row < 0 || row >= map.getHeight() || map.isAnySolidInRow(left, right, row)) {
+					if (dy < 0) {
+						y = (row + 1) * size;
 						airborne = false;
+					} else {
+						y = row * size - 1 - height;
 					}
-					else
-						sprite.setY((int) (Object.TILE_SIZE * Math.floor((sprite.getY() + movementVector.getY()) / Object.TILE_SIZE)) + (Object.TILE_SIZE - sprite.getHeight() - 1 /* Prevents a window offset glitch*/));
+					movingY = false;
 					movementVector.setY(0);
-					return; // Prevent overcorrection if the entity is touching more than one non-penatrable object
+				} else {
+					leadRow = row;
 				}
 			}
 		}
+		sprite.setX(movingX ? startX + dx : (int) Math.round(x));
+		sprite.setY(movingY ? startY + dy : (int) Math.round(y));
 	}
 
 	/**
@@ -199,6 +216,23 @@ public abstract class Entity {
 		return movementVector;
 	}
 
+	/**
+	 * @return The {@link CollisionMap} of the level the entity is in, or null if it isn't in a level
+	 */
+	public CollisionMap getCollisionMap() {
+		return collisionMap;
+	}
+
+	/**
+	 * Places the entity in a level, by handing it the level's {@link CollisionMap} (which is kept up to date as the
+	 * level changes, so it only has to be set again when the entity moves to another level).
+	 *
+	 * @param collisionMap The collision map of the entity's level, or null if the entity is not in a level
+	 */
+	public void setCollisionMap(CollisionMap collisionMap) {
+		this.collisionMap = collisionMap;
+	}
+
 	/**
 	 * @return Whether this entity can pass through objects, regardless of their penetrability
 	 */
@@ -5,6 +5,9 @@ import ss.linearlogic.christmascrashers.world.Level;
 /**
  * Represents an in-game object. Every object has a location (consisting of a {@link Level} and two-dimensional coordinates)
  * and an {@link ObjectType}.
+ * <p>Levels store their tiles as an array of type ordinals rather than as Object instances, so an Object that belongs to a
+ * level is a lightweight view of one of its tiles: its type is read from and written to the level. Objects without
+ * a level hold their type themselves.
  * 
  * @author LinearLogic
  * @since 0.2.5
@@ -14,7 +17,7 @@ public class Object implements IObject {
 	/**
 	 * The {@link Level} that contains the object
 	 */
-	private Level level; // TODO: determine if this is really necessary
+	private Level level;
 
 	/**
 	 * The tile x-coordinate of the object within the level
@@ -27,7 +30,7 @@ public class Object implements IObject {
 	private int y;
 
 	/**
-	 * The object's {@link ObjectType type}
+	 * The object's {@link ObjectType type}, used only if the object does not belong to a {@link #level}
 	 */
 	private ObjectType type;
 
@@ -37,10 +40,10 @@ public class Object implements IObject {
 	 * @param level The {@link #level} containing the object
 	 * @param x The {@link #x x-coordinate} of the object
 	 * @param y The {@link #y y-coordinate} of the object
-	 * @param type The {@link ObjectType} of the object
+	 * @param type The {@link ObjectType} of the object (ignored if the level is not null)
 	 */
 	public Object(Level level, int x, int y, ObjectType type) {
-		this.type = type;
+		this.level = level;
 		this.x = x;
 		this.y = y;
 		this.type = type;
@@ -79,10 +82,15 @@ public class Object implements IObject {
 	}
 
 	public ObjectType getType() {
+		if (level != null)
+			return level.getType(x, y);
 		return type;
 	}
 
 	public void setType(ObjectType type) {
-		this.type = type;
+		if (level != null)
+			level.setType(x, y, type);
+		else
+			this.type = type;
 	}
 }
@@ -106,6 +106,18 @@ public enum ObjectType {
 		}
 	}
 
+	/**
+	 * @param dataChar
+	 * @return True iff the provided character is the {@link #dataChar} of an ObjectType (any other character is read
+	 * as {@link #AIR} by {@link #getTypeFromDataChar(char)})
+	 */
+	public static boolean isDataChar(char dataChar) {
+		for (ObjectType type : values())
+			if (type.dataChar == dataChar)
+				return true;
+		return false;
+	}
+
 	/**
 	 * @return Whether or not the object can be passed through
 	 */
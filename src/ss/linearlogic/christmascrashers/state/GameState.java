@@ -2,9 +2,15 @@ package ss.linearlogic.christmascrashers.state;
 
 import static org.lwjgl.opengl.GL11.glTranslated;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
 import org.lwjgl.input.Keyboard;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.GLGuru;
 import ss.linearlogic.christmascrashers.engine.RenderMonkey;
 import ss.linearlogic.christmascrashers.entity.Player;
@@ -35,6 +41,28 @@ public class GameState extends State {
 	 */
 	private Player mainPlayer;
 
+	/**
+	 * The {@link Simulation} that moves the {@link #mainPlayer} on its own thread, or null if the game hasn't been
+	 * initialized
+	 */
+	private Simulation simulation;
+
+	/**
+	 * Whether one of the replay keys (record, play, or seek during playback) was held down during the last frame, so
+	 * that each press is handled once
+	 */
+	private boolean replayKeyDown;
+
+	/**
+	 * The pixel x-coordinate of the bottom left corner of the camera view, as of the last frame
+	 */
+	private double cameraX;
+
+	/**
+	 * The pixel y-coordinate of the bottom left corner of the camera view, as of the last frame
+	 */
+	private double cameraY;
+
 	/**
 	 * Constructor - adds the {@link #importantKeys}
 	 */
@@ -56,46 +84,71 @@ public class GameState extends State {
 		if (Keyboard.isKeyDown(Keyboard.KEY_ESCAPE) && !keyDown) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.out.println("Switching to MainMenu state.");
+			stopSimulation();
 			ChristmasCrashers.setCurrentState(StateType.MAIN_MENU);
 			((MainMenuState) ChristmasCrashers.getState(StateType.MAIN_MENU)).setAnimationProgress(1000); // Skip the fade-in animation
 			return;
 		}
 
+		// F9 starts and stops recording, F10 starts and stops playing back the latest replay, and the arrow keys seek
+		// through the replay during playback
+		boolean record = Keyboard.isKeyDown(Keyboard.KEY_F9), play = Keyboard.isKeyDown(Keyboard.KEY_F10);
+		boolean playing = simulation.isPlaying();
+		boolean seekBack = playing && Keyboard.isKeyDown(Keyboard.KEY_LEFT), seekForward = playing && Keyboard.isKeyDown(Keyboard.KEY_RIGHT);
+		if (!replayKeyDown) {
+			if (record)
+				toggleRecording();
+			else if (play)
+				togglePlayback();
+			else if (seekBack || seekForward)
+				simulation.seek(simulation.getReplayTick() + (seekForward ? 1 : -1) * Replay.KEYFRAME_INTERVAL);
+		}
+		replayKeyDown = record || play || seekBack || seekForward;
+
+		int input = 0;
 		if (Keyboard.isKeyDown(Keyboard.KEY_RIGHT) || Keyboard.isKeyDown(Keyboard.KEY_D)) {
 			keyDown = true;
-			mainPlayer.getMovementVector().setX(mainPlayer.getMovementVector().getX() + 5);
+			input |= Simulation.INPUT_RIGHT;
 		}
 		if (Keyboard.isKeyDown(Keyboard.KEY_LEFT) || Keyboard.isKeyDown(Keyboard.KEY_A)) {
 			keyDown = true;
-			mainPlayer.getMovementVector().setX(mainPlayer.getMovementVector().getX() - 5);
+			input |= Simulation.INPUT_LEFT;
 		}
-		if ((Keyboard.isKeyDown(Keyboard.KEY_UP) || Keyboard.isKeyDown(Keyboard.KEY_W)) && !mainPlayer.canFly() && !mainPlayer.isAirborne()) {
+		if (Keyboard.isKeyDown(Keyboard.KEY_UP) || Keyboard.isKeyDown(Keyboard.KEY_W)) {
 			keyDown = true;
-			mainPlayer.setAirborne(true);
-			mainPlayer.getMovementVector().setY(mainPlayer.getMovementVector().getY() + 12.5f);
+			input |= Simulation.INPUT_JUMP;
 		}
-		int posX = mainPlayer.getSprite().getX();
-		int posY = mainPlayer.getSprite().getY();
-		mainPlayer.updatePosition();
-		glTranslated(-(mainPlayer.getSprite().getX() - posX), -(mainPlayer.getSprite().getY() - posY), 0);
-		mainPlayer.getMovementVector().setX(0);
-		
-		GLGuru.setXDisplacement(mainPlayer.getPixelX() + (mainPlayer.getSprite().getWidth() - ChristmasCrashers.getWindowWidth()) / 2);
-		GLGuru.setYDisplacement(mainPlayer.getPixelY() + (mainPlayer.getSprite().getHeight() - ChristmasCrashers.getWindowHeight()) / 2);
+		simulation.setInput(input);
 	}
 
 	@Override
 	public void logic() {
-		
+		// The player is moved by the simulation thread
 	}
 
+	/**
+	 * Renders the level and the player from the {@link Simulation simulation's} latest {@link Snapshot}, with the
+	 * player and the camera interpolated between the player's locations before and after the snapshot's tick, so
+	 * that motion stays smooth whatever the ratio of the framerate to the {@link FrameClock#TICK_RATE tick rate}.
+	 */
 	@Override
 	public void draw() {
+		Snapshot snapshot = simulation.getSnapshot();
+		double alpha = snapshot.getAlpha(FrameClock.getFrameStart());
+		double playerX = snapshot.getInterpolatedX(alpha), playerY = snapshot.getInterpolatedY(alpha);
+		double x = playerX + (mainPlayer.getSprite().getWidth() - ChristmasCrashers.getWindowWidth()) / 2;
+		double y = playerY + (mainPlayer.getSprite().getHeight() - ChristmasCrashers.getWindowHeight()) / 2;
+		glTranslated(-(x - cameraX), -(y - cameraY), 0);
+		cameraX = x;
+		cameraY = y;
+		GLGuru.setXDisplacement(x);
+		GLGuru.setYDisplacement(y);
+
 		RenderMonkey.renderBackground(0.3, 0.4, 1.0);
 		if (currentLevel != null) {
 			currentLevel.draw();
 		}
-		mainPlayer.draw();
+		mainPlayer.getSprite().draw(playerX, playerY);
 	}
 
 	/**
@@ -104,14 +157,17 @@ public class GameState extends State {
 	public void initialize() {
 		if (ChristmasCrashers.isDebugModeEnabled())
 			System.out.println("Initializing Game state");
+		stopSimulation();
 		currentLevel = null;
 		currentWorld.load();
-		for (int i = 0; i < 5; i++)
-			if (currentWorld.getLevel(i) != null) {
-				currentLevel = currentWorld.getLevel(i);
-				break;
-			}
+		for (int levelID : currentWorld.getLevelIDs()) { // Start in the level with the lowest ID
+			currentLevel = currentWorld.getLevel(levelID);
+			break;
+		}
+		if (currentLevel != null)
+			currentLevel.startStreaming(); // Only the chunks around the player are kept in memory
 		mainPlayer = new Player(10, 5); // Initialize the user's player
+		simulation = new Simulation(mainPlayer, currentLevel);
 		int xOffset = (int) (mainPlayer.getPixelX() + (mainPlayer.getSprite().getWidth() - ChristmasCrashers.getWindowWidth()) / 2);
 		int yOffset = (int) (mainPlayer.getPixelY() + (mainPlayer.getSprite().getHeight() - ChristmasCrashers.getWindowHeight()) / 2);
 		glTranslated(GLGuru.getXDisplacement() - xOffset, GLGuru.getYDisplacement() - yOffset, -GLGuru.getZDisplacement()); // Reset the camera displacement
@@ -119,7 +175,82 @@ public class GameState extends State {
 		GLGuru.setYDisplacement(0);
 		GLGuru.setZDisplacement(0);
 		GLGuru.initGL2D();
-		ChristmasCrashers.getDelta(); // Remove buildup in the delta count
+		cameraX = xOffset;
+		cameraY = yOffset;
+		FrameClock.reset(); // Don't count the time spent initializing towards the next frame
+		simulation.start();
+	}
+
+	/**
+	 * Starts recording the {@link #simulation}, or, if it is being recorded, stops recording and saves the replay to
+	 * the replay {@link Replay#DIRECTORY directory}.
+	 */
+	private void toggleRecording() {
+		if (!simulation.isRecording()) {
+			if (simulation.startRecording() && ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Started recording a replay.");
+			return;
+		}
+		Replay replay = simulation.stopRecording();
+		File file = new File(Replay.DIRECTORY, "replay-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + Replay.EXTENSION);
+		try {
+			replay.write(file);
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Saved a replay of " + replay.getLength() + " ticks to " + file.getPath() + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to save the replay to " + file.getPath() + ".");
+		}
+	}
+
+	/**
+	 * Starts playing back the most recently saved replay, or, if a replay is being played back, stops playing it back.
+	 */
+	private void togglePlayback() {
+		if (simulation.isPlaying()) {
+			simulation.stopPlayback();
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Stopped playing back the replay.");
+			return;
+		}
+		File file = Replay.findLatest();
+		if (file == null) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("There are no replays to play back.");
+			return;
+		}
+		try {
+			simulation.play(Replay.read(file));
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Playing back replay " + file.getPath() + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to play back replay " + file.getPath() + ".");
+		} catch (IllegalArgumentException e) {
+			System.err.println("Failed to play back replay " + file.getPath() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the {@link #simulation} thread, if it is running, and stops streaming the {@link #currentLevel}. Since
+	 * only the chunks around the player were resident, the level is then unloaded, so that it is loaded in full the
+	 * next time it is retrieved (by the level editor, for instance). Called when the game is left.
+	 */
+	public void stopSimulation() {
+		if (simulation != null)
+			simulation.stop();
+		if (currentLevel != null && currentLevel.getStreamer() != null) {
+			currentLevel.stopStreaming();
+			currentLevel.stopJournaling();
+			currentLevel.unload();
+		}
+	}
+
+	/**
+	 * @return The {@link Simulation} that moves the player, or null if the game hasn't been initialized
+	 */
+	public Simulation getSimulation() {
+		return simulation;
 	}
 
 	/**
@@ -136,6 +267,8 @@ public class GameState extends State {
 	 */
 	public void setCurrentLevel(Level level) {
 		currentLevel = level;
+		if (simulation != null)
+			simulation.setLevel(level);
 	}
 
 	/**
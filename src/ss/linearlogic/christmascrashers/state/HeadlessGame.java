@@ -0,0 +1,153 @@
+package ss.linearlogic.christmascrashers.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
+import ss.linearlogic.christmascrashers.entity.Player;
+import ss.linearlogic.christmascrashers.world.Level;
+import ss.linearlogic.christmascrashers.world.World;
+import ss.linearlogic.christmascrashers.world.WorldManager;
+
+/**
+ * Runs the game's {@link Simulation} without a window or an openGL context, for benchmarking the simulation and
+ * exercising it on machines without a GPU. The default world is loaded and the player is dropped into its first
+ * level, as in the {@link GameState}, and then steered by a fixed input script through the full physics, collision
+ * and chunk streaming path, one tick after another as fast as the CPU allows rather than on the real-time schedule.
+ * <p>The script runs the player right and then left for {@link #SCRIPT_PERIOD} ticks at a time, jumping whenever it
+ * lands, so that runs of the same length over the same level are identical and their timings can be compared.
+ * Alternatively, a recorded {@link Replay} can be played back in place of the script, so that real play sessions can
+ * serve as workloads; the run then also checks that the replay still plays back as it was recorded. Scripted runs
+ * can themselves be recorded.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class HeadlessGame {
+
+	/**
+	 * The default number of ticks to run (ten minutes of game time)
+	 */
+	public static final long DEFAULT_TICKS = 600L * FrameClock.TICK_RATE;
+
+	/**
+	 * The number of ticks the input script steers the player in each direction before turning around
+	 */
+	public static final int SCRIPT_PERIOD = 240;
+
+	/**
+	 * Loads the default world and runs the simulation of its first level for the specified number of ticks, printing
+	 * the timings once the run is complete.
+	 *
+	 * @param ticks The number of ticks to run
+	 * @return True iff the world was loaded and every tick was run
+	 */
+	public static boolean run(long ticks) {
+		return run(ticks, null, null);
+	}
+
+	/**
+	 * Runs the simulation as described in {@link #run(long)}, optionally recording the run to a replay file, or plays
+	 * back a replay file in the level it was recorded in.
+	 *
+	 * @param ticks The number of ticks to run, if no replay is played back
+	 * @param replayFile The replay file to play back in place of the input script, or null
+	 * @param recordFile The file to record the scripted run to, or null (a played back replay can't be recorded)
+	 * @return True iff the world was loaded, every tick was run, the replay (if any) played back as it was recorded,
+	 * and the recording (if any) was saved
+	 */
+	public static boolean run(long ticks, File replayFile, File recordFile) {
+		if (replayFile != null && recordFile != null) {
+			System.err.println("Failed to start the headless simulation - a replay can't be recorded while it is played back.");
+			return false;
+		}
+		Replay replay = null;
+		if (replayFile != null) {
+			try {
+				replay = Replay.read(replayFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to read replay " + replayFile.getPath() + ".");
+				return false;
+			}
+			ticks = replay.getLength();
+		}
+		int worldID = replay == null ? WorldManager.DEFAULT_WORLD_ID : replay.getWorldID();
+		Level level = null;
+		try {
+			WorldManager.loadWorld(worldID).join();
+			World world = WorldManager.getWorld(worldID);
+			world.load();
+			if (replay != null) {
+				level = world.getLevel(replay.getLevelID());
+			} else {
+				for (int levelID : world.getLevelIDs()) { // Start in the level with the lowest ID
+					level = world.getLevel(levelID);
+					break;
+				}
+			}
+		} catch (CompletionException e) {
+			e.printStackTrace();
+			System.err.println("Failed to load world " + worldID + " for the headless simulation.");
+			return false;
+		}
+		if (level == null) {
+			System.err.println("Failed to start the headless simulation - world " + worldID + (replay == null ? " has no levels." : " has no level " + replay.getLevelID() + "."));
+			return false;
+		}
+		level.startStreaming(); // Only the chunks around the player are kept in memory
+		Simulation simulation = new Simulation(new Player(10, 5), level);
+		if (replay != null)
+			simulation.play(replay);
+		if (recordFile != null)
+			simulation.startRecording();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Running " + ticks + " headless ticks of level " + level.getID() + " in world " + level.getWorldID() + (replay == null ? "." : " from replay " + replayFile.getPath() + "."));
+		long start = System.nanoTime();
+		try {
+			for (long tick = 0; tick < ticks; tick++)
+				simulation.tick(getScriptedInput(tick));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			System.err.println("Failed to run headless tick " + simulation.getTickCount() + ".");
+			return false;
+		} finally {
+			level.stopStreaming();
+		}
+		long time = Math.max(1, System.nanoTime() - start);
+		Snapshot snapshot = simulation.getSnapshot();
+		System.out.println("Ran " + ticks + " ticks in " + String.format("%.1f", time / 1000000.0) + " ms (" + String.format("%.0f", ticks * 1000000000.0 / time)
+				+ " ticks/s, " + (ticks == 0 ? 0 : time / ticks) + " ns per tick). The player finished at (" + snapshot.getX() + ", " + snapshot.getY() + ").");
+		boolean completed = true;
+		if (replay != null) {
+			if (simulation.getDesyncTick() < 0) {
+				System.out.println("The replay played back as it was recorded.");
+			} else {
+				System.out.println("The replay diverged from the recording by tick " + simulation.getDesyncTick() + ".");
+				completed = false;
+			}
+		}
+		if (recordFile != null) {
+			try {
+				simulation.stopRecording().write(recordFile);
+				System.out.println("Recorded the run to " + recordFile.getPath() + ".");
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to save the recording to " + recordFile.getPath() + ".");
+				completed = false;
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * @param tick The number of the tick
+	 * @return The input flags the script holds down during the specified tick
+	 */
+	static int getScriptedInput(long tick) {
+		int direction = (tick / SCRIPT_PERIOD) % 2 == 0 ? Simulation.INPUT_RIGHT : Simulation.INPUT_LEFT;
+		return direction | Simulation.INPUT_JUMP;
+	}
+}
@@ -10,17 +10,26 @@ import org.newdawn.slick.opengl.TextureLoader;
 import org.newdawn.slick.util.ResourceLoader;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.RenderMonkey;
+import ss.linearlogic.christmascrashers.world.LoadProgressListener;
 import ss.linearlogic.christmascrashers.world.WorldManager;
 
 /**
- * The introduction state is entered first. While active, it runs the loading animation, and then prompts
- * user to press 'Enter' to begin. The player can skip the intro at any point by pressing the 'escape' key.
+ * The introduction state is entered first. While active, it runs the loading animation and a progress bar showing
+ * the number of levels loaded out of the number discovered, and once the worlds have been loaded (and the
+ * {@link #minimumSplashTime} has passed) prompts user to press 'Enter' to begin. The player can skip the intro at any
+ * point by pressing the 'escape' key.
  * 
  * @author LinearLogic
  * @since 0.0.2
  */
-public class IntroState extends State {
+public class IntroState extends State implements LoadProgressListener {
+
+	/**
+	 * The default {@link #minimumSplashTime}, in milliseconds
+	 */
+	public static final long DEFAULT_MINIMUM_SPLASH_TIME = 0;
 
 	/**
 	 * Contains the textures used in the loading screen animation.
@@ -48,6 +57,31 @@ public class IntroState extends State {
 	 */
 	private double transparencyLevel;
 
+	/**
+	 * The minimum time, in milliseconds, for which the loading splash is shown, even if the worlds load sooner
+	 */
+	private long minimumSplashTime = DEFAULT_MINIMUM_SPLASH_TIME;
+
+	/**
+	 * The time, in milliseconds, at which the state was {@link #initialize() initialized}
+	 */
+	private long splashStartTime;
+
+	/**
+	 * Whether the {@link WorldManager} has finished loading the worlds
+	 */
+	private volatile boolean loadingComplete;
+
+	/**
+	 * The number of levels loaded so far
+	 */
+	private volatile int levelsLoaded;
+
+	/**
+	 * The number of level files discovered so far
+	 */
+	private volatile int levelsDiscovered;
+
 	/**
 	 * Constructor - loads intro textures, sets the {@link #fadeFrequency}, initializes the {@link #finishedLoading} and {@link State#keyDown} values to 'false',
 	 * and populates the {@link State#importantKeys} ArrayList. Note that the splash animation and
@@ -86,8 +120,10 @@ public class IntroState extends State {
 
 	@Override
 	public void logic() {
+		if (loadingComplete && !animationComplete && ChristmasCrashers.getTime() - splashStartTime >= minimumSplashTime)
+			animationComplete = true;
 		transparencyLevel = (0.5 * Math.cos(fadeValue)) + 0.5;
-		fadeValue = (fadeValue + 2.0 * Math.PI * ((double) ChristmasCrashers.getDelta() / fadeFrequency)) % (2 * Math.PI);
+		fadeValue = (fadeValue + 2.0 * Math.PI * (FrameClock.getDeltaMillis() / fadeFrequency)) % (2 * Math.PI);
 	}
 
 	@Override
@@ -96,6 +132,9 @@ public class IntroState extends State {
 		RenderMonkey.renderTexturedRectangle(0.0, ChristmasCrashers.getWindowHeight() / 2 - 40, textures.get(0).getTextureWidth(), textures.get(0).getTextureHeight(), textures.get(0)); // Render the ChristmasCrashers banner
 		if (!animationComplete) {
 			RenderMonkey.renderTransparentTexturedRectangle(0.0, ChristmasCrashers.getWindowHeight() / 2 - textures.get(1).getTextureHeight(), textures.get(1).getTextureWidth(), textures.get(1).getTextureHeight(), textures.get(1), transparencyLevel); // Render the appropriately-faded loading banner
+			double progress = levelsDiscovered == 0 ? 0 : (double) levelsLoaded / levelsDiscovered;
+			RenderMonkey.renderLinedRectangle(ChristmasCrashers.getWindowWidth() / 4, 40, ChristmasCrashers.getWindowWidth() / 2, 12, 0.3, 0.3, 0.3); // Render the progress bar
+			RenderMonkey.renderColoredRectangle(ChristmasCrashers.getWindowWidth() / 4, 40, progress * ChristmasCrashers.getWindowWidth() / 2, 12, 0.2, 0.8, 0.3);
 		} else {
 			RenderMonkey.renderTexturedRectangle(0.0, ChristmasCrashers.getWindowHeight() / 2 - textures.get(2).getTextureHeight(), textures.get(2).getTextureWidth(), textures.get(2).getTextureHeight(), textures.get(2)); // Render the appropriately-faded loading banner
 		}
@@ -108,8 +147,41 @@ public class IntroState extends State {
 		if (ChristmasCrashers.isDebugModeEnabled())
 			System.out.println("Initializing Intro state.");
 		animationComplete = false;
-		WorldManager.loadWorlds();
-		ChristmasCrashers.getDelta(); // Remove buildup in the delta count
+		loadingComplete = false;
+		levelsLoaded = 0;
+		levelsDiscovered = 0;
+		splashStartTime = ChristmasCrashers.getTime();
+		WorldManager.loadWorlds(this);
+		FrameClock.reset(); // Don't count the time spent initializing towards the next frame
+	}
+
+	@Override
+	public void progressChanged(int levelsLoaded, int levelsDiscovered) {
+		this.levelsLoaded = levelsLoaded;
+		this.levelsDiscovered = levelsDiscovered;
+	}
+
+	@Override
+	public void loadingComplete() {
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Finished loading worlds (" + levelsLoaded + " levels) after " + (ChristmasCrashers.getTime() - splashStartTime) + " ms.");
+		loadingComplete = true; // The splash is ended by the game loop, once the minimum splash time has passed
+	}
+
+	/**
+	 * @return The {@link #minimumSplashTime}, in milliseconds
+	 */
+	public long getMinimumSplashTime() {
+		return minimumSplashTime;
+	}
+
+	/**
+	 * Sets the {@link #minimumSplashTime}, in milliseconds
+	 *
+	 * @param minimumSplashTime
+	 */
+	public void setMinimumSplashTime(long minimumSplashTime) {
+		this.minimumSplashTime = minimumSplashTime;
 	}
 
 	/**
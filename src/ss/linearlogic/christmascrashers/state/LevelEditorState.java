@@ -3,6 +3,7 @@ package ss.linearlogic.christmascrashers.state;
 import static org.lwjgl.opengl.GL11.glTranslated;
 
 import java.io.File;
+import java.util.HashMap;
 
 import org.lwjgl.input.Keyboard;
 import org.lwjgl.input.Mouse;
@@ -12,12 +13,16 @@ import org.newdawn.slick.TrueTypeFont;
 import org.newdawn.slick.opengl.Texture;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.GLGuru;
 import ss.linearlogic.christmascrashers.engine.RenderMonkey;
 import ss.linearlogic.christmascrashers.object.Object;
 import ss.linearlogic.christmascrashers.object.ObjectType;
 import ss.linearlogic.christmascrashers.util.TextureMonkey;
+import ss.linearlogic.christmascrashers.world.EditHistory;
 import ss.linearlogic.christmascrashers.world.Level;
+import ss.linearlogic.christmascrashers.world.RegionEdit;
+import ss.linearlogic.christmascrashers.world.TileRegion;
 import ss.linearlogic.christmascrashers.world.World;
 import ss.linearlogic.christmascrashers.world.WorldManager;
 
@@ -26,8 +31,14 @@ import ss.linearlogic.christmascrashers.world.WorldManager;
  * The arrow keys are used to navigate the level, while mouse input is used to select objects and entities from a
  * list at the righthand side of the screen and to place them in the level.
  * <p>Cancelling a level edit will discard all changes made to the level during the editing session, while saving the level
- * will write its contents to its disk location. If the program is forcibly closed (by closing or refreshing the game window),
- * a prompt will appear asking the user if they wish to save the level.
+ * will write its contents to its disk location. Every edit is also recorded in the level's journal as it is made, so if the
+ * program is forcibly closed (by closing or refreshing the game window), the unsaved edits are recovered the next time
+ * the world is loaded.
+ * <p>Each drag of the mouse over the map is recorded as one stroke in the level's {@link EditHistory}, and can be
+ * undone with Ctrl+Z and redone with Ctrl+Y (or Ctrl+Shift+Z). Dragging with Shift held selects a rectangle of tiles,
+ * which R fills with the selected object type and Ctrl+C and Ctrl+X copy and cut; Ctrl+V pastes the copied tiles at
+ * the mouse, and F flood fills the area under the mouse. These bulk edits are written straight into the level's tile
+ * storage and are undone as a single stroke each.
  * 
  * @author LinearLogic
  * @since 0.4.1
@@ -49,6 +60,53 @@ public class LevelEditorState extends State {
 	 */
 	private Level currentLevel;
 
+	/**
+	 * The {@link EditHistory edit histories} of the levels edited during the current editing session, keyed by level ID
+	 */
+	private final HashMap<Integer, EditHistory> histories = new HashMap<Integer, EditHistory>();
+
+	/**
+	 * Whether an undo or redo key combination was held down during the last input check, so that holding it down
+	 * undoes or redoes only one stroke
+	 */
+	private boolean historyKeyDown;
+
+	/**
+	 * Whether a region editing key combination (fill, flood fill, copy, cut or paste) was held down during the last
+	 * input check, so that holding it down performs the operation only once
+	 */
+	private boolean regionKeyDown;
+
+	/**
+	 * The selected rectangle of tiles, as {left, bottom, right, top} tile coordinates, or null if nothing is selected
+	 */
+	private int[] selection;
+
+	/**
+	 * Whether a selection is being dragged out with the mouse
+	 */
+	private boolean selecting;
+
+	/**
+	 * The tile coordinates ({x, y}) of the corner the current selection was started from
+	 */
+	private int[] selectionAnchor = new int[2];
+
+	/**
+	 * The tiles most recently copied or cut, or null if nothing has been copied
+	 */
+	private TileRegion clipboard;
+
+	/**
+	 * The x-coordinate of the tile under the mouse, or -1 if the mouse isn't over the level
+	 */
+	private int hoveredTileX = -1;
+
+	/**
+	 * The y-coordinate of the tile under the mouse, or -1 if the mouse isn't over the level
+	 */
+	private int hoveredTileY = -1;
+
 	/**
 	 * The {@link ObjectType type} of {@link Object} that will be placed whenever a map tile is left-clicked
 	 */
@@ -114,18 +172,32 @@ public class LevelEditorState extends State {
 		highlightedButton = Button.NONE;
 		int x = Mouse.getX();
 		int y = Mouse.getY();
+		boolean control = Keyboard.isKeyDown(Keyboard.KEY_LCONTROL) || Keyboard.isKeyDown(Keyboard.KEY_RCONTROL);
+		boolean shift = Keyboard.isKeyDown(Keyboard.KEY_LSHIFT) || Keyboard.isKeyDown(Keyboard.KEY_RSHIFT);
+		hoveredTileX = hoveredTileY = -1;
+		if (!Mouse.isButtonDown(0))
+			selecting = false;
 		if (x >= 0 && x < ChristmasCrashers.getWindowWidth() - 140 && y >= 0 && y < ChristmasCrashers.getWindowHeight() - 60) { // Mouse is within the map view
 			if (currentLevel != null) {
 				int tileX = (int) Math.floor((GLGuru.getXDisplacement() + x) / 30);
 				int tileY = (int) Math.floor((GLGuru.getYDisplacement() + y) / 30);
 			// ArrayIndexOutOfBoundsException prevention
-				if (tileX >= 0 && tileX < Level.WIDTH && tileY >= 0 && tileY < Level.HEIGHT) {
+				if (tileX >= 0 && tileX < currentLevel.getWidth() && tileY >= 0 && tileY < currentLevel.getHeight()) {
 					highlightedObject = currentLevel.getObject(tileX, tileY);
-					if (Mouse.isButtonDown(0) && currentObjectType != null && currentObjectType != ObjectType.AIR) {
-						currentLevel.getObject(tileX, tileY).setType(currentObjectType);
+					hoveredTileX = tileX;
+					hoveredTileY = tileY;
+					if (Mouse.isButtonDown(0) && (shift || selecting)) { // Drag out a selection
+						if (!selecting) {
+							selecting = true;
+							selectionAnchor[0] = tileX;
+							selectionAnchor[1] = tileY;
+						}
+						selection = new int[] {Math.min(tileX, selectionAnchor[0]), Math.min(tileY, selectionAnchor[1]), Math.max(tileX, selectionAnchor[0]), Math.max(tileY, selectionAnchor[1])};
+					} else if (Mouse.isButtonDown(0) && currentObjectType != null && currentObjectType != ObjectType.AIR) {
+						getHistory().setType(tileX, tileY, currentObjectType);
 					}
 					if (Mouse.isButtonDown(1)) {
-						currentLevel.getObject(tileX, tileY).setType(ObjectType.AIR);
+						getHistory().setType(tileX, tileY, ObjectType.AIR);
 						keyDown = true;
 					}
 				} else {
@@ -133,6 +205,8 @@ public class LevelEditorState extends State {
 				}
 			}
 		} else { // Mouse is in one of the sidebars
+			if (currentLevel != null)
+				getHistory().endStroke();
 			checkKeyStates();
 			for (Button button : Button.values()) {
 				if (button == Button.NONE)
@@ -154,6 +228,9 @@ public class LevelEditorState extends State {
 				}
 				if (highlightedButton == Button.CANCEL_BUTTON) {
 					// TODO: open confirmation prompt
+					histories.clear();
+					currentWorld.discardJournals();
+					currentWorld.unloadModifiedLevels(); // Reloaded from the disk the next time they are edited
 					if (ChristmasCrashers.isDebugModeEnabled())
 						System.out.println("Discarding changes and switching to MainMenu state.");
 					ChristmasCrashers.setCurrentState(StateType.MAIN_MENU);
@@ -162,6 +239,7 @@ public class LevelEditorState extends State {
 				}
 				if (highlightedButton.texture == null) { // A level selection button is highlighted
 					selectedLevelButton = highlightedButton;
+					selection = null;
 					currentLevel = currentWorld.getLevel(Integer.parseInt(Character.toString(selectedLevelButton.metadata)));
 					if (ChristmasCrashers.isDebugModeEnabled() && currentLevel != null)
 						System.out.println("Now editing level " + currentLevel.getID() + " in world " + currentWorld.getID() + ".");
@@ -176,11 +254,29 @@ public class LevelEditorState extends State {
 			}
 		}
 
+		if (currentLevel != null && !Mouse.isButtonDown(0) && !Mouse.isButtonDown(1))
+			getHistory().endStroke(); // The drag is over
+
 		// Keyboard handling
-		if (!keyDown)
-			ChristmasCrashers.getDelta(); // Clear the buildup in the delta count
+		boolean fill = !control && Keyboard.isKeyDown(Keyboard.KEY_R);
+		boolean floodFill = !control && Keyboard.isKeyDown(Keyboard.KEY_F);
+		boolean copy = control && Keyboard.isKeyDown(Keyboard.KEY_C);
+		boolean cut = control && Keyboard.isKeyDown(Keyboard.KEY_X);
+		boolean paste = control && Keyboard.isKeyDown(Keyboard.KEY_V);
+		boolean regionEdit = fill || floodFill || copy || cut || paste;
+		if (regionEdit && !regionKeyDown && currentLevel != null)
+			editRegion(fill, floodFill, copy, cut, paste);
+		regionKeyDown = regionEdit;
+		boolean undo = control && Keyboard.isKeyDown(Keyboard.KEY_Z) && !shift;
+		boolean redo = control && (Keyboard.isKeyDown(Keyboard.KEY_Y) || (Keyboard.isKeyDown(Keyboard.KEY_Z) && shift));
+		if ((undo || redo) && !historyKeyDown && currentLevel != null) {
+			if (undo ? getHistory().undo() : getHistory().redo())
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println((undo ? "Undid" : "Redid") + " a stroke in level " + currentLevel.getID() + ".");
+		}
+		historyKeyDown = undo || redo;
 		Vector2f displacement = new Vector2f(0, 0);
-		int delta = ChristmasCrashers.getDelta();
+		double delta = FrameClock.getDeltaMillis();
 		// Panning speeds are in pixels per second
 		if (Keyboard.isKeyDown(Keyboard.KEY_RIGHT) || Keyboard.isKeyDown(Keyboard.KEY_D)) {
 			keyDown = true;
@@ -212,27 +308,12 @@ public class LevelEditorState extends State {
 	public void draw() {
 		RenderMonkey.renderBackground(0.3, 0.4, 1.0);
 		// Note - the map tiles are 30x30 pixels in the Level Editor, rather than their normal size, 40x40
-		int leftBound = (int) Math.floor(GLGuru.getXDisplacement() / 30) ;
-		int rightBound = (int) Math.ceil((GLGuru.getXDisplacement() + ChristmasCrashers.getWindowWidth() - 120) / 30);
-		int bottomBound = (int) Math.floor(GLGuru.getYDisplacement() / 30);
-		int topBound = (int) Math.ceil((GLGuru.getYDisplacement() + ChristmasCrashers.getWindowHeight() - 60) / 30);
-		
-		// ArrayIndexOutOfBoundsException prevention
 		if (currentLevel != null) {
-			if (leftBound < 0)
-				leftBound = 0;
-			if (rightBound >= Level.WIDTH)
-				rightBound = Level.WIDTH;
-			if (bottomBound < 0)
-				bottomBound = 0;
-			if (topBound >= Level.HEIGHT)
-				topBound = Level.HEIGHT;
-			for (int i = leftBound; i < rightBound; i++)
-				for (int j = bottomBound; j < topBound; j++)
-					if (currentLevel.getObject(i, j).getType().getTexture() != null)
-						RenderMonkey.renderTexturedRectangle(i * 30, j * 30, 30, 30, currentLevel.getObject(i, j).getType().getTexture());
+			currentLevel.draw(30, 120, 60);
 			if (highlightedObject != null)
 				RenderMonkey.renderTransparentColoredRectangle(highlightedObject.getX() * 30, highlightedObject.getY() * 30, 30, 30, 0.9, 0.9, 0.9, 0.4);
+			if (selection != null)
+				RenderMonkey.renderLinedRectangle(selection[0] * 30, selection[1] * 30, (selection[2] - selection[0] + 1) * 30, (selection[3] - selection[1] + 1) * 30, 1.0, 0.9, 0.2);
 		}
 		
 		// Draw the menu backgrounds
@@ -304,13 +385,17 @@ public class LevelEditorState extends State {
 		GLGuru.setZDisplacement(0);
 		GLGuru.initGL2D();
 		currentLevel = null;
+		histories.clear();
+		selection = null;
+		selecting = false;
 		currentWorld = WorldManager.getWorld(0); // TODO: Set the currentWorld to the world selected in the main menu world window
 		currentWorld.load();
+		currentWorld.startJournaling();
 		currentObjectType = ObjectType.AIR; 
 		selectedLevelButton = Button.NONE;
 		selectedTileButton = Button.NONE;
 		highlightedButton = Button.NONE;
-		ChristmasCrashers.getDelta(); // Remove buildup in the delta count
+		FrameClock.reset(); // Don't count the time spent initializing towards the next frame
 	}
 
 	/**
@@ -336,6 +421,42 @@ public class LevelEditorState extends State {
 		return currentLevel;
 	}
 
+	/**
+	 * Performs a region editing operation on the {@link #currentLevel}, recording any change as one stroke in its
+	 * {@link EditHistory}. Fills, copies and cuts act on the {@link #selection}; flood fills and pastes act at the tile
+	 * under the mouse.
+	 */
+	private void editRegion(boolean fill, boolean floodFill, boolean copy, boolean cut, boolean paste) {
+		long start = System.nanoTime();
+		RegionEdit edit = new RegionEdit(currentLevel);
+		if ((copy || cut) && selection != null)
+			clipboard = TileRegion.copy(currentLevel, selection[0], selection[1], selection[2] - selection[0] + 1, selection[3] - selection[1] + 1);
+		if (cut && selection != null)
+			edit.fillRectangle(selection[0], selection[1], selection[2], selection[3], ObjectType.AIR);
+		if (fill && selection != null && currentObjectType != null)
+			edit.fillRectangle(selection[0], selection[1], selection[2], selection[3], currentObjectType);
+		if (floodFill && hoveredTileX >= 0 && currentObjectType != null)
+			edit.floodFill(hoveredTileX, hoveredTileY, currentObjectType);
+		if (paste && clipboard != null && hoveredTileX >= 0)
+			edit.paste(clipboard, hoveredTileX, hoveredTileY, true);
+		int changed = getHistory().apply(edit);
+		if (ChristmasCrashers.isDebugModeEnabled() && changed > 0)
+			System.out.println("Changed " + changed + " tiles in level " + currentLevel.getID() + " in " + (System.nanoTime() - start) / 1000 + " microseconds.");
+	}
+
+	/**
+	 * @return The {@link EditHistory} of the {@link #currentLevel}, created if the level hasn't been edited yet during
+	 * the editing session
+	 */
+	public EditHistory getHistory() {
+		EditHistory history = histories.get(currentLevel.getID());
+		if (history == null || history.getLevel() != currentLevel) { // Created, or reloaded since it was last edited
+			history = new EditHistory(currentLevel);
+			histories.put(currentLevel.getID(), history);
+		}
+		return history;
+	}
+
 	/**
 	 * Enum containing all the navigation buttons that can be selected via mouse and, for each button, the dimensional
 	 * attributes and Texture object used to render the button.
@@ -16,6 +16,7 @@ import org.newdawn.slick.opengl.TextureLoader;
 import org.newdawn.slick.util.ResourceLoader;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
 import ss.linearlogic.christmascrashers.engine.GLGuru;
 import ss.linearlogic.christmascrashers.engine.RenderMonkey;
 import ss.linearlogic.christmascrashers.world.WorldManager;
@@ -185,7 +186,7 @@ public class MainMenuState extends State {
 						transparency = 0;
 					RenderMonkey.renderTransparentTexturedRectangle(NavigationButton.EXIT.x, NavigationButton.EXIT.y, NavigationButton.EXIT.width, NavigationButton.EXIT.height, NavigationButton.EXIT.texture, Math.pow(transparency, 2));
 				}
-				animationProgress += (double) ChristmasCrashers.getDelta() * 1000 / animationSpeed;
+				animationProgress += FrameClock.getDeltaMillis() * 1000 / animationSpeed;
 				if (animationProgress > 1000) // Prevent overshooting the animationProgress limit
 					animationProgress = 1000;
 			} else { // Load fully opaque option buttons
@@ -246,7 +247,7 @@ public class MainMenuState extends State {
 		for (int i = 0; i < points.length; i++)
 			points[i] = new Point((random.nextFloat() - 0.5f) * 100f, (random.nextFloat() - 0.5f) * 100f, random.nextInt(200) - (300 + (float) GLGuru.getZDisplacement()));
 		animationProgress = 0;
-		ChristmasCrashers.getDelta(); // Remove buildup in the delta count
+		FrameClock.reset(); // Don't count the time spent initializing towards the next frame
 	}
 
 	/**
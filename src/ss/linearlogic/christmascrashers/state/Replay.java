@@ -0,0 +1,430 @@
+package ss.linearlogic.christmascrashers.state;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ss.linearlogic.christmascrashers.engine.FrameClock;
+import ss.linearlogic.christmascrashers.entity.Player;
+import ss.linearlogic.christmascrashers.util.Varint;
+
+/**
+ * A recording of a play session: the player's input flags for every {@link Simulation} tick, plus a
+ * {@link Keyframe keyframe} of the player's full state every {@link #KEYFRAME_INTERVAL} ticks. The simulation is
+ * deterministic, so replaying the inputs from the first keyframe reproduces the session exactly, and a replay can be
+ * seeked to any tick by restoring the nearest earlier keyframe and re-simulating at most an interval's worth of ticks.
+ * During playback the keyframes are also compared against the replayed state, so a replay that no longer plays back
+ * as recorded (because the level or the physics have changed) is caught at the first keyframe it diverges at.
+ * <p>Replays are stored in a compact binary form: a header, the inputs as runs of (varint repeat count, input byte) -
+ * held inputs make for long runs, so a minute of play typically takes a few hundred bytes - and the keyframes.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class Replay {
+
+	/**
+	 * The magic number at the start of every encoded replay ("CCRP")
+	 */
+	public static final int MAGIC = 0x43435250;
+
+	/**
+	 * The current replay format version
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The number of ticks between keyframes
+	 */
+	public static final int KEYFRAME_INTERVAL = 5 * FrameClock.TICK_RATE;
+
+	/**
+	 * The file extension of replay files
+	 */
+	public static final String EXTENSION = ".ccr";
+
+	/**
+	 * The directory replays recorded in the game are saved to
+	 */
+	public static final String DIRECTORY = "files" + File.separator + "replays";
+
+	/**
+	 * The length, in bytes, of the fixed part of the header (magic, version, tick rate, keyframe interval, world ID and
+	 * level ID)
+	 */
+	private static final int HEADER_LENGTH = 22;
+
+	/**
+	 * The length, in bytes, of an encoded keyframe
+	 */
+	private static final int KEYFRAME_LENGTH = 17;
+
+	/**
+	 * The ID of the world the session was played in
+	 */
+	private final int worldID;
+
+	/**
+	 * The ID of the level the session was played in
+	 */
+	private final int levelID;
+
+	/**
+	 * The input flags of each tick
+	 */
+	private final byte[] inputs;
+
+	/**
+	 * The keyframes, by index (keyframe i was taken at the start of tick i * {@link #KEYFRAME_INTERVAL}, and the last
+	 * one may have been taken at the end of the final tick)
+	 */
+	private final Keyframe[] keyframes;
+
+	/**
+	 * @param worldID The {@link #worldID}
+	 * @param levelID The {@link #levelID}
+	 * @param inputs The {@link #inputs}
+	 * @param keyframes The {@link #keyframes}
+	 */
+	private Replay(int worldID, int levelID, byte[] inputs, Keyframe[] keyframes) {
+		this.worldID = worldID;
+		this.levelID = levelID;
+		this.inputs = inputs;
+		this.keyframes = keyframes;
+	}
+
+	/**
+	 * Reads a replay from a file.
+	 *
+	 * @param file The replay file
+	 * @return The replay
+	 * @throws IOException If the file cannot be read or is not a valid replay
+	 */
+	public static Replay read(File file) throws IOException {
+		try {
+			return decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid replay file " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The most recently modified replay file in the replay {@link #DIRECTORY}, or null if there are none
+	 */
+	public static File findLatest() {
+		File[] files = new File(DIRECTORY).listFiles();
+		File latest = null;
+		if (files != null)
+			for (File file : files)
+				if (file.getName().endsWith(EXTENSION) && (latest == null || file.lastModified() > latest.lastModified()))
+					latest = file;
+		return latest;
+	}
+
+	/**
+	 * Decodes a replay from its {@link #encode() encoded} form.
+	 *
+	 * @param data The encoded replay, from its position to its limit
+	 * @return The decoded replay
+	 * @throws IllegalArgumentException If the data is not a valid replay
+	 */
+	public static Replay decode(ByteBuffer data) {
+		data = data.slice();
+		try {
+			if (data.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a replay.");
+			short version = data.getShort();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported replay version " + version + ".");
+			int tickRate = data.getInt();
+			int keyframeInterval = data.getInt();
+			if (tickRate != FrameClock.TICK_RATE || keyframeInterval != KEYFRAME_INTERVAL)
+				throw new IllegalArgumentException("Replay was recorded at " + tickRate + " ticks per second with a keyframe every " + keyframeInterval + " ticks.");
+			int worldID = data.getInt();
+			int levelID = data.getInt();
+			int length = Varint.read(data);
+			if (length < 0)
+				throw new IllegalArgumentException("Malformed replay header.");
+			if (((long) length / KEYFRAME_INTERVAL + 1) * KEYFRAME_LENGTH > data.remaining()) // Checked before allocating the inputs
+				throw new IllegalArgumentException("Truncated replay.");
+			byte[] inputs = new byte[length];
+			for (int tick = 0; tick < length;) {
+				int repeat = Varint.read(data);
+				byte input = data.get();
+				if (repeat <= 0 || repeat > length - tick)
+					throw new IllegalArgumentException("Malformed replay input run.");
+				Arrays.fill(inputs, tick, tick + repeat, input);
+				tick += repeat;
+			}
+			Keyframe[] keyframes = new Keyframe[length / KEYFRAME_INTERVAL + 1];
+			for (int i = 0; i < keyframes.length; i++)
+				keyframes[i] = new Keyframe(i * KEYFRAME_INTERVAL, data.getInt(), data.getInt(), data.getFloat(), data.getFloat(), data.get() != 0);
+			if (data.hasRemaining())
+				throw new IllegalArgumentException("Trailing data after the replay.");
+			return new Replay(worldID, levelID, inputs, keyframes);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated replay.");
+		}
+	}
+
+	/**
+	 * @return The replay in its compact binary form, ready to be written
+	 */
+	public ByteBuffer encode() {
+		ByteArrayOutputStream runs = new ByteArrayOutputStream();
+		for (int tick = 0; tick < inputs.length;) {
+			int end = tick + 1;
+			while (end < inputs.length && inputs[end] == inputs[tick])
+				end++;
+			Varint.write(runs, end - tick);
+			runs.write(inputs[tick]);
+			tick = end;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 5 + runs.size() + keyframes.length * KEYFRAME_LENGTH);
+		buffer.putInt(MAGIC).putShort(VERSION).putInt(FrameClock.TICK_RATE).putInt(KEYFRAME_INTERVAL).putInt(worldID).putInt(levelID);
+		Varint.write(buffer, inputs.length);
+		buffer.put(runs.toByteArray());
+		for (Keyframe keyframe : keyframes)
+			buffer.putInt(keyframe.x).putInt(keyframe.y).putFloat(keyframe.movementX).putFloat(keyframe.movementY).put((byte) (keyframe.airborne ? 1 : 0));
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes the replay to a file, creating its directory if needed.
+	 *
+	 * @param file The file to write to
+	 * @throws IOException If the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		if (file.getParentFile() != null && !file.getParentFile().exists())
+			file.getParentFile().mkdirs();
+		ByteBuffer data = encode();
+		Files.write(file.toPath(), Arrays.copyOfRange(data.array(), 0, data.limit()));
+	}
+
+	/**
+	 * @param tick A tick number between 0 and the replay's {@link #getLength() length}
+	 * @return The input flags recorded for the specified tick
+	 */
+	public int getInput(int tick) {
+		return inputs[tick];
+	}
+
+	/**
+	 * @param tick A tick number between 0 and the replay's {@link #getLength() length} (inclusive)
+	 * @return The latest keyframe taken at or before the start of the specified tick
+	 */
+	public Keyframe getKeyframe(int tick) {
+		return keyframes[Math.min(tick / KEYFRAME_INTERVAL, keyframes.length - 1)];
+	}
+
+	/**
+	 * @param tick A tick number
+	 * @return The keyframe taken at the start of the specified tick, or null if there is none
+	 */
+	Keyframe getKeyframeAt(int tick) {
+		if (tick % KEYFRAME_INTERVAL != 0 || tick / KEYFRAME_INTERVAL >= keyframes.length)
+			return null;
+		return keyframes[tick / KEYFRAME_INTERVAL];
+	}
+
+	/**
+	 * @return The number of recorded ticks
+	 */
+	public int getLength() {
+		return inputs.length;
+	}
+
+	/**
+	 * @return The ID of the world the session was played in
+	 */
+	public int getWorldID() {
+		return worldID;
+	}
+
+	/**
+	 * @return The ID of the level the session was played in
+	 */
+	public int getLevelID() {
+		return levelID;
+	}
+
+	/**
+	 * The full simulated state of the player at the start of a tick: everything a tick reads, so restoring a keyframe
+	 * and replaying the following inputs reproduces the following ticks exactly.
+	 */
+	public static class Keyframe {
+
+		/**
+		 * The number of the tick the keyframe was taken at the start of
+		 */
+		private final int tick;
+
+		/**
+		 * The player's pixel x-coordinate
+		 */
+		private final int x;
+
+		/**
+		 * The player's pixel y-coordinate
+		 */
+		private final int y;
+
+		/**
+		 * The x-component of the player's movement vector
+		 */
+		private final float movementX;
+
+		/**
+		 * The y-component of the player's movement vector
+		 */
+		private final float movementY;
+
+		/**
+		 * Whether the player is airborne
+		 */
+		private final boolean airborne;
+
+		private Keyframe(int tick, int x, int y, float movementX, float movementY, boolean airborne) {
+			this.tick = tick;
+			this.x = x;
+			this.y = y;
+			this.movementX = movementX;
+			this.movementY = movementY;
+			this.airborne = airborne;
+		}
+
+		/**
+		 * @param tick The number of the tick the keyframe is being taken at the start of
+		 * @param player
+		 * @return A keyframe of the supplied player's current state
+		 */
+		static Keyframe capture(int tick, Player player) {
+			return new Keyframe(tick, player.getSprite().getX(), player.getSprite().getY(), player.getMovementVector().getX(), player.getMovementVector().getY(), player.isAirborne());
+		}
+
+		/**
+		 * Puts the supplied player into the keyframe's state.
+		 *
+		 * @param player
+		 */
+		void restore(Player player) {
+			player.setPixelX(x);
+			player.setPixelY(y);
+			player.getMovementVector().set(movementX, movementY);
+			player.setAirborne(airborne);
+		}
+
+		/**
+		 * @param player
+		 * @return True iff the supplied player is in exactly the keyframe's state
+		 */
+		boolean matches(Player player) {
+			return player.getSprite().getX() == x && player.getSprite().getY() == y && player.isAirborne() == airborne
+					&& Float.floatToIntBits(player.getMovementVector().getX()) == Float.floatToIntBits(movementX)
+					&& Float.floatToIntBits(player.getMovementVector().getY()) == Float.floatToIntBits(movementY);
+		}
+
+		/**
+		 * @return The number of the tick the keyframe was taken at the start of
+		 */
+		public int getTick() {
+			return tick;
+		}
+
+		/**
+		 * @return The player's pixel x-coordinate
+		 */
+		public int getX() {
+			return x;
+		}
+
+		/**
+		 * @return The player's pixel y-coordinate
+		 */
+		public int getY() {
+			return y;
+		}
+	}
+
+	/**
+	 * Records a play session into a replay, one tick at a time.
+	 */
+	public static class Recorder {
+
+		/**
+		 * The ID of the world being played
+		 */
+		private final int worldID;
+
+		/**
+		 * The ID of the level being played
+		 */
+		private final int levelID;
+
+		/**
+		 * The input flags recorded so far
+		 */
+		private byte[] inputs = new byte[1024];
+
+		/**
+		 * The number of ticks recorded so far
+		 */
+		private int length;
+
+		/**
+		 * The keyframes taken so far
+		 */
+		private final ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>();
+
+		/**
+		 * Starts a recording of a session in the specified level.
+		 *
+		 * @param worldID The ID of the world being played
+		 * @param levelID The ID of the level being played
+		 */
+		public Recorder(int worldID, int levelID) {
+			this.worldID = worldID;
+			this.levelID = levelID;
+		}
+
+		/**
+		 * Records a tick, taking a keyframe of the player first if one is due. Called at the start of each tick, before
+		 * the player is moved.
+		 *
+		 * @param input The input flags of the tick
+		 * @param player The player, in its state at the start of the tick
+		 */
+		public void record(int input, Player player) {
+			if (length % KEYFRAME_INTERVAL == 0)
+				keyframes.add(Keyframe.capture(length, player));
+			if (length == inputs.length)
+				inputs = Arrays.copyOf(inputs, length * 2);
+			inputs[length++] = (byte) input;
+		}
+
+		/**
+		 * @param player The player, in its state at the end of the last recorded tick
+		 * @return The replay of the ticks recorded so far
+		 */
+		public Replay finish(Player player) {
+			ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>(this.keyframes);
+			if (keyframes.size() < length / KEYFRAME_INTERVAL + 1)
+				keyframes.add(Keyframe.capture(length, player)); // The recording ends on a keyframe tick (or is empty)
+			return new Replay(worldID, levelID, Arrays.copyOf(inputs, length), keyframes.toArray(new Keyframe[keyframes.size()]));
+		}
+
+		/**
+		 * @return The number of ticks recorded so far
+		 */
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package ss.linearlogic.christmascrashers.state;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.engine.FrameClock;
+import ss.linearlogic.christmascrashers.entity.Player;
+import ss.linearlogic.christmascrashers.world.Level;
+
+/**
+ * Runs the game's simulation - the player's movement, collisions and chunk streaming - in fixed
+ * {@link FrameClock#TICK_NANOS ticks} on its own thread, so that a slow tick never holds up rendering and a slow frame
+ * never holds up the simulation.
+ * <p>The two threads share as little as possible. The render thread hands the simulation the player's input as a
+ * bitmask of {@link #INPUT_RIGHT}, {@link #INPUT_LEFT} and {@link #INPUT_JUMP} flags, and the simulation hands the
+ * render thread an immutable {@link Snapshot} at the end of every tick. Each new snapshot replaces the last through a
+ * volatile reference, so the renderer always picks up the latest complete one without locking, and snapshots it
+ * never got round to drawing are simply dropped. The level's tiles are not copied into the snapshots: the chunk
+ * storage is safe to read while the simulation streams chunks in and out, and {@link Level#draw()} only reads the
+ * chunks already in memory, never loading any, so the renderer draws the level directly.
+ * <p>The ticks can be {@link #startRecording() recorded} into a {@link Replay}, and a replay can be
+ * {@link #play(Replay) played back} in place of the live input and {@link #seek(int) seeked} through.
+ * <p>Ticks run while holding the {@link #TICK_LOCK}, which the main loop also holds while it swaps
+ * {@link ss.linearlogic.christmascrashers.world.LevelWatcher reloaded} levels in, so that nothing is collided with
+ * while a level is half replaced.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class Simulation implements Runnable {
+
+	/**
+	 * The input flag for steering the player right
+	 */
+	public static final int INPUT_RIGHT = 1;
+
+	/**
+	 * The input flag for steering the player left
+	 */
+	public static final int INPUT_LEFT = 1 << 1;
+
+	/**
+	 * The input flag for jumping
+	 */
+	public static final int INPUT_JUMP = 1 << 2;
+
+	/**
+	 * The lock held for the duration of every tick
+	 */
+	public static final Object TICK_LOCK = new Object();
+
+	/**
+	 * The most time, in nanoseconds, the simulation will fall behind its schedule before it skips the missed ticks
+	 * rather than running them back to back
+	 */
+	private static final long MAX_LAG = 250000000L;
+
+	/**
+	 * The player being simulated
+	 */
+	private final Player player;
+
+	/**
+	 * The level the player is in, or null
+	 */
+	private Level level;
+
+	/**
+	 * The input flags that are currently held down, as last sampled by the render thread
+	 */
+	private volatile int input;
+
+	/**
+	 * The input flags that have been pressed since the last tick, so that a press shorter than a tick isn't missed
+	 */
+	private final AtomicInteger pressed = new AtomicInteger();
+
+	/**
+	 * The most recently published snapshot
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * The number of ticks run
+	 */
+	private volatile long tickCount;
+
+	/**
+	 * The recorder the ticks are being recorded into, or null if the simulation isn't being recorded. Only changed
+	 * while holding the {@link #TICK_LOCK}, but volatile so that the render thread can check it without locking.
+	 */
+	private volatile Replay.Recorder recorder;
+
+	/**
+	 * The replay being played back, or null if the live input is being simulated. Only changed while holding the
+	 * {@link #TICK_LOCK}, but volatile so that the render thread can check it without locking.
+	 */
+	private volatile Replay replay;
+
+	/**
+	 * The number of the next tick of the {@link #replay} to play
+	 */
+	private volatile int replayTick;
+
+	/**
+	 * The first tick of the {@link #replay} at which the simulation was found to have diverged from the recording, or
+	 * -1 if it hasn't
+	 */
+	private volatile int desyncTick = -1;
+
+	/**
+	 * The simulation thread, or null if the simulation isn't running on its own thread
+	 */
+	private Thread thread;
+
+	/**
+	 * Whether the simulation thread should keep running
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Creates a simulation of the supplied player in the supplied level, and publishes its initial {@link Snapshot}.
+	 *
+	 * @param player The {@link #player} to simulate
+	 * @param level The {@link #level} the player is in, or null
+	 */
+	public Simulation(Player player, Level level) {
+		this.player = player;
+		this.level = level;
+		player.setCollisionMap(level == null ? null : level.getCollisionMap());
+		int x = player.getSprite().getX(), y = player.getSprite().getY();
+		snapshot = new Snapshot(0, System.nanoTime(), x, y, x, y);
+	}
+
+	/**
+	 * Starts running ticks on the simulation thread, unless it is already running.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "Simulation");
+		thread.setDaemon(true);
+		thread.start();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Started the simulation thread.");
+	}
+
+	/**
+	 * Stops the simulation thread, waiting for the tick in progress (if any) to finish.
+	 */
+	public synchronized void stop() {
+		if (thread == null)
+			return;
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Stopped the simulation thread after " + tickCount + " ticks.");
+	}
+
+	/**
+	 * Runs ticks on schedule, one every {@link FrameClock#TICK_NANOS} nanoseconds, until the simulation is
+	 * {@link #stop() stopped}. If a tick fails, the simulation stops rather than carrying on in a broken state.
+	 */
+	@Override
+	public void run() {
+		long nextTick = System.nanoTime() + FrameClock.TICK_NANOS;
+		while (running) {
+			long now = System.nanoTime();
+			if (now < nextTick) {
+				LockSupport.parkNanos(nextTick - now);
+				continue;
+			}
+			try {
+				tick(input | pressed.getAndSet(0));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				System.err.println("Failed to run simulation tick " + tickCount + " - stopping the simulation.");
+				running = false;
+				return;
+			}
+			nextTick += FrameClock.TICK_NANOS;
+			if (now - nextTick > MAX_LAG) // Stalled - skip the missed ticks
+				nextTick = now;
+		}
+	}
+
+	/**
+	 * Advances the simulation by one tick with the supplied input: steers the player, moves it, streams in the chunks
+	 * around its new location, and publishes a new {@link Snapshot}. While a replay is being played back, its
+	 * recorded input is used instead of the supplied input, the player's state is checked against any keyframe
+	 * recorded at the end of the tick, and playback ends with the replay's last tick. While the simulation is being
+	 * recorded, the input is recorded.
+	 *
+	 * @param input The input flags held down during the tick
+	 */
+	public void tick(int input) {
+		synchronized (TICK_LOCK) {
+			if (replay != null && replayTick < replay.getLength())
+				input = replay.getInput(replayTick++);
+			else if (recorder != null)
+				recorder.record(input, player);
+			int previousX = player.getSprite().getX(), previousY = player.getSprite().getY();
+			step(input);
+			if (replay != null) {
+				Replay.Keyframe keyframe = replay.getKeyframeAt(replayTick);
+				if (keyframe != null && desyncTick < 0 && !keyframe.matches(player)) {
+					desyncTick = replayTick;
+					if (ChristmasCrashers.isDebugModeEnabled())
+						System.out.println("[Warning] Replay diverged from the recording by tick " + replayTick + ".");
+				}
+				if (replayTick >= replay.getLength()) {
+					replay = null;
+					if (ChristmasCrashers.isDebugModeEnabled())
+						System.out.println("Finished playing back the replay" + (desyncTick < 0 ? "." : " (diverged from the recording by tick " + desyncTick + ")."));
+				}
+			}
+			tickCount++;
+			snapshot = new Snapshot(tickCount, System.nanoTime(), previousX, previousY, player.getSprite().getX(), player.getSprite().getY());
+		}
+	}
+
+	/**
+	 * Moves the simulation forward by one tick with the supplied input, without recording or publishing anything.
+	 */
+	private void step(int input) {
+		int direction = ((input & INPUT_RIGHT) != 0 ? 1 : 0) - ((input & INPUT_LEFT) != 0 ? 1 : 0);
+		player.getMovementVector().setX(5 * direction);
+		if ((input & INPUT_JUMP) != 0 && !player.canFly() && !player.isAirborne()) {
+			player.setAirborne(true);
+			player.getMovementVector().setY(player.getMovementVector().getY() + 12.5f);
+		}
+		player.updatePosition();
+		if (level != null && level.getStreamer() != null)
+			level.getStreamer().update(player);
+		player.getMovementVector().setX(0);
+	}
+
+	/**
+	 * Starts recording the ticks, from the player's current state. Any replay being played back is stopped.
+	 *
+	 * @return True iff recording was started (the player must be in a level, and not already being recorded)
+	 */
+	public boolean startRecording() {
+		synchronized (TICK_LOCK) {
+			if (level == null || recorder != null)
+				return false;
+			replay = null;
+			recorder = new Replay.Recorder(level.getWorldID(), level.getID());
+			return true;
+		}
+	}
+
+	/**
+	 * Stops recording the ticks.
+	 *
+	 * @return The replay of the ticks recorded since recording was {@link #startRecording() started}, or null if the
+	 * simulation wasn't being recorded
+	 */
+	public Replay stopRecording() {
+		synchronized (TICK_LOCK) {
+			if (recorder == null)
+				return null;
+			Replay recording = recorder.finish(player);
+			recorder = null;
+			return recording;
+		}
+	}
+
+	/**
+	 * Starts playing back a replay from its beginning, in place of the live input. Any recording in progress is
+	 * discarded.
+	 *
+	 * @param replay A replay of a session in the simulation's level
+	 * @throws IllegalArgumentException If the replay was recorded in another level
+	 */
+	public void play(Replay replay) {
+		synchronized (TICK_LOCK) {
+			if (level == null || replay.getWorldID() != level.getWorldID() || replay.getLevelID() != level.getID())
+				throw new IllegalArgumentException("Cannot play back a replay of level " + replay.getLevelID() + " in world " + replay.getWorldID() + " in another level.");
+			recorder = null;
+			this.replay = replay;
+			desyncTick = -1;
+			seek(0);
+		}
+	}
+
+	/**
+	 * Moves the replay being played back to the start of the specified tick, by restoring the latest keyframe at or
+	 * before it and simulating the recorded ticks from there (at most a {@link Replay#KEYFRAME_INTERVAL keyframe
+	 * interval's} worth).
+	 *
+	 * @param tick The number of the replay tick to seek to, which is clamped to the length of the replay
+	 * @return True iff a replay is being played back
+	 */
+	public boolean seek(int tick) {
+		synchronized (TICK_LOCK) {
+			if (replay == null)
+				return false;
+			tick = Math.max(0, Math.min(tick, replay.getLength()));
+			Replay.Keyframe keyframe = replay.getKeyframe(tick);
+			keyframe.restore(player);
+			replayTick = keyframe.getTick();
+			while (replayTick < tick)
+				step(replay.getInput(replayTick++));
+			int x = player.getSprite().getX(), y = player.getSprite().getY();
+			snapshot = new Snapshot(tickCount, System.nanoTime(), x, y, x, y);
+			return true;
+		}
+	}
+
+	/**
+	 * Stops playing back the replay, if any, handing control of the player back to the live input.
+	 */
+	public void stopPlayback() {
+		synchronized (TICK_LOCK) {
+			replay = null;
+		}
+	}
+
+	/**
+	 * @return True iff the ticks are being recorded
+	 */
+	public boolean isRecording() {
+		return recorder != null;
+	}
+
+	/**
+	 * @return True iff a replay is being played back
+	 */
+	public boolean isPlaying() {
+		return replay != null;
+	}
+
+	/**
+	 * @return The number of the next tick of the replay being played back
+	 */
+	public int getReplayTick() {
+		return replayTick;
+	}
+
+	/**
+	 * @return The first tick of the most recently played replay at which the simulation diverged from the recording,
+	 * or -1 if it hasn't
+	 */
+	public int getDesyncTick() {
+		return desyncTick;
+	}
+
+	/**
+	 * Hands the simulation the player's current input. Called by the render thread each frame.
+	 *
+	 * @param input The input flags that are currently held down
+	 */
+	public void setInput(int input) {
+		this.input = input;
+		if (input != 0) {
+			int current;
+			do {
+				current = pressed.get();
+			} while (!pressed.compareAndSet(current, current | input));
+		}
+	}
+
+	/**
+	 * @return The most recently published {@link Snapshot}
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Moves the player to another level. Safe to call while the simulation thread is running.
+	 *
+	 * @param level The new {@link #level}, or null
+	 */
+	public void setLevel(Level level) {
+		synchronized (TICK_LOCK) {
+			this.level = level;
+			player.setCollisionMap(level == null ? null : level.getCollisionMap());
+		}
+	}
+
+	/**
+	 * @return The level the player is in, or null
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The player being simulated
+	 */
+	public Player getPlayer() {
+		return player;
+	}
+
+	/**
+	 * @return The number of ticks run
+	 */
+	public long getTickCount() {
+		return tickCount;
+	}
+
+	/**
+	 * @return True iff the simulation thread is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+}
@@ -0,0 +1,116 @@
+package ss.linearlogic.christmascrashers.state;
+
+import ss.linearlogic.christmascrashers.engine.FrameClock;
+
+/**
+ * An immutable picture of the simulated game as of the end of a {@link Simulation} tick, holding everything the
+ * {@link GameState} needs to render a frame: the player's location before and after the tick, which the renderer
+ * interpolates between, and the time at which the tick ended. Snapshots are never modified once published, so the
+ * render thread can read one without any locking while the simulation thread builds the next.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class Snapshot {
+
+	/**
+	 * The number of the tick the snapshot was taken at
+	 */
+	private final long tick;
+
+	/**
+	 * The time, in nanoseconds, at which the tick ended
+	 */
+	private final long time;
+
+	/**
+	 * The player's pixel x-coordinate before the tick
+	 */
+	private final int previousX;
+
+	/**
+	 * The player's pixel y-coordinate before the tick
+	 */
+	private final int previousY;
+
+	/**
+	 * The player's pixel x-coordinate after the tick
+	 */
+	private final int x;
+
+	/**
+	 * The player's pixel y-coordinate after the tick
+	 */
+	private final int y;
+
+	/**
+	 * @param tick The {@link #tick} number
+	 * @param time The {@link #time} at which the tick ended
+	 * @param previousX The player's {@link #previousX x-coordinate before the tick}
+	 * @param previousY The player's {@link #previousY y-coordinate before the tick}
+	 * @param x The player's {@link #x x-coordinate after the tick}
+	 * @param y The player's {@link #y y-coordinate after the tick}
+	 */
+	Snapshot(long tick, long time, int previousX, int previousY, int x, int y) {
+		this.tick = tick;
+		this.time = time;
+		this.previousX = previousX;
+		this.previousY = previousY;
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * @param now The time, in nanoseconds, of the frame being rendered
+	 * @return The fraction of a {@link FrameClock#TICK_NANOS tick} (between 0 and 1) that has passed since the snapshot
+	 * was taken, by which the renderer interpolates from the previous to the current location
+	 */
+	public double getAlpha(long now) {
+		double alpha = (double) (now - time) / FrameClock.TICK_NANOS;
+		return alpha < 0 ? 0 : alpha > 1 ? 1 : alpha;
+	}
+
+	/**
+	 * @param alpha The fraction of a tick that has passed since the snapshot was taken
+	 * @return The player's pixel x-coordinate interpolated between its locations before and after the tick
+	 */
+	public double getInterpolatedX(double alpha) {
+		return previousX + (x - previousX) * alpha;
+	}
+
+	/**
+	 * @param alpha The fraction of a tick that has passed since the snapshot was taken
+	 * @return The player's pixel y-coordinate interpolated between its locations before and after the tick
+	 */
+	public double getInterpolatedY(double alpha) {
+		return previousY + (y - previousY) * alpha;
+	}
+
+	/**
+	 * @return The number of the tick the snapshot was taken at
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * @return The time, in nanoseconds, at which the tick ended
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return The player's pixel x-coordinate after the tick
+	 */
+	public int getX() {
+		return x;
+	}
+
+	/**
+	 * @return The player's pixel y-coordinate after the tick
+	 */
+	public int getY() {
+		return y;
+	}
+}
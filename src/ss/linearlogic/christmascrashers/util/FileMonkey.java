@@ -1,71 +1,296 @@
 package ss.linearlogic.christmascrashers.util;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The FileMonkey provides methods for various file operations, such as recursive deleting of folders and files.
  * As with the RenderMonkey and TextureMonkey, the FileMonkey responds best to bananas.
- * 
+ * <p>Directory trees are walked in parallel on a shared ForkJoinPool, with each subdirectory handled as a separate
+ * task, and file content is copied by the operating system with FileChannel.transferTo rather than through a buffer.
+ * The asynchronous variants return a {@link FileOperation} that reports progress and can be cancelled.
+ *
  * @author LinearLogic
  * @since 0.2.4
  */
 public class FileMonkey {
 
+	/**
+	 * The number of bytes transferred at a time when copying a file, between which cancellation is checked
+	 */
+	private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The pool of threads that file trees are walked on (ForkJoinPool worker threads are daemon threads)
+	 */
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
 	/**
 	 * Deletes the supplied File recursively, meaning that if the file is a directory, this method is excecuted on all
-	 * subfiles. This method completely removes a directory and all its contents.
-	 * 
+	 * subfiles. This method completely removes a directory and all its contents, and returns once it has done so.
+	 *
 	 * @param file The File object to delete
 	 */
 	public static void delete(File file) {
-		if (file.isDirectory()) {
-			for (File subfile : file.listFiles())
-				delete(subfile);
-		}
-		if (!file.delete())
-			System.err.println("Failed to delete file " + file.getPath() + ".");
+		deleteAsync(file).join();
 	}
 
 	/**
-	 * Copies the provided file or directory to the supplied target file or directory, creating the target if it doesn't already exist.
-	 * 
+	 * Starts deleting the supplied file or directory recursively in the background, as described in {@link #delete(File)}.
+	 * Files that cannot be deleted are reported and skipped.
+	 *
+	 * @param file The File object to delete
+	 * @return The {@link FileOperation} following the deletion
+	 */
+	public static FileOperation deleteAsync(File file) {
+		return start(new DeleteTask(new FileOperation(), file.toPath()));
+	}
+
+	/**
+	 * Copies the provided file or directory to the supplied target file or directory, creating the target if it doesn't
+	 * already exist, and returns once the copy is complete.
+	 *
 	 * @param source The file or directory to copy from
 	 * @param target The file or directory to copy to
-	 * 
+	 *
 	 * @throws IOException
 	 */
-    public static void copyDir(File source, File target) throws IOException {
- 
-    	if(source.isDirectory()) {
-    		if(!target.exists()) {
-    		   target.mkdir();
-    		}
-    		String files[] = source.list();
- 
-    		for (String file : files) {
-    		   File srcFile = new File(source, file);
-    		   File destFile = new File(target, file);
-    		   copyDir(srcFile, destFile);
-    		}
-    	} else {
-    		InputStream in = new FileInputStream(source);
-    	    OutputStream out = new FileOutputStream(target); 
- 
-    	    byte[] buffer = new byte[1024];
- 
-	        int length;
-	        //copy the file content in bytes 
-	        while ((length = in.read(buffer)) > 0) {
-	        	out.write(buffer, 0, length);
-    	    }
- 
-	        in.close();
-	        out.close();
-    	}
-    }
+	public static void copyDir(File source, File target) throws IOException {
+		try {
+			copyAsync(source, target).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts copying the provided file or directory to the supplied target in the background, as described in
+	 * {@link #copyDir(File, File)}. The operation fails with the first IOException encountered.
+	 *
+	 * @param source The file or directory to copy from
+	 * @param target The file or directory to copy to
+	 * @return The {@link FileOperation} following the copy
+	 */
+	public static FileOperation copyAsync(File source, File target) {
+		return start(new CopyTask(new FileOperation(), source.toPath(), target.toPath()));
+	}
+
+	/**
+	 * Unmaps the supplied buffer right away, rather than whenever it is garbage collected, so that the file it maps can
+	 * be replaced or deleted (which Windows refuses to do while the file is mapped). Neither the buffer nor any buffer
+	 * sliced or duplicated from it may be accessed afterwards. If the running JVM offers no way to unmap buffers, the
+	 * mapping is left to the garbage collector.
+	 *
+	 * @param buffer The buffer returned by {@link FileChannel#map(FileChannel.MapMode, long, long)}
+	 */
+	public static void unmap(MappedByteBuffer buffer) {
+		try {
+			try { // Java 9 and later
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+				unsafe.setAccessible(true);
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe.get(null), buffer);
+			} catch (NoSuchMethodException e) { // Java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			System.err.println("[Warning] Could not unmap a mapped file - it stays mapped until the mapping is garbage collected.");
+		}
+	}
+
+	/**
+	 * Submits the supplied root task to the {@link #pool}, completing its operation's future once the task has run.
+	 */
+	private static FileOperation start(final FileTask task) {
+		final FileOperation operation = task.operation;
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.invoke();
+					if (operation.isCancelled()) // Only completed now, so that nothing is still being processed
+						operation.getFuture().completeExceptionally(new CancellationException("The file operation was cancelled."));
+					else
+						operation.getFuture().complete(null);
+				} catch (CompletionException e) {
+					operation.getFuture().completeExceptionally(e.getCause());
+				} catch (RuntimeException e) {
+					operation.getFuture().completeExceptionally(e);
+				}
+			}
+		});
+		return operation;
+	}
+
+	/**
+	 * @return The entries of the specified directory
+	 */
+	private static ArrayList<Path> list(Path directory) throws IOException {
+		ArrayList<Path> entries = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try {
+			for (Path entry : stream)
+				entries.add(entry);
+		} finally {
+			stream.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * A step of a {@link FileOperation}, run on the {@link #pool}.
+	 */
+	private static abstract class FileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The operation this task is part of
+		 */
+		protected final FileOperation operation;
+
+		/**
+		 * @param operation The {@link #operation} this task is part of
+		 */
+		protected FileTask(FileOperation operation) {
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * Deletes a file, or a directory after deleting its entries in parallel.
+	 */
+	private static class DeleteTask extends FileTask {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The file or directory to delete
+		 */
+		private final Path path;
+
+		private DeleteTask(FileOperation operation, Path path) {
+			super(operation);
+			this.path = path;
+		}
+
+		@Override
+		protected void compute() {
+			if (operation.isCancelled())
+				return;
+			try {
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					ArrayList<DeleteTask> subtasks = new ArrayList<DeleteTask>();
+					for (Path entry : list(path))
+						subtasks.add(new DeleteTask(operation, entry));
+					invokeAll(subtasks);
+					if (operation.isCancelled())
+						return;
+					Files.delete(path);
+					operation.fileProcessed(0);
+				} else {
+					long size = Files.size(path);
+					Files.delete(path);
+					operation.fileProcessed(size);
+				}
+			} catch (NoSuchFileException e) {
+				// Already gone
+			} catch (IOException e) {
+				System.err.println("Failed to delete file " + path + ".");
+			}
+		}
+	}
+
+	/**
+	 * Copies a file, or a directory by copying its entries in parallel.
+	 */
+	private static class CopyTask extends FileTask {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The file or directory to copy from
+		 */
+		private final Path source;
+
+		/**
+		 * The file or directory to copy to
+		 */
+		private final Path target;
+
+		private CopyTask(FileOperation operation, Path source, Path target) {
+			super(operation);
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		protected void compute() {
+			if (operation.isCancelled())
+				return;
+			try {
+				if (Files.isDirectory(source)) {
+					if (!Files.exists(target))
+						Files.createDirectory(target);
+					operation.fileProcessed(0);
+					ArrayList<CopyTask> subtasks = new ArrayList<CopyTask>();
+					for (Path entry : list(source))
+						subtasks.add(new CopyTask(operation, entry, target.resolve(entry.getFileName().toString())));
+					invokeAll(subtasks);
+				} else {
+					copyFile();
+				}
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}
+
+		/**
+		 * Copies the content of the source file to the target file, letting the operating system move the bytes.
+		 */
+		private void copyFile() throws IOException {
+			FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			try {
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					long size = in.size();
+					long position = 0;
+					while (position < size && !operation.isCancelled()) {
+						long transferred = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+						if (transferred <= 0)
+							break; // The file has shrunk since it was opened
+						position += transferred;
+						operation.bytesProcessed(transferred);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			operation.fileProcessed(0);
+		}
+	}
 }
@@ -0,0 +1,112 @@
+package ss.linearlogic.christmascrashers.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A recursive copy or delete started by the {@link FileMonkey}, which runs in the background and can be followed and
+ * cancelled through this handle. The number of files and bytes processed so far can be polled at any time, and the
+ * {@link #getFuture() future} is completed once the whole tree has been processed.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class FileOperation {
+
+	/**
+	 * The future completed once the operation has finished (exceptionally if it failed or was cancelled)
+	 */
+	private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	/**
+	 * The number of files and directories processed so far
+	 */
+	private final AtomicLong filesProcessed = new AtomicLong();
+
+	/**
+	 * The number of bytes of file content processed so far
+	 */
+	private final AtomicLong bytesProcessed = new AtomicLong();
+
+	/**
+	 * Whether the operation has been {@link #cancel() cancelled}
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Cancels the operation. Files that are being processed are finished (a file being copied is left partially
+	 * written), but no further files are started. The {@link #future} completes with a CancellationException once the
+	 * files being processed have been finished, so the operation is only {@link #isDone() done} when nothing more is
+	 * touched.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return True iff the operation has been {@link #cancel() cancelled}
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return True iff the operation has finished, cancelled or not
+	 */
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	/**
+	 * @return The future completed once the operation has finished
+	 */
+	public CompletableFuture<Void> getFuture() {
+		return future;
+	}
+
+	/**
+	 * @return The number of files and directories processed so far
+	 */
+	public long getFilesProcessed() {
+		return filesProcessed.get();
+	}
+
+	/**
+	 * @return The number of bytes of file content processed so far
+	 */
+	public long getBytesProcessed() {
+		return bytesProcessed.get();
+	}
+
+	/**
+	 * Waits for the operation to finish.
+	 *
+	 * @return False if the operation was cancelled
+	 * @throws CompletionException If the operation failed
+	 */
+	public boolean join() {
+		try {
+			future.join();
+			return true;
+		} catch (CancellationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records that a file (or directory) of the specified size has been processed.
+	 */
+	void fileProcessed(long bytes) {
+		filesProcessed.incrementAndGet();
+		bytesProcessed.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that part of a file's content has been processed.
+	 */
+	void bytesProcessed(long bytes) {
+		bytesProcessed.addAndGet(bytes);
+	}
+}
@@ -8,6 +8,8 @@ import org.newdawn.slick.opengl.Texture;
 import org.newdawn.slick.opengl.TextureLoader;
 import org.newdawn.slick.util.ResourceLoader;
 
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
 /**
  * The TextureMonkey runs on bananas and provides methods for various Texture operations, such as loading Texture objects.
  * 
@@ -61,9 +63,12 @@ public class TextureMonkey {
 	 * @param format
 	 * @param pathToTexture
 	 * @return The Texture (image) of the specified format (JPG, PNG, etc.) at the specified disk location. If the Texture
-	 * object is unable to be loaded (due to an invalid path, an incompatible format, or otherwise), the method returns null.
+	 * object is unable to be loaded (due to an invalid path, an incompatible format, or otherwise), or the program is running
+	 * {@link ChristmasCrashers#isHeadless() headless}, the method returns null.
 	 */
 	public static Texture loadTexture(String format, String pathToTexture) {
+		if (ChristmasCrashers.isHeadless())
+			return null; // There is no openGL context to upload the texture to
 		Texture tex = null;
 		try {
 			tex = TextureLoader.getTexture(format, ResourceLoader.getResourceAsStream(pathToTexture));
@@ -0,0 +1,76 @@
+package ss.linearlogic.christmascrashers.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes non-negative integers as unsigned LEB128 varints (7 bits per byte, least significant group
+ * first, with the high bit set on every byte but the last), the compact integer encoding shared by the level journal,
+ * level patches and replays.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class Varint {
+
+	/**
+	 * Writes a non-negative integer to the supplied stream as a varint.
+	 *
+	 * @param out The stream to write to
+	 * @param value The integer to write
+	 */
+	public static void write(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Writes a non-negative integer to the supplied buffer as a varint.
+	 *
+	 * @param out The buffer to write to
+	 * @param value The integer to write
+	 */
+	public static void write(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Reads a varint from the supplied buffer. Note that a five byte varint can set the sign bit, so callers that
+	 * expect a non-negative value have to check for one.
+	 *
+	 * @param in The buffer to read from
+	 * @return The integer read
+	 * @throws IllegalArgumentException If the varint is longer than five bytes
+	 * @throws java.nio.BufferUnderflowException If the buffer ends in the middle of the varint
+	 */
+	public static int read(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint.");
+	}
+
+	/**
+	 * @param value A non-negative integer
+	 * @return The number of bytes the integer takes up as a varint
+	 */
+	public static int length(int value) {
+		int length = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,166 @@
+package ss.linearlogic.christmascrashers.world;
+
+import ss.linearlogic.christmascrashers.object.ObjectType;
+
+/**
+ * A fixed-size square block of tiles within a {@link Level}. Levels store their tiles as a sparse map of chunks, so
+ * regions of a level that contain nothing but air do not need a chunk at all.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class Chunk {
+
+	/**
+	 * The base-2 logarithm of the chunk {@link #SIZE}, used to convert tile coordinates to chunk coordinates
+	 */
+	public static final int SHIFT = 5;
+
+	/**
+	 * The width and height, in tiles, of every chunk
+	 */
+	public static final int SIZE = 1 << SHIFT;
+
+	/**
+	 * Bit mask that converts a tile coordinate into a coordinate within its chunk
+	 */
+	public static final int MASK = SIZE - 1;
+
+	/**
+	 * The number of tiles in a chunk
+	 */
+	public static final int AREA = SIZE * SIZE;
+
+	/**
+	 * The chunk x-coordinate (the tile x-coordinate of the chunk's left column divided by {@link #SIZE})
+	 */
+	private final int x;
+
+	/**
+	 * The chunk y-coordinate (the tile y-coordinate of the chunk's bottom row divided by {@link #SIZE})
+	 */
+	private final int y;
+
+	/**
+	 * The {@link ObjectType} ordinals of the tiles in the chunk, stored row by row starting from the bottom row
+	 */
+	private final byte[] tiles;
+
+	/**
+	 * Whether the chunk has been modified since it was last loaded from or written to the disk
+	 */
+	private volatile boolean dirty;
+
+	/**
+	 * The number of times a tile of the chunk has been set, which render and collision caches built from the chunk's
+	 * tiles compare against to find out whether they are stale
+	 */
+	private volatile int revision;
+
+	/**
+	 * Creates an empty (all air) chunk at the specified chunk coordinates.
+	 *
+	 * @param x The chunk {@link #x}-coordinate
+	 * @param y The chunk {@link #y}-coordinate
+	 */
+	public Chunk(int x, int y) {
+		this(x, y, new byte[AREA]);
+	}
+
+	/**
+	 * Creates a chunk at the specified chunk coordinates that uses the supplied array as its tile storage.
+	 *
+	 * @param x The chunk {@link #x}-coordinate
+	 * @param y The chunk {@link #y}-coordinate
+	 * @param tiles The chunk's {@link #tiles}, which must contain {@link #AREA} entries
+	 */
+	public Chunk(int x, int y, byte[] tiles) {
+		this.x = x;
+		this.y = y;
+		this.tiles = tiles;
+	}
+
+	/**
+	 * @param localX The x-coordinate of the tile within the chunk
+	 * @param localY The y-coordinate of the tile within the chunk
+	 * @return The ordinal of the {@link ObjectType} of the specified tile
+	 */
+	public byte getTile(int localX, int localY) {
+		return tiles[(localY << SHIFT) | localX];
+	}
+
+	/**
+	 * Sets the {@link ObjectType} ordinal of the specified tile.
+	 *
+	 * @param localX The x-coordinate of the tile within the chunk
+	 * @param localY The y-coordinate of the tile within the chunk
+	 * @param ordinal The new type ordinal
+	 */
+	public void setTile(int localX, int localY, byte ordinal) {
+		tiles[(localY << SHIFT) | localX] = ordinal;
+		revision++;
+	}
+
+	/**
+	 * Marks the chunk dirty and bumps its {@link #revision} once, after its {@link #tiles} array has been written to
+	 * directly by a bulk edit.
+	 */
+	void modified() {
+		dirty = true;
+		revision++;
+	}
+
+	/**
+	 * @return The chunk's {@link #revision}, which changes whenever one of its tiles is set
+	 */
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @return True iff every tile in the chunk is air
+	 */
+	public boolean isEmpty() {
+		for (byte tile : tiles)
+			if (tile != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return Whether the chunk has been modified since it was last loaded from or written to the disk
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Sets whether the chunk has been modified since it was last loaded from or written to the disk
+	 *
+	 * @param dirty
+	 */
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	/**
+	 * @return The chunk {@link #x}-coordinate
+	 */
+	public int getX() {
+		return x;
+	}
+
+	/**
+	 * @return The chunk {@link #y}-coordinate
+	 */
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return The chunk's backing {@link #tiles} array (not a copy)
+	 */
+	public byte[] getTiles() {
+		return tiles;
+	}
+}
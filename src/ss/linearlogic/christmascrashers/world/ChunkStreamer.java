@@ -0,0 +1,557 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.util.vector.Vector2f;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.entity.Entity;
+import ss.linearlogic.christmascrashers.object.Object;
+
+/**
+ * Streams a {@link Level Level's} {@link Chunk chunks} in from its data file around a focus {@link Entity} (normally
+ * the player), so that only the part of the level near the entity needs to be held in memory.
+ * <p>Each {@link #update(Entity)} schedules the chunks within the {@link #radius} of the entity to be loaded on a
+ * background thread, prefetching further ahead in the entity's direction of travel (taken from its
+ * {@link Entity#getMovementVector() movement vector}). Resident chunks are kept in an LRU cache bounded by a memory
+ * budget, and chunks that fall outside the radius or out of the cache are evicted, being written back to the data
+ * file first if they have been modified. Write-backs go through the file's crash-safe
+ * {@link LevelFile#writeChunks(java.util.List) batch write}, so the data file is never left half updated. A chunk that
+ * is accessed before it has been streamed in is loaded synchronously.
+ * <p>Hit, miss and load-latency counters are kept to help size the cache.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class ChunkStreamer {
+
+	/**
+	 * The default streaming radius, in chunks
+	 */
+	public static final int DEFAULT_RADIUS = 2;
+
+	/**
+	 * The default memory budget for resident chunks, in bytes
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 4L * 1024 * 1024;
+
+	/**
+	 * The level whose chunks are streamed
+	 */
+	private final Level level;
+
+	/**
+	 * The level's open data file
+	 */
+	private final LevelFile file;
+
+	/**
+	 * The single background thread that loads chunks and writes evicted chunks back. Using a single thread keeps
+	 * the write-back of an evicted chunk ordered before any later load of the same chunk.
+	 */
+	private final ExecutorService loader;
+
+	/**
+	 * The radius, in chunks, around the focus entity within which chunks are kept resident
+	 */
+	private int radius;
+
+	/**
+	 * The maximum number of resident chunks, derived from the memory budget
+	 */
+	private int capacity;
+
+	/**
+	 * The resident chunks in least-recently-used order, keyed by chunk index
+	 */
+	private final LinkedHashMap<Integer, Chunk> resident = new LinkedHashMap<Integer, Chunk>(64, 0.75f, true);
+
+	/**
+	 * The indices of chunks queued for loading on the {@link #loader} thread
+	 */
+	private final HashSet<Integer> pendingLoads = new HashSet<Integer>();
+
+	/**
+	 * Evicted chunks whose write-back has been queued but not yet completed (or has failed, in which case it is
+	 * retried by the next {@link #flush()}), keyed by chunk index. Chunks are reloaded from here rather than from the
+	 * disk until their write-back completes.
+	 */
+	private final HashMap<Integer, Chunk> pendingWrites = new HashMap<Integer, Chunk>();
+
+	/**
+	 * Whether the streamer has been {@link #discard() discarded}, after which nothing more is written to the data file
+	 */
+	private volatile boolean discarded;
+
+	/**
+	 * The number of chunk requests that found the chunk already resident
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * The number of chunk requests that found the chunk not yet resident
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The number of chunks that had to be loaded synchronously because they were accessed before being streamed in
+	 */
+	private final AtomicLong blockingLoads = new AtomicLong();
+
+	/**
+	 * The number of chunks loaded from the disk
+	 */
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * The total time spent loading chunks from the disk, in nanoseconds
+	 */
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	/**
+	 * The number of chunks evicted from memory
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * The number of dirty chunks written back to the disk
+	 */
+	private final AtomicLong writeBacks = new AtomicLong();
+
+	/**
+	 * Opens the data file of the supplied level for streaming, with the default radius and memory budget. The
+	 * level's currently loaded chunks become the initial contents of the cache.
+	 *
+	 * @param level The level to stream
+	 * @throws IOException If the level's data file could not be opened
+	 */
+	public ChunkStreamer(Level level) throws IOException {
+		this(level, DEFAULT_RADIUS, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * Opens the data file of the supplied level for streaming. The level's currently loaded chunks become the
+	 * initial contents of the cache.
+	 *
+	 * @param level The level to stream
+	 * @param radius The {@link #radius}, in chunks, around the focus entity within which chunks are kept resident
+	 * @param memoryBudget The maximum number of bytes of tile data to keep resident
+	 * @throws IOException If the level's data file could not be opened
+	 */
+	public ChunkStreamer(Level level, int radius, long memoryBudget) throws IOException {
+		this.level = level;
+		this.file = new LevelFile(new File(level.getDiskLocation()), true);
+		this.radius = radius;
+		this.capacity = (int) Math.max(1, memoryBudget / Chunk.AREA);
+		this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ChunkStreamer-" + ChunkStreamer.this.level.getWorldID() + "-" + ChunkStreamer.this.level.getID());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		synchronized (this) {
+			for (Chunk chunk : level.getChunks())
+				resident.put(chunk.getY() * level.getChunksX() + chunk.getX(), chunk);
+		}
+	}
+
+	/**
+	 * Schedules the chunks around the supplied entity (and ahead of it in its direction of travel) to be loaded, and
+	 * evicts resident chunks outside the streaming radius. This method should be called once per frame from the
+	 * thread that modifies the level.
+	 *
+	 * @param focus The entity to stream chunks around
+	 */
+	public void update(Entity focus) {
+		int size = Object.TILE_SIZE * Chunk.SIZE;
+		int centerX = (int) Math.floor((focus.getPixelX() + focus.getSprite().getWidth() / 2) / size);
+		int centerY = (int) Math.floor((focus.getPixelY() + focus.getSprite().getHeight() / 2) / size);
+		for (int cy = centerY - radius; cy <= centerY + radius; cy++)
+			for (int cx = centerX - radius; cx <= centerX + radius; cx++)
+				request(cx, cy);
+
+		// Prefetch the chunks the entity is heading towards, one radius beyond the resident area
+		Vector2f movement = focus.getMovementVector();
+		int stepX = (int) Math.signum(movement.getX());
+		int stepY = (int) Math.signum(movement.getY());
+		if (stepX != 0)
+			for (int cy = centerY - radius; cy <= centerY + radius; cy++)
+				for (int d = 1; d <= radius; d++)
+					request(centerX + stepX * (radius + d), cy);
+		if (stepY != 0)
+			for (int cx = centerX - radius; cx <= centerX + radius; cx++)
+				for (int d = 1; d <= radius; d++)
+					request(cx, centerY + stepY * (radius + d));
+
+		// Evict the chunks outside the streaming area (keeping the prefetched ones) and trim the cache to its capacity
+		int reach = 2 * radius;
+		ArrayList<Chunk> evicted = new ArrayList<Chunk>();
+		synchronized (this) {
+			Iterator<Map.Entry<Integer, Chunk>> it = resident.entrySet().iterator();
+			while (it.hasNext()) {
+				Chunk chunk = it.next().getValue();
+				if (Math.abs(chunk.getX() - centerX) > reach || Math.abs(chunk.getY() - centerY) > reach || resident.size() - evicted.size() > capacity) {
+					evicted.add(chunk);
+					it.remove();
+				}
+			}
+		}
+		for (Chunk chunk : evicted)
+			evict(chunk);
+	}
+
+	/**
+	 * Records a request for the specified chunk, scheduling it to be loaded if it isn't resident.
+	 */
+	private void request(int cx, int cy) {
+		if (cx < 0 || cx >= level.getChunksX() || cy < 0 || cy >= level.getChunksY())
+			return;
+		final int index = cy * level.getChunksX() + cx;
+		synchronized (this) {
+			if (resident.containsKey(index) || !file.hasChunk(cx, cy) && !pendingWrites.containsKey(index)) {
+				hits.incrementAndGet();
+				return;
+			}
+			if (!pendingLoads.add(index)) // Already queued
+				return;
+			misses.incrementAndGet();
+		}
+		final int x = cx, y = cy;
+		loader.execute(new Runnable() {
+			public void run() {
+				synchronized (ChunkStreamer.this) {
+					if (!pendingLoads.remove(index) || resident.containsKey(index))
+						return;
+				}
+				load(x, y);
+			}
+		});
+	}
+
+	/**
+	 * Returns the specified chunk, loading it synchronously if it isn't resident. This method is called by the
+	 * {@link Level} when a chunk is accessed that hasn't been streamed in.
+	 *
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @return The chunk, or null if it is not stored in the data file (meaning it contains nothing but air)
+	 */
+	public Chunk fetch(int cx, int cy) {
+		int index = cy * level.getChunksX() + cx;
+		synchronized (this) {
+			Chunk chunk = resident.get(index);
+			if (chunk != null)
+				return chunk;
+			if (!file.hasChunk(cx, cy) && !pendingWrites.containsKey(index))
+				return null;
+		}
+		blockingLoads.incrementAndGet();
+		return load(cx, cy);
+	}
+
+	/**
+	 * Loads the specified chunk (from the pending write-backs if it is there, otherwise from the data file) and adds
+	 * it to the level and the cache.
+	 */
+	private Chunk load(int cx, int cy) {
+		int index = cy * level.getChunksX() + cx;
+		long start = System.nanoTime();
+		Chunk chunk;
+		synchronized (this) {
+			chunk = resident.get(index);
+			if (chunk != null)
+				return chunk;
+			chunk = pendingWrites.get(index);
+			if (chunk != null) {
+				resident.put(index, chunk);
+				level.putChunk(chunk);
+				return chunk;
+			}
+		}
+		try {
+			chunk = file.readChunk(cx, cy);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to stream chunk (" + cx + ", " + cy + ") of level " + level.getID() + " in world " + level.getWorldID() + ".");
+			return null;
+		}
+		loads.incrementAndGet();
+		loadNanos.addAndGet(System.nanoTime() - start);
+		if (chunk == null)
+			return null;
+		synchronized (this) {
+			Chunk existing = resident.get(index);
+			if (existing != null) // Loaded concurrently by another thread
+				return existing;
+			resident.put(index, chunk);
+			level.putChunk(chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Removes the supplied chunk from the level, queueing it to be written back to the data file first if it is dirty.
+	 */
+	private void evict(final Chunk chunk) {
+		final int index = chunk.getY() * level.getChunksX() + chunk.getX();
+		evictions.incrementAndGet();
+		if (!chunk.isDirty()) {
+			level.removeChunk(chunk);
+			return;
+		}
+		synchronized (this) {
+			pendingWrites.put(index, chunk);
+		}
+		level.removeChunk(chunk);
+		loader.execute(new Runnable() {
+			public void run() {
+				if (!writeBack(Collections.singletonList(chunk)))
+					return; // Kept pending, so that the next flush retries it
+				synchronized (ChunkStreamer.this) {
+					if (pendingWrites.get(index) == chunk)
+						pendingWrites.remove(index);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes copies of the supplied chunks to the data file in a single crash-safe batch, which is forced onto the
+	 * storage device before this method returns, and marks the chunks clean.
+	 *
+	 * @return False if the chunks could not be written (they are then left dirty)
+	 */
+	private boolean writeBack(Collection<Chunk> chunks) {
+		if (chunks.isEmpty())
+			return true;
+		if (discarded)
+			return false;
+		ArrayList<Chunk> copies = new ArrayList<Chunk>();
+		for (Chunk chunk : chunks) {
+			chunk.setDirty(false); // Cleared before copying, so that concurrent edits mark the chunk dirty again
+			copies.add(new Chunk(chunk.getX(), chunk.getY(), chunk.getTiles().clone()));
+		}
+		try {
+			file.writeChunks(copies);
+			writeBacks.addAndGet(copies.size());
+			return true;
+		} catch (IOException e) {
+			for (Chunk chunk : chunks)
+				chunk.setDirty(true);
+			e.printStackTrace();
+			System.err.println("Failed to write back " + copies.size() + " chunks of level " + level.getID() + " in world " + level.getWorldID() + ".");
+			return false;
+		}
+	}
+
+	/**
+	 * Waits for any queued write-backs to complete, then writes every dirty chunk that is resident (or whose
+	 * write-back failed) back to the data file in a single batch.
+	 *
+	 * @return True iff every modified chunk is now safely stored in the data file
+	 */
+	public boolean flush() {
+		try {
+			loader.submit(new Runnable() {
+				public void run() {
+				}
+			}).get(); // Wait for the write-backs queued before this call
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		HashMap<Integer, Chunk> dirty = new HashMap<Integer, Chunk>();
+		synchronized (this) {
+			for (Map.Entry<Integer, Chunk> entry : pendingWrites.entrySet())
+				if (entry.getValue().isDirty())
+					dirty.put(entry.getKey(), entry.getValue());
+			for (Map.Entry<Integer, Chunk> entry : resident.entrySet())
+				if (entry.getValue().isDirty())
+					dirty.put(entry.getKey(), entry.getValue());
+		}
+		if (!writeBack(dirty.values()))
+			return false;
+		synchronized (this) {
+			for (Map.Entry<Integer, Chunk> entry : dirty.entrySet())
+				if (pendingWrites.get(entry.getKey()) == entry.getValue())
+					pendingWrites.remove(entry.getKey());
+		}
+		return true;
+	}
+
+	/**
+	 * {@link #flush() Flushes} the dirty chunks, stops the background thread and closes the data file. The level
+	 * keeps whichever chunks are resident.
+	 */
+	public void close() {
+		flush();
+		loader.shutdown();
+		try {
+			loader.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		file.close();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Closed chunk streamer for level " + level.getID() + " in world " + level.getWorldID() + ": " + getStatistics());
+	}
+
+	/**
+	 * Stops the background thread and closes the data file without writing anything back: queued loads and
+	 * write-backs are dropped, and the modifications of the dirty chunks (resident or evicted) are lost. Used when the
+	 * level's unsaved modifications are being discarded.
+	 */
+	public void discard() {
+		discarded = true;
+		loader.shutdownNow();
+		try {
+			loader.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			pendingLoads.clear();
+			pendingWrites.clear();
+		}
+		file.close();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Discarded chunk streamer for level " + level.getID() + " in world " + level.getWorldID() + ": " + getStatistics());
+	}
+
+	/**
+	 * @return True iff any chunk has been modified since it was streamed in and not yet written back, whether it is
+	 * resident or has been evicted
+	 */
+	public synchronized boolean isDirty() {
+		if (!pendingWrites.isEmpty())
+			return true;
+		for (Chunk chunk : resident.values())
+			if (chunk.isDirty())
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @return True iff the specified chunk is stored in the data file (or awaiting write-back)
+	 */
+	public synchronized boolean isStored(int cx, int cy) {
+		return file.hasChunk(cx, cy) || pendingWrites.containsKey(cy * level.getChunksX() + cx);
+	}
+
+	/**
+	 * Adds a chunk created by the level (for a previously empty region) to the cache.
+	 *
+	 * @param chunk
+	 */
+	synchronized void track(Chunk chunk) {
+		resident.put(chunk.getY() * level.getChunksX() + chunk.getX(), chunk);
+	}
+
+	/**
+	 * @return The {@link #radius}, in chunks, around the focus entity within which chunks are kept resident
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Sets the {@link #radius}, in chunks, around the focus entity within which chunks are kept resident
+	 *
+	 * @param radius
+	 */
+	public void setRadius(int radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of tile data to keep resident
+	 *
+	 * @param memoryBudget
+	 */
+	public synchronized void setMemoryBudget(long memoryBudget) {
+		capacity = (int) Math.max(1, memoryBudget / Chunk.AREA);
+	}
+
+	/**
+	 * @return The number of resident chunks
+	 */
+	public synchronized int getResidentCount() {
+		return resident.size();
+	}
+
+	/**
+	 * @return The number of chunk requests that found the chunk already resident
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of chunk requests that found the chunk not yet resident
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of chunks that had to be loaded synchronously because they were accessed before being streamed in
+	 */
+	public long getBlockingLoads() {
+		return blockingLoads.get();
+	}
+
+	/**
+	 * @return The number of chunks loaded from the disk
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * @return The average time taken to load a chunk from the disk, in milliseconds
+	 */
+	public double getAverageLoadMillis() {
+		long count = loads.get();
+		return count == 0 ? 0 : loadNanos.get() / 1000000.0 / count;
+	}
+
+	/**
+	 * @return The number of chunks evicted from memory
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The number of dirty chunks written back to the disk
+	 */
+	public long getWriteBacks() {
+		return writeBacks.get();
+	}
+
+	/**
+	 * @return A summary of the streaming counters
+	 */
+	public String getStatistics() {
+		return getHits() + " hits, " + getMisses() + " misses, " + getBlockingLoads() + " blocking loads, " + getLoads() + " loads (avg "
+				+ String.format("%.3f", getAverageLoadMillis()) + " ms), " + getEvictions() + " evictions, " + getWriteBacks() + " write-backs, "
+				+ getResidentCount() + " resident chunks";
+	}
+}
@@ -0,0 +1,195 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.util.Arrays;
+
+import ss.linearlogic.christmascrashers.object.ObjectType;
+
+/**
+ * A packed bitmap of the solid (non-{@link ObjectType#isPenetrable() penetrable}) tiles of a {@link Level}, with one
+ * bit per tile and a long[] per row, so that collision probes are bit tests rather than chunk lookups.
+ * <p>Every level owns one map, which it keeps up to date as its tiles change: single tile edits set or clear a bit,
+ * and chunks that are loaded, bulk edited or replaced have their 32-tile row segments rewritten (a chunk row is
+ * exactly half a long word). Chunks that a {@link ChunkStreamer streaming} level evicts keep their bits, so the map
+ * always covers the whole level. Entities are handed the map by reference when they enter a level, and keep seeing
+ * the level's current tiles for as long as they hold it.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class CollisionMap {
+
+	/**
+	 * Whether each {@link ObjectType}, by ordinal, is solid
+	 */
+	private static final boolean[] SOLID = new boolean[Level.TYPES.length];
+
+	static {
+		for (ObjectType type : Level.TYPES)
+			SOLID[type.ordinal()] = !type.isPenetrable();
+	}
+
+	/**
+	 * The width, in tiles, of the mapped level
+	 */
+	private volatile int width;
+
+	/**
+	 * The solidity bits, by row (bit x & 63 of word x >> 6 of row y is set iff tile (x, y) is solid). The bits past
+	 * the level's width are never set, so bounds checks against the rows' lengths suffice.
+	 */
+	private volatile long[][] rows = new long[0][];
+
+	/**
+	 * Creates an empty map of a level of the specified size.
+	 *
+	 * @param width The {@link #width} of the level
+	 * @param height The height of the level
+	 */
+	CollisionMap(int width, int height) {
+		reset(width, height);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return True iff the tile at the specified location is solid (locations that are out of bounds are not)
+	 */
+	public boolean isSolid(int x, int y) {
+		long[][] rows = this.rows;
+		if (x < 0 || y < 0 || y >= rows.length || x >> 6 >= rows[y].length)
+			return false;
+		return (rows[y][x >> 6] & (1L << x)) != 0;
+	}
+
+	/**
+	 * @param x0 The x-coordinate of the first tile of the span
+	 * @param x1 The x-coordinate of the last tile of the span
+	 * @param y The y-coordinate of the row
+	 * @return True iff any tile of the row between the two x-coordinates (inclusive, in either order) is solid, testing
+	 * a word of the row at a time (the parts of the span outside the level are not solid)
+	 */
+	public boolean isAnySolidInRow(int x0, int x1, int y) {
+		long[][] rows = this.rows;
+		if (y < 0 || y >= rows.length)
+			return false;
+		long[] row = rows[y];
+		int from = Math.max(Math.min(x0, x1), 0), to = Math.min(Math.max(x0, x1), (row.length << 6) - 1);
+		if (from > to)
+			return false;
+		int firstWord = from >> 6, lastWord = to >> 6;
+		for (int word = firstWord; word <= lastWord; word++) {
+			long mask = -1L;
+			if (word == firstWord)
+				mask &= -1L << from;
+			if (word == lastWord)
+				mask &= -1L >>> (63 - (to & 63));
+			if ((row[word] & mask) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param x The x-coordinate of the column
+	 * @param y0 The y-coordinate of the first tile of the span
+	 * @param y1 The y-coordinate of the last tile of the span
+	 * @return True iff any tile of the column between the two y-coordinates (inclusive, in either order) is solid
+	 */
+	public boolean isAnySolidInColumn(int x, int y0, int y1) {
+		long[][] rows = this.rows;
+		if (x < 0 || rows.length == 0 || x >> 6 >= rows[0].length)
+			return false;
+		int from = Math.max(Math.min(y0, y1), 0), to = Math.min(Math.max(y0, y1), rows.length - 1);
+		long bit = 1L << x;
+		for (int y = from; y <= to; y++)
+			if ((rows[y][x >> 6] & bit) != 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return The width, in tiles, of the mapped level
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height, in tiles, of the mapped level
+	 */
+	public int getHeight() {
+		return rows.length;
+	}
+
+	/**
+	 * Updates the bit of a single tile after its type has changed.
+	 *
+	 * @param x
+	 * @param y
+	 * @param type The tile's new {@link ObjectType}
+	 */
+	void set(int x, int y, ObjectType type) {
+		long[][] rows = this.rows;
+		if (x < 0 || y < 0 || y >= rows.length || x >= width || x >> 6 >= rows[y].length)
+			return;
+		if (SOLID[type.ordinal()])
+			rows[y][x >> 6] |= 1L << x;
+		else
+			rows[y][x >> 6] &= ~(1L << x);
+	}
+
+	/**
+	 * Rewrites the bits of the tiles covered by a chunk from the chunk's tiles. Words whose bits are already correct
+	 * are not written, so chunks that are streamed back in unchanged leave the map untouched.
+	 *
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @param tiles The chunk's tiles, or null if the chunk is all air
+	 */
+	void update(int cx, int cy, byte[] tiles) {
+		long[][] rows = this.rows;
+		int word = cx >> 1;
+		int shift = (cx & 1) << Chunk.SHIFT;
+		long keep = ~(0xFFFFFFFFL << shift);
+		int top = Math.min(rows.length, (cy + 1) << Chunk.SHIFT);
+		int columns = Math.min(Chunk.SIZE, width - (cx << Chunk.SHIFT)); // The tiles past the level's width stay clear
+		for (int y = cy << Chunk.SHIFT; y < top; y++) {
+			long bits = 0;
+			if (tiles != null) {
+				int start = (y & Chunk.MASK) << Chunk.SHIFT;
+				for (int i = 0; i < columns; i++)
+					if (SOLID[tiles[start + i]])
+						bits |= 1L << i;
+			}
+			long[] row = rows[y];
+			if (word >= row.length)
+				return;
+			long updated = (row[word] & keep) | (bits << shift);
+			if (updated != row[word])
+				row[word] = updated;
+		}
+	}
+
+	/**
+	 * Clears every bit of the map.
+	 */
+	void clear() {
+		for (long[] row : rows)
+			Arrays.fill(row, 0);
+	}
+
+	/**
+	 * Resizes the map to the supplied dimensions and clears it.
+	 *
+	 * @param width The new {@link #width}
+	 * @param height The new height
+	 */
+	void reset(int width, int height) {
+		long[][] rows = new long[Math.max(height, 0)][];
+		int words = (Math.max(width, 0) + 63) >> 6;
+		for (int y = 0; y < rows.length; y++)
+			rows[y] = new long[words];
+		this.rows = rows;
+		this.width = width;
+	}
+}
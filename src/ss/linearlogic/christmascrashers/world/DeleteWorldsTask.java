@@ -1,12 +1,17 @@
 package ss.linearlogic.christmascrashers.world;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
 import ss.linearlogic.christmascrashers.util.FileMonkey;
+import ss.linearlogic.christmascrashers.util.FileOperation;
 
 /**
- * Starts a new thread that deletes the directories and files of the {@link World} objects provided in the {@link #DeleteWorldsTask(World[]) constructor}.
+ * Deletes the directories and files of the {@link World} objects provided in the {@link #DeleteWorldsTask(World[]) constructor}.
+ * Run by the {@link WorldIOScheduler}.
  * 
  * @author LinearLogic
  * @since 0.2.4
@@ -19,14 +24,41 @@ public class DeleteWorldsTask implements Runnable {
 	private World[] worldsToDelete;
 
 	/**
-	 * Deletes the folders and files of the worlds in {@link #worldsToDelete}
+	 * The {@link FileOperation deletions} started by the task, one per world directory or archive, which can be polled
+	 * for progress while the task is running
+	 */
+	private volatile List<FileOperation> operations = Collections.emptyList();
+
+	/**
+	 * Deletes the folders and files of the worlds in {@link #worldsToDelete}, including the archives (and the journals
+	 * next to them) of packed worlds
 	 */
 	public void run() {
 		if (ChristmasCrashers.isDebugModeEnabled())	
 			System.out.println("Starting a new DeleteWorldsTask...");
+		ArrayList<FileOperation> deletions = new ArrayList<FileOperation>();
 		for (World world : this.worldsToDelete) {
-			FileMonkey.delete(new File(world.getDiskLocation()));
+			File worldDir = new File(world.getDiskLocation());
+			if (worldDir.exists())
+				deletions.add(FileMonkey.deleteAsync(worldDir));
+			File archiveFile = new File(world.getArchiveLocation());
+			if (archiveFile.exists()) {
+				for (int levelID : world.getLevelIDs())
+					new File(archiveFile.getPath() + ".level" + levelID + LevelJournal.EXTENSION).delete();
+				deletions.add(FileMonkey.deleteAsync(archiveFile));
+			}
+		}
+		operations = deletions;
+		long files = 0, bytes = 0;
+		boolean cancelled = false;
+		for (FileOperation deletion : deletions) { // The worlds are deleted in parallel
+			if (!deletion.join())
+				cancelled = true;
+			files += deletion.getFilesProcessed();
+			bytes += deletion.getBytesProcessed();
 		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Deleted " + files + " files (" + bytes + " bytes) of " + worldsToDelete.length + " worlds" + (cancelled ? " before the deletion was cancelled." : "."));
 	}
 
 	/**
@@ -37,4 +69,11 @@ public class DeleteWorldsTask implements Runnable {
 	public DeleteWorldsTask(World[] worlds) {
 		this.worldsToDelete = worlds;
 	}
+
+	/**
+	 * @return The {@link #operations} started by the task (empty until the task has started)
+	 */
+	public List<FileOperation> getOperations() {
+		return operations;
+	}
 }
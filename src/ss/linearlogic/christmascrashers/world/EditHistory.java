@@ -0,0 +1,341 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.object.ObjectType;
+
+/**
+ * The undo/redo history of the edits made to a {@link Level} in the Level Editor.
+ * <p>Edits are made through the history's {@link #setType(int, int, ObjectType)} method, which applies them to the
+ * level and records them as part of the current stroke. When the stroke {@link #endStroke() ends} (the mouse button
+ * is released), its edits are coalesced - a tile edited several times keeps only its first old type and its last new
+ * type - and stored as a single {@link LevelPatch}, so a stroke costs a few bytes per run of changed tiles. Undoing or
+ * redoing a stroke applies its patch (or its inverse) through {@link Level#setType(int, int, ObjectType)}, which
+ * takes time proportional to the size of the stroke, journals the changes, and bumps the {@link Chunk#getRevision()
+ * revision} of only the chunks the stroke touched, so only their render and collision caches are rebuilt.
+ * <p>Bulk {@link RegionEdit region edits} (fills and pastes) are {@link #apply(RegionEdit) recorded} as a stroke each.
+ * <p>The history is kept within a memory budget; once the strokes take up more than the budget, the oldest ones are
+ * dropped.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class EditHistory {
+
+	/**
+	 * The default {@link #memoryBudget}, in bytes
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 1024 * 1024;
+
+	/**
+	 * The estimated number of bytes each stroke takes up in addition to its encoded patch
+	 */
+	private static final int STROKE_OVERHEAD = 64;
+
+	/**
+	 * The level whose edits are recorded
+	 */
+	private final Level level;
+
+	/**
+	 * The strokes that can be undone, most recent last
+	 */
+	private final ArrayDeque<Stroke> undoStack = new ArrayDeque<Stroke>();
+
+	/**
+	 * The strokes that have been undone and can be redone, most recently undone last
+	 */
+	private final ArrayDeque<Stroke> redoStack = new ArrayDeque<Stroke>();
+
+	/**
+	 * The maximum number of bytes the recorded strokes may take up
+	 */
+	private long memoryBudget;
+
+	/**
+	 * The number of bytes the recorded strokes currently take up
+	 */
+	private long memoryUsage;
+
+	/**
+	 * The edits of the current stroke, each packed as its tile's patch position (high 32 bits) and its index in the
+	 * stroke (low 32 bits), so that sorting them groups the edits of each tile in the order they were made
+	 */
+	private long[] strokeKeys = new long[64];
+
+	/**
+	 * The old type ordinals of the current stroke's edits, by edit index
+	 */
+	private byte[] strokeOldTypes = new byte[64];
+
+	/**
+	 * The new type ordinals of the current stroke's edits, by edit index
+	 */
+	private byte[] strokeNewTypes = new byte[64];
+
+	/**
+	 * The number of edits in the current stroke
+	 */
+	private int strokeLength;
+
+	/**
+	 * Creates an empty history for the supplied level, with the {@link #DEFAULT_MEMORY_BUDGET default} memory budget.
+	 *
+	 * @param level The {@link #level} whose edits will be recorded
+	 */
+	public EditHistory(Level level) {
+		this(level, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * Creates an empty history for the supplied level.
+	 *
+	 * @param level The {@link #level} whose edits will be recorded
+	 * @param memoryBudget The maximum number of bytes the recorded strokes may take up
+	 */
+	public EditHistory(Level level, long memoryBudget) {
+		this.level = level;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the type of the specified tile of the level, recording the edit as part of the current stroke (a stroke
+	 * is started if none is in progress). Locations that are out of bounds are ignored.
+	 *
+	 * @param x
+	 * @param y
+	 * @param type The new {@link ObjectType} of the tile
+	 */
+	public void setType(int x, int y, ObjectType type) {
+		ObjectType oldType = level.getType(x, y);
+		if (oldType == null || oldType == type)
+			return;
+		level.setType(x, y, type);
+		if (strokeLength == strokeKeys.length) {
+			strokeKeys = Arrays.copyOf(strokeKeys, strokeLength * 2);
+			strokeOldTypes = Arrays.copyOf(strokeOldTypes, strokeLength * 2);
+			strokeNewTypes = Arrays.copyOf(strokeNewTypes, strokeLength * 2);
+		}
+		strokeKeys[strokeLength] = (long) LevelPatch.position(level, x, y) << 32 | strokeLength;
+		strokeOldTypes[strokeLength] = (byte) oldType.ordinal();
+		strokeNewTypes[strokeLength++] = (byte) type.ordinal();
+	}
+
+	/**
+	 * Ends the current stroke, coalescing its edits into a single undoable entry and clearing the redo stack.
+	 *
+	 * @return True iff the stroke changed any tiles and was recorded
+	 */
+	public boolean endStroke() {
+		if (strokeLength == 0)
+			return false;
+		Arrays.sort(strokeKeys, 0, strokeLength);
+		LevelPatch.RunWriter writer = new LevelPatch.RunWriter();
+		for (int i = 0; i < strokeLength;) {
+			int position = (int) (strokeKeys[i] >>> 32);
+			byte oldType = strokeOldTypes[(int) strokeKeys[i]];
+			int last = i;
+			while (last + 1 < strokeLength && (int) (strokeKeys[last + 1] >>> 32) == position)
+				last++;
+			byte newType = strokeNewTypes[(int) strokeKeys[last]];
+			if (oldType != newType)
+				writer.add(position, oldType, newType);
+			i = last + 1;
+		}
+		strokeLength = 0;
+		return record(writer.finish(level.getWidth(), level.getHeight()));
+	}
+
+	/**
+	 * Applies a bulk {@link RegionEdit} to the level and records it as a single stroke (ending the current stroke
+	 * first, if one is in progress).
+	 *
+	 * @param edit An edit of the history's level
+	 * @return The number of tiles changed
+	 */
+	public int apply(RegionEdit edit) {
+		if (edit.getLevel() != level)
+			throw new IllegalArgumentException("Cannot record an edit of another level.");
+		endStroke();
+		LevelPatch patch = edit.apply();
+		record(patch);
+		return patch.getTileCount();
+	}
+
+	/**
+	 * @return True iff edits have been made since the last stroke ended
+	 */
+	public boolean isStrokeInProgress() {
+		return strokeLength > 0;
+	}
+
+	/**
+	 * Undoes the most recent stroke (ending the current stroke first, if one is in progress).
+	 *
+	 * @return True iff a stroke was undone
+	 */
+	public boolean undo() {
+		endStroke();
+		return move(undoStack, redoStack, true);
+	}
+
+	/**
+	 * Redoes the most recently undone stroke.
+	 *
+	 * @return True iff a stroke was redone
+	 */
+	public boolean redo() {
+		endStroke();
+		return move(redoStack, undoStack, false);
+	}
+
+	/**
+	 * @return True iff there is a stroke to {@link #undo()}
+	 */
+	public boolean canUndo() {
+		return !undoStack.isEmpty() || strokeLength > 0;
+	}
+
+	/**
+	 * @return True iff there is a stroke to {@link #redo()}
+	 */
+	public boolean canRedo() {
+		return !redoStack.isEmpty();
+	}
+
+	/**
+	 * Forgets every recorded stroke. The edits of the current stroke, if any, are kept in the level but can no longer
+	 * be undone.
+	 */
+	public void clear() {
+		strokeLength = 0;
+		clear(undoStack);
+		clear(redoStack);
+	}
+
+	/**
+	 * @return The level whose edits are recorded
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The number of bytes the recorded strokes currently take up
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * @return The maximum number of bytes the recorded strokes may take up
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the maximum number of bytes the recorded strokes may take up, dropping the oldest strokes if they no longer
+	 * fit.
+	 *
+	 * @param memoryBudget
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		trim();
+	}
+
+	/**
+	 * Records a finished stroke, clearing the redo stack.
+	 *
+	 * @return True iff the stroke changed any tiles and was recorded
+	 */
+	private boolean record(LevelPatch patch) {
+		if (patch.isEmpty())
+			return false;
+		clear(redoStack);
+		push(undoStack, new Stroke(patch, level.getGeneration()));
+		trim();
+		return true;
+	}
+
+	/**
+	 * Applies the most recent stroke of one stack to the level (inverted when undoing) and moves it to the other
+	 * stack. If the level no longer holds the tiles the stroke expects - its contents were replaced by a
+	 * {@link LevelWatcher reload}, for instance - the history is cleared instead.
+	 */
+	private boolean move(ArrayDeque<Stroke> from, ArrayDeque<Stroke> to, boolean undo) {
+		Stroke stroke = from.peekLast();
+		if (stroke == null)
+			return false;
+		if (stroke.generation != level.getGeneration() || !stroke.patch.matches(level, undo)) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Level " + level.getID() + " in world " + level.getWorldID() + " was changed outside the editor - clearing its edit history.");
+			clear();
+			return false;
+		}
+		stroke.patch.apply(level, undo);
+		memoryUsage -= from.removeLast().size();
+		push(to, stroke);
+		return true;
+	}
+
+	/**
+	 * Drops the oldest strokes until the history fits within its {@link #memoryBudget}. The redo stack is emptied
+	 * before any stroke that can still be undone is dropped.
+	 */
+	private void trim() {
+		while (memoryUsage > memoryBudget && !redoStack.isEmpty())
+			memoryUsage -= redoStack.removeFirst().size();
+		while (memoryUsage > memoryBudget && !undoStack.isEmpty())
+			memoryUsage -= undoStack.removeFirst().size();
+	}
+
+	/**
+	 * Pushes a stroke onto one of the stacks, accounting for its memory.
+	 */
+	private void push(ArrayDeque<Stroke> stack, Stroke stroke) {
+		stack.addLast(stroke);
+		memoryUsage += stroke.size();
+	}
+
+	/**
+	 * Empties one of the stacks, accounting for its memory.
+	 */
+	private void clear(ArrayDeque<Stroke> stack) {
+		for (Stroke stroke : stack)
+			memoryUsage -= stroke.size();
+		stack.clear();
+	}
+
+	/**
+	 * A recorded stroke: the patch of its coalesced edits and the level {@link Level#getGeneration() generation} it
+	 * was made in.
+	 */
+	private static class Stroke {
+
+		/**
+		 * The stroke's edits, with the old and new types of each tile
+		 */
+		private final LevelPatch patch;
+
+		/**
+		 * The level generation the stroke was made in
+		 */
+		private final int generation;
+
+		private Stroke(LevelPatch patch, int generation) {
+			this.patch = patch;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return The estimated number of bytes the stroke takes up
+		 */
+		private long size() {
+			return patch.getEncodedLength() + STROKE_OVERHEAD;
+		}
+	}
+}
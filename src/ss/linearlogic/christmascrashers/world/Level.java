@@ -1,11 +1,15 @@
 package ss.linearlogic.christmascrashers.world;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
 import ss.linearlogic.christmascrashers.engine.GLGuru;
@@ -14,25 +18,32 @@ import ss.linearlogic.christmascrashers.object.Object;
 import ss.linearlogic.christmascrashers.object.ObjectType;
 
 /**
- * Levels are what the player moves through and contain a 2D array of blocks and entities, with which the player
- * interacts while travelling around the level. All levels are fixed size, namely 640 by 320 tiles.
+ * Levels are what the player moves through and contain a 2D grid of blocks and entities, with which the player
+ * interacts while travelling around the level. Levels can be any size - their tiles are stored as a sparse map of
+ * {@link Chunk chunks}, and regions of a level that contain nothing but air have no chunk at all. Levels created from
+ * scratch are {@link #DEFAULT_WIDTH} by {@link #DEFAULT_HEIGHT} tiles.
  * <p>Levels contain waypoints, including teleport checkpoint/respawn locations,
  * and are bundled together in groups called {@link World Worlds}.
- * 
+ *
  * @author LinearLogic
  * @since 0.2.1
  */
 public class Level {
 
 	/**
-	 * The width, in tiles, of the level
+	 * The width, in tiles, of newly created levels (and of levels stored in the legacy text format)
 	 */
-	public static final int WIDTH = 64;
+	public static final int DEFAULT_WIDTH = 64;
 
 	/**
-	 * The height, in tiles, of the level
+	 * The height, in tiles, of newly created levels (and of levels stored in the legacy text format)
+	 */
+	public static final int DEFAULT_HEIGHT = 32;
+
+	/**
+	 * The {@link ObjectType} values, indexed by the ordinals stored in {@link Chunk chunks} and level data files
 	 */
-	public static final int HEIGHT = 32;
+	static final ObjectType[] TYPES = ObjectType.values();
 
 	/**
 	 * The level's unique integer ID value, which servers as a means of differentiating it from other levels in the
@@ -46,135 +57,714 @@ public class Level {
 	private int worldID;
 
 	/**
-	 * A 2D Array of all the in-game {@link Object objects}
+	 * The width, in tiles, of the level
+	 */
+	private int width;
+
+	/**
+	 * The height, in tiles, of the level
+	 */
+	private int height;
+
+	/**
+	 * The width, in chunks, of the level
+	 */
+	private int chunksX;
+
+	/**
+	 * The height, in chunks, of the level
+	 */
+	private int chunksY;
+
+	/**
+	 * The level's {@link Chunk chunks}, keyed by chunk index (chunk y-coordinate * {@link #chunksX} + chunk x-coordinate).
+	 * Chunks that contain nothing but air may be missing from the map, as may chunks that have not been streamed in
+	 * yet if the level is {@link #startStreaming() streaming}. {@link Object} instances are only created as
+	 * views onto the chunks, by the {@link #getObject(int, int)} method.
+	 */
+	private ConcurrentHashMap<Integer, Chunk> chunks = new ConcurrentHashMap<Integer, Chunk>();
+
+	/**
+	 * The packed bitmap of the level's solid tiles, kept up to date as the level's tiles change
+	 */
+	private final CollisionMap collisionMap = new CollisionMap(0, 0);
+
+	/**
+	 * The {@link ChunkStreamer} that loads the level's chunks on demand, or null if the level is fully loaded
+	 */
+	private ChunkStreamer streamer;
+
+	/**
+	 * Whether the level's data file has to be rewritten in full on the next save (because the level was loaded from
+	 * a legacy or outdated file, or has been reset), rather than only having its {@link Chunk#isDirty() dirty} chunks written
+	 */
+	private volatile boolean rewriteRequired = true;
+
+	/**
+	 * The {@link LevelJournal} that tile edits are recorded in until the level is saved, or null if edits are not journaled
+	 */
+	private volatile LevelJournal journal;
+
+	/**
+	 * Whether the level's contents are in memory. Levels in a {@link World world's} index are created unloaded and
+	 * are only loaded the first time they are retrieved, and may be {@link #unload() unloaded} again to free memory.
+	 */
+	private volatile boolean loaded = true;
+
+	/**
+	 * The time, in milliseconds, at which the level was last retrieved from its world
+	 */
+	private volatile long lastAccessTime = System.currentTimeMillis();
+
+	/**
+	 * The {@link WorldArchive} the level is stored in if its world is packed, or null if the level is stored in its
+	 * own data file in the world directory
+	 */
+	private volatile WorldArchive archive;
+
+	/**
+	 * The number of times the level's contents have been replaced by a {@link LevelWatcher reload}, which caches
+	 * derived from the level's tiles can compare against to find out whether they are stale
 	 */
-	private Object[][] objects = new Object[WIDTH][HEIGHT];
+	private volatile int generation;
 
 	/**
-	 * Constructor - creates a Level object with the given world name and ID. The level's contents are not loaded separately, by
-	 * calling the {@link #load()} method (if the level is being made from scratch in the Level Editor, this call will not be made).
-	 * 
+	 * Constructor - creates a Level object with the given world name and ID and the {@link #DEFAULT_WIDTH default}
+	 * dimensions. The level's contents are not loaded separately, by calling the {@link #load()} method (if the level
+	 * is being made from scratch in the Level Editor, this call will not be made).
+	 *
 	 * @param worldID The ID of the world the level will belong to
 	 * @param ID The level's unique {@link #ID} value
 	 */
 	public Level(int worldID, int ID) {
+		this(worldID, ID, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	/**
+	 * Constructor - creates an empty Level object with the given world name, ID and dimensions. Note that loading the
+	 * level replaces its dimensions with those stored in its data file.
+	 *
+	 * @param worldID The ID of the world the level will belong to
+	 * @param ID The level's unique {@link #ID} value
+	 * @param width The {@link #width}, in tiles, of the level
+	 * @param height The {@link #height}, in tiles, of the level
+	 */
+	public Level(int worldID, int ID, int width, int height) {
 		this.worldID = worldID;
 		this.ID = ID;
-		for (int i = 0; i < WIDTH; i++) {
-			for (int j = 0; j < HEIGHT; j++) {
-				objects[i][j] = new Object(this, i, j, ObjectType.AIR);
-			}
-		}
+		reset(width, height);
 	}
 
 	/**
 	 * Renders the level, drawing all the object tiles within the current camera view
 	 */
 	public void draw() {
-		int leftBound = (int) Math.floor(GLGuru.getXDisplacement() / Object.TILE_SIZE);
-		int rightBound = (int) Math.ceil((GLGuru.getXDisplacement() + ChristmasCrashers.getWindowWidth()) / Object.TILE_SIZE);
-		int bottomBound = (int) Math.floor(GLGuru.getYDisplacement() / Object.TILE_SIZE);
-		int topBound = (int) Math.ceil((GLGuru.getYDisplacement() + ChristmasCrashers.getWindowHeight()) / Object.TILE_SIZE);
-		
+		draw(Object.TILE_SIZE, 0, 0);
+	}
+
+	/**
+	 * Renders the object tiles within the current camera view at the specified tile size. Only the chunks that intersect
+	 * the view are visited.
+	 * <p>Rendering is strictly read-only: it never loads chunks from the level's {@link ChunkStreamer}, so chunks that
+	 * haven't been streamed in yet are skipped rather than read from disk on the render thread. This makes it safe to
+	 * call while the {@link ss.linearlogic.christmascrashers.state.Simulation simulation} streams chunks in and out, and
+	 * tile edits made through the chunk storage show up from the next frame on.
+	 *
+	 * @param tileSize The length and width, in pixels, at which to render each tile
+	 * @param rightMargin The width, in pixels, of the part of the window on the right that the level is not visible in
+	 * @param topMargin The height, in pixels, of the part of the window at the top that the level is not visible in
+	 */
+	public void draw(int tileSize, int rightMargin, int topMargin) {
+		int leftBound = (int) Math.floor(GLGuru.getXDisplacement() / tileSize);
+		int rightBound = (int) Math.ceil((GLGuru.getXDisplacement() + ChristmasCrashers.getWindowWidth() - rightMargin) / tileSize);
+		int bottomBound = (int) Math.floor(GLGuru.getYDisplacement() / tileSize);
+		int topBound = (int) Math.ceil((GLGuru.getYDisplacement() + ChristmasCrashers.getWindowHeight() - topMargin) / tileSize);
+
 		// ArrayIndexOutOfBoundsException prevention
 		if (leftBound < 0)
 			leftBound = 0;
-		if (rightBound >= WIDTH)
-			rightBound = WIDTH;
+		if (rightBound >= width)
+			rightBound = width;
 		if (bottomBound < 0)
 			bottomBound = 0;
-		if (topBound >= HEIGHT)
-			topBound = HEIGHT;
-		for (int i = leftBound; i < rightBound; i++)
-			for (int j = bottomBound; j < topBound; j++)
-				if(objects[i][j].getType().getTexture() != null)
-					RenderMonkey.renderTexturedRectangle(i * Object.TILE_SIZE, j * Object.TILE_SIZE, Object.TILE_SIZE, Object.TILE_SIZE, objects[i][j].getType().getTexture());
+		if (topBound >= height)
+			topBound = height;
+		if (leftBound >= rightBound || bottomBound >= topBound)
+			return;
+		for (int cy = bottomBound >> Chunk.SHIFT; cy <= (topBound - 1) >> Chunk.SHIFT; cy++) {
+			for (int cx = leftBound >> Chunk.SHIFT; cx <= (rightBound - 1) >> Chunk.SHIFT; cx++) {
+				Chunk chunk = chunks.get(cy * chunksX + cx); // Not getChunk(), which would fetch missing chunks
+				if (chunk == null)
+					continue;
+				byte[] tiles = chunk.getTiles();
+				int x0 = Math.max(leftBound, cx << Chunk.SHIFT), x1 = Math.min(rightBound, (cx + 1) << Chunk.SHIFT);
+				int y0 = Math.max(bottomBound, cy << Chunk.SHIFT), y1 = Math.min(topBound, (cy + 1) << Chunk.SHIFT);
+				for (int j = y0; j < y1; j++) {
+					for (int i = x0; i < x1; i++) {
+						byte tile = tiles[((j & Chunk.MASK) << Chunk.SHIFT) | (i & Chunk.MASK)];
+						if (tile != 0 && TYPES[tile].getTexture() != null)
+							RenderMonkey.renderTexturedRectangle(i * tileSize, j * tileSize, tileSize, tileSize, TYPES[tile].getTexture());
+					}
+				}
+			}
+		}
 	}
 
 	/**
-	 * Loads the level file (creating it if it doesn't exist) and reads from it to load the level's 2D array of blocks and entities.
+	 * Loads the level's data file and reads its dimensions and {@link Chunk chunks} into the level. If the level
+	 * has no binary data file but a legacy text file exists, the legacy file is read instead; if neither exists, an
+	 * empty data file is created. Levels in a packed world are read from their slice of the {@link WorldArchive}
+	 * instead. Any edits left in the level's {@link LevelJournal journal} are then replayed over
+	 * the loaded data, so that edits which were not saved before the game closed are recovered.
+	 * <p>If the data file can't be read, the level is left {@link #isLoaded() unloaded} (and its journal untouched),
+	 * so that it is never saved over the file - the file is read again the next time the level is retrieved.
 	 */
 	public void load() {
 		if (ChristmasCrashers.isDebugModeEnabled())
 			System.out.println("Loading level " + ID + " in world " + worldID + ".");
-		File dataFile = new File(getDiskLocation());
-		if (!dataFile.exists()) {
-			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("Data file for level " + ID + " in world " + worldID + " does not exist - creating it now.");
-			dataFile.mkdirs();
-			try {
-				dataFile.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.err.println("Failed to save level " + ID + " in world" + worldID + " - could not create data file.");
+		stopJournaling(); // Outside the lock, since the journal's commit thread may be saving the level
+		synchronized (this) {
+			discardStreaming();
+			if (!readDataFile()) {
+				chunks.clear();
+				collisionMap.clear();
+				loaded = false;
 				return;
 			}
+			replayJournal();
+			loaded = true;
 		}
-		Scanner sc = null;
+	}
+
+	/**
+	 * Releases the level's {@link Chunk chunks}, discarding any modifications that haven't been saved, so that the
+	 * level takes up next to no memory until it is {@link #load() loaded} again. Levels whose edits are being
+	 * {@link #startJournaling() journaled} should have their journals stopped first.
+	 */
+	public synchronized void unload() {
+		discardStreaming();
+		chunks.clear();
+		collisionMap.clear();
+		loaded = false;
+	}
+
+	/**
+	 * Reads the level's data file (or legacy data file) into the level, as described in {@link #load()}.
+	 *
+	 * @return False if the data file could not be read
+	 */
+	private boolean readDataFile() {
+		WorldArchive archive = this.archive;
+		if (archive != null)
+			return readArchive(archive);
+		File dataFile = new File(getDiskLocation());
+		File legacyFile = new File(getLegacyDiskLocation());
+		new File(dataFile.getPath() + LevelFormat.TEMP_SUFFIX).delete(); // Left behind if the game closed in the middle of a save
 		try {
-			sc = new Scanner(new File(getDiskLocation()));
-		} catch (FileNotFoundException e) {
+			if (dataFile.exists()) {
+				LevelFile.recover(dataFile);
+				if (LevelFormat.read(dataFile, this) == LevelFormat.VERSION) {
+					for (Chunk chunk : chunks.values())
+						chunk.setDirty(false);
+					rewriteRequired = false;
+				}
+			} else if (legacyFile.exists()) {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Reading legacy data file for level " + ID + " in world " + worldID + ".");
+				int malformed = LevelFormat.readLegacy(legacyFile, this);
+				if (malformed > 0)
+					System.err.println("[Warning] The legacy data file of level " + ID + " in world " + worldID + " has " + malformed + " malformed entries, which were loaded as air.");
+			} else {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Data file for level " + ID + " in world " + worldID + " does not exist - creating it now.");
+				save();
+			}
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			System.err.println("Failed to load level " + ID + " in world " + worldID + " - could not read data file.");
+			return false;
 		}
-		if (sc == null)
-			return;
-		if (!sc.hasNextLine()) {
+	}
+
+	/**
+	 * Reads the level's data from the supplied {@link WorldArchive}, creating it if the archive doesn't contain the level.
+	 *
+	 * @return False if the level's data in the archive could not be read
+	 */
+	private boolean readArchive(WorldArchive archive) {
+		ByteBuffer data = archive.getLevelData(ID);
+		if (data == null) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("[Warning] The data file for level " + ID + " in world + " + worldID + " is empty.");
-			return;
+				System.out.println("Level " + ID + " is not in the archive of world " + worldID + " - adding it now.");
+			save();
+			return true;
 		}
-		for (int j = HEIGHT - 1; j >= 0; j--) { // i and j appear in an inverted order to ensure that the data file reflects the objects as they appear in the rendered level
-			if (!sc.hasNextLine())
-				break;
-			String dataLine = sc.nextLine();
-			for (int i = 0; i < WIDTH; i++) {
-				if (i >= dataLine.length())
-					break;
-				ObjectType type = ObjectType.getTypeFromDataChar(dataLine.charAt(i));
-				objects[i][j] = new Object(this, i, j, type);
+		try {
+			if (LevelFormat.read(data, this) == LevelFormat.VERSION) {
+				for (Chunk chunk : chunks.values())
+					chunk.setDirty(false);
+				rewriteRequired = false;
 			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to load level " + ID + " in world " + worldID + " - could not read the world archive.");
+			return false;
 		}
 	}
 
 	/**
-	 * Saves the level's 2D Array of {@link Object objects} and entities to the level's data file, creating it if it doesn't exist.
+	 * Replays the edits left in the level's {@link LevelJournal journal} file, if any, over the level.
+	 */
+	private void replayJournal() {
+		File journalFile = new File(getJournalLocation());
+		if (!journalFile.exists())
+			return;
+		try {
+			int replayed = LevelJournal.replay(journalFile, this);
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Recovered " + replayed + " unsaved edits from the journal of level " + ID + " in world " + worldID + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to recover the unsaved edits of level " + ID + " in world " + worldID + " - could not read journal file.");
+		}
+	}
+
+	/**
+	 * Saves the level's dimensions and {@link Chunk chunks} to the level's binary data file, creating it if it doesn't exist.
+	 * Only the chunks that have been modified since the level was loaded or last saved are written, in place, unless the
+	 * file has to be {@link #rewriteRequired rewritten} in full. Levels that haven't been modified are skipped entirely.
+	 * Once the level has been saved, the edits recorded in its {@link LevelJournal journal} are discarded.
+	 * <p>Saves are crash-safe: a full rewrite is written to a temporary file that is atomically moved over the data
+	 * file, and modified chunks are written with a crash-safe {@link LevelFile#writeChunks(java.util.List) batch write}.
+	 * Levels in a packed world are saved by rewriting the {@link WorldArchive}, which is replaced just as atomically.
 	 */
 	public void save() {
+		save(true);
+	}
+
+	/**
+	 * Saves the level, as described in {@link #save()}.
+	 *
+	 * @param syncDirectory Whether to sync the world directory if the data file is replaced, making the replacement
+	 * durable ({@link World#save()} syncs the directory once after saving all of its levels instead)
+	 */
+	public synchronized void save(boolean syncDirectory) {
+		if (!loaded) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Skipping save of level " + ID + " in world " + worldID + " - level is not loaded.");
+			return;
+		}
+		LevelJournal journal = this.journal;
+		if (journal != null)
+			journal.mark();
+		boolean saved = write(syncDirectory);
+		if (journal != null) {
+			if (saved)
+				journal.truncate();
+			else
+				journal.unmark();
+		}
+	}
+
+	/**
+	 * Writes the level's modified {@link Chunk chunks} to its data file, as described in {@link #save()}.
+	 *
+	 * @param syncDirectory Whether to sync the world directory if the data file is replaced
+	 * @return Whether the level's data file is up to date
+	 */
+	private boolean write(boolean syncDirectory) {
+		if (streamer != null) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Saving the modified chunks of streamed level " + ID + " in world " + worldID + ".");
+			return streamer.flush();
+		}
+		WorldArchive archive = this.archive;
+		if (archive != null)
+			return writeArchive(archive, syncDirectory);
+		File dataFile = new File(getDiskLocation());
+		if (!isDirty() && dataFile.exists()) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Skipping save of level " + ID + " in world " + worldID + " - level has not been modified.");
+			return true;
+		}
 		if (ChristmasCrashers.isDebugModeEnabled())
 			System.out.println("Saving level " + ID + " in world " + worldID + ".");
-		File dataFile = new File(getDiskLocation());
-		if (!dataFile.exists()) {
-			System.out.println("Data file for level " + ID + " in world " + worldID + " does not exist - creating it now.");
-			dataFile.mkdirs();
+		if (!rewriteRequired && dataFile.exists()) {
 			try {
-				dataFile.createNewFile();
+				if (saveDirtyChunks(dataFile))
+					return true;
 			} catch (IOException e) {
 				e.printStackTrace();
-				System.err.println("Failed to save level " + ID + " in world" + worldID + " - could not create data file.");
-				return;
+				System.err.println("Failed to save the modified chunks of level " + ID + " in world " + worldID + " - rewriting the data file.");
+			}
+		}
+		if (!dataFile.getParentFile().exists())
+			dataFile.getParentFile().mkdirs();
+		try {
+			rewriteRequired = false;
+			for (Chunk chunk : chunks.values())
+				chunk.setDirty(false);
+			LevelFormat.writeAtomically(dataFile, this, syncDirectory);
+			return true;
+		} catch (IOException e) {
+			rewriteRequired = true;
+			e.printStackTrace();
+			System.err.println("Failed to save level " + ID + " in world " + worldID + " - could not write data file.");
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the level to the supplied {@link WorldArchive}, as described in {@link #save()}.
+	 *
+	 * @param archive The archive of the level's world
+	 * @param syncDirectory Whether to sync the archive's directory once the archive has been replaced
+	 * @return Whether the level's data in the archive is up to date
+	 */
+	private boolean writeArchive(WorldArchive archive, boolean syncDirectory) {
+		if (!isDirty() && archive.containsLevel(ID)) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Skipping save of level " + ID + " in world " + worldID + " - level has not been modified.");
+			return true;
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Saving level " + ID + " to the archive of world " + worldID + ".");
+		try {
+			rewriteRequired = false;
+			for (Chunk chunk : chunks.values())
+				chunk.setDirty(false);
+			archive.write(Collections.singletonList(this), syncDirectory);
+			return true;
+		} catch (IOException e) {
+			rewriteRequired = true;
+			e.printStackTrace();
+			System.err.println("Failed to save level " + ID + " in world " + worldID + " - could not write the world archive.");
+			return false;
+		}
+	}
+
+	/**
+	 * Writes copies of the level's {@link Chunk#isDirty() dirty} chunks to its existing data file in a single
+	 * crash-safe {@link LevelFile#writeChunks(java.util.List) batch write}.
+	 *
+	 * @param dataFile The level's data file
+	 * @return False if nothing was written because the file has accumulated enough superseded chunk data that it
+	 * should be rewritten in full instead
+	 * @throws IOException If the file could not be written or does not match the level's dimensions
+	 */
+	private boolean saveDirtyChunks(File dataFile) throws IOException {
+		LevelFile file = new LevelFile(dataFile, true);
+		ArrayList<Chunk> written = new ArrayList<Chunk>();
+		try {
+			if (file.getWidth() != width || file.getHeight() != height)
+				throw new IOException("Level file dimensions do not match the level.");
+			if (file.getDeadBytes() > dataFile.length() / 2) {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Data file of level " + ID + " in world " + worldID + " is more than half superseded chunk data - rewriting it.");
+				return false;
+			}
+			ArrayList<Chunk> copies = new ArrayList<Chunk>();
+			for (Chunk chunk : chunks.values()) {
+				if (!chunk.isDirty())
+					continue;
+				chunk.setDirty(false); // Cleared before copying, so that concurrent edits mark the chunk dirty again
+				written.add(chunk);
+				copies.add(new Chunk(chunk.getX(), chunk.getY(), chunk.getTiles().clone()));
+			}
+			file.writeChunks(copies);
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Wrote " + copies.size() + " modified chunks (" + file.getBytesWritten() + " bytes) of level " + ID + " in world " + worldID + ".");
+			return true;
+		} catch (IOException e) {
+			for (Chunk chunk : written)
+				chunk.setDirty(true);
+			throw e;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return True iff the level has been modified since it was loaded or last saved (including the chunks a
+	 * {@link #startStreaming() streaming} level has evicted but not yet written back), and never true for levels that
+	 * are not {@link #isLoaded() loaded}
+	 */
+	public boolean isDirty() {
+		if (!loaded)
+			return false;
+		if (rewriteRequired)
+			return true;
+		ChunkStreamer streamer = this.streamer;
+		if (streamer != null && streamer.isDirty())
+			return true;
+		for (Chunk chunk : chunks.values())
+			if (chunk.isDirty())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Switches the level to streaming mode, in which its {@link Chunk chunks} are loaded from its data file on demand
+	 * by a {@link ChunkStreamer} and can be evicted from memory. The existing data file is streamed from as it is -
+	 * it is only written first if it doesn't exist yet or has to be {@link #rewriteRequired rewritten} in full, and
+	 * otherwise only modified chunks are ever written back to it. If the level is already streaming, its current
+	 * streamer is returned. Levels in a packed world have no data file of their own to stream from, and stay fully loaded.
+	 *
+	 * @return The level's {@link ChunkStreamer}, or null if its data file could not be opened, the level is packed or
+	 * the level is not {@link #isLoaded() loaded}
+	 */
+	public ChunkStreamer startStreaming() {
+		if (streamer != null)
+			return streamer;
+		if (archive != null) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Not streaming level " + ID + " in world " + worldID + " - the world is packed, so the level stays fully loaded.");
+			return null;
+		}
+		if (!loaded) {
+			System.err.println("Failed to start streaming level " + ID + " in world " + worldID + " - the level is not loaded.");
+			return null;
+		}
+		if (rewriteRequired || !new File(getDiskLocation()).exists()) {
+			save(); // The chunks are streamed from the data file, so it has to hold the level in the current format
+			if (rewriteRequired) {
+				System.err.println("Failed to start streaming level " + ID + " in world " + worldID + " - could not write data file.");
+				return null;
 			}
 		}
-		FileWriter fw = null;
 		try {
-			fw = new FileWriter(getDiskLocation());
+			streamer = new ChunkStreamer(this);
 		} catch (IOException e) {
 			e.printStackTrace();
+			System.err.println("Failed to start streaming level " + ID + " in world " + worldID + " - could not open data file.");
 		}
-		if (fw == null)
+		return streamer;
+	}
+
+	/**
+	 * Closes the level's {@link ChunkStreamer}, if any, writing back its modified chunks. Note that chunks which are
+	 * not resident at this point are not loaded - the level should be {@link #load() reloaded} before it is used again.
+	 */
+	public void stopStreaming() {
+		if (streamer == null)
 			return;
-		PrintWriter pw = new PrintWriter(fw);
-		for (int j = HEIGHT - 1; j >= 0; j--) { // See comment in load() method about the order of i and j being inverted
-			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < WIDTH; i++)
-				sb.append(objects[i][j].getType().getDataChar());
-			pw.println(sb.toString());
-		}
-		pw.close();
+		streamer.close();
+		streamer = null;
+	}
+
+	/**
+	 * Closes the level's {@link ChunkStreamer}, if any, {@link ChunkStreamer#discard() discarding} its modified chunks
+	 * rather than writing them back, for when the level's unsaved modifications are being thrown away.
+	 */
+	private void discardStreaming() {
+		if (streamer == null)
+			return;
+		streamer.discard();
+		streamer = null;
+	}
+
+	/**
+	 * @return The level's {@link ChunkStreamer}, or null if the level is fully loaded
+	 */
+	public ChunkStreamer getStreamer() {
+		return streamer;
+	}
+
+	/**
+	 * Starts recording every tile edit made to the level in its {@link LevelJournal journal}, so that the edits can be
+	 * recovered if the game is closed before the level is saved. If the level is already journaled, its current
+	 * journal is returned.
+	 *
+	 * @return The level's {@link LevelJournal}, or null if the journal file could not be opened
+	 */
+	public synchronized LevelJournal startJournaling() {
+		if (journal != null)
+			return journal;
 		try {
-			fw.close();
+			journal = new LevelJournal(this, new File(getJournalLocation()));
 		} catch (IOException e) {
 			e.printStackTrace();
+			System.err.println("Failed to start journaling level " + ID + " in world " + worldID + " - could not open journal file.");
+		}
+		return journal;
+	}
+
+	/**
+	 * Commits the edits recorded in the level's {@link LevelJournal journal}, if any, and closes it. The journal file
+	 * is kept, so that the edits are replayed the next time the level is {@link #load() loaded}.
+	 */
+	public void stopJournaling() {
+		LevelJournal journal = this.journal;
+		if (journal == null)
+			return;
+		this.journal = null;
+		journal.close();
+	}
+
+	/**
+	 * Closes the level's {@link LevelJournal journal}, if any, and deletes the journal file, so that the edits made
+	 * since the level was last saved are not recovered when it is next {@link #load() loaded}.
+	 */
+	public void discardJournal() {
+		LevelJournal journal = this.journal;
+		this.journal = null;
+		if (journal != null)
+			journal.discard();
+		else
+			new File(getJournalLocation()).delete();
+	}
+
+	/**
+	 * @return True iff the level's contents are in memory
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return An estimate of the number of bytes of memory taken up by the level's resident {@link Chunk chunks}
+	 */
+	public long getMemoryUsage() {
+		return (long) chunks.size() * (Chunk.AREA + 64);
+	}
+
+	/**
+	 * @return The time, in milliseconds, at which the level was last retrieved from its world
+	 */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	/**
+	 * Records that the level has just been retrieved from its world.
+	 */
+	void touch() {
+		lastAccessTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks the level as not loaded, without touching its contents (used for levels that have just been added to
+	 * a world's index).
+	 */
+	void markUnloaded() {
+		loaded = false;
+	}
+
+	/**
+	 * Marks the level as loaded, without touching its contents (used for levels whose contents have just been read in
+	 * from somewhere other than their data file, such as a {@link WorldSnapshots snapshot}).
+	 */
+	void markLoaded() {
+		loaded = true;
+	}
+
+	/**
+	 * Replaces the level's contents with those of the supplied level, which was parsed from the level's data file after
+	 * it was changed outside the game. If the dimensions are unchanged, only the {@link Chunk chunks} whose tiles
+	 * differ are replaced. The level's {@link #generation} is advanced if anything changed.
+	 *
+	 * @param source The level to copy the contents of
+	 * @param rewrite Whether the level's data file has to be rewritten in full the next time the level is saved (if
+	 * the contents were read from a file other than the data file)
+	 * @param residentOnly Whether to only replace the chunks that are in memory, for a level that streams the rest of
+	 * its chunks from the changed file
+	 * @return The number of chunks that were replaced, added or removed
+	 */
+	synchronized int replaceContents(Level source, boolean rewrite, boolean residentOnly) {
+		int changed = 0;
+		if (source.width != width || source.height != height) {
+			changed = Math.max(chunks.size(), 1);
+			reset(source.width, source.height);
+			chunks.putAll(source.chunks);
+			for (Chunk chunk : chunks.values())
+				collisionMap.update(chunk.getX(), chunk.getY(), chunk.getTiles());
+		} else {
+			for (Chunk chunk : source.chunks.values()) {
+				int index = chunk.getY() * chunksX + chunk.getX();
+				Chunk current = chunks.get(index);
+				if (current == null && residentOnly)
+					continue; // Streamed in from the changed file when it is next needed
+				if (current == null || !Arrays.equals(current.getTiles(), chunk.getTiles())) {
+					chunks.put(index, chunk);
+					collisionMap.update(chunk.getX(), chunk.getY(), chunk.getTiles());
+					changed++;
+				}
+			}
+			for (Chunk chunk : new ArrayList<Chunk>(chunks.values())) {
+				int index = chunk.getY() * chunksX + chunk.getX();
+				if (!source.chunks.containsKey(index) && !chunk.isEmpty()) {
+					chunks.remove(index);
+					collisionMap.update(chunk.getX(), chunk.getY(), null);
+					changed++;
+				}
+			}
 		}
+		for (Chunk chunk : chunks.values())
+			chunk.setDirty(false);
+		rewriteRequired = rewrite;
+		if (changed > 0)
+			generation++;
+		return changed;
+	}
+
+	/**
+	 * @return The level's {@link CollisionMap}, which stays the same object (and up to date) for the lifetime of the
+	 * level, so entities can hold on to it
+	 */
+	public CollisionMap getCollisionMap() {
+		return collisionMap;
+	}
+
+	/**
+	 * @return The number of times the level's contents have been replaced by a {@link LevelWatcher reload}
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return The {@link WorldArchive} the level is stored in, or null if the level has its own data file
+	 */
+	public WorldArchive getArchive() {
+		return archive;
+	}
+
+	/**
+	 * Sets the {@link WorldArchive} the level is stored in (null to store the level in its own data file). The level's
+	 * journal should be stopped first, since its location depends on the archive.
+	 *
+	 * @param archive The new {@link #archive}
+	 * @param rewrite Whether the level has to be written in full to its new location the next time it is saved
+	 */
+	void setArchive(WorldArchive archive, boolean rewrite) {
+		this.archive = archive;
+		if (rewrite)
+			rewriteRequired = true;
+	}
+
+	/**
+	 * @return The level's {@link LevelJournal}, or null if the level's edits are not journaled
+	 */
+	public LevelJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Removes all of the level's {@link Chunk chunks} and sets its dimensions to the supplied values.
+	 *
+	 * @param width The new {@link #width} of the level
+	 * @param height The new {@link #height} of the level
+	 */
+	void reset(int width, int height) {
+		this.width = width;
+		this.height = height;
+		chunksX = (width + Chunk.MASK) >> Chunk.SHIFT;
+		chunksY = (height + Chunk.MASK) >> Chunk.SHIFT;
+		chunks.clear();
+		collisionMap.reset(width, height);
+		rewriteRequired = true;
 	}
 
 	/**
@@ -199,23 +789,217 @@ public class Level {
 	}
 
 	/**
-	 * @return The {@link #diskLocation} of the level's data file
+	 * @return The system path to the level's binary data file
 	 */
 	public String getDiskLocation() {
-		return "files" + File.separator + "worlds" + File.separator + "world" + worldID + File.separator + "level" + ID + ".ll";
+		return "files" + File.separator + "worlds" + File.separator + "world" + worldID + File.separator + "level" + ID + LevelFormat.EXTENSION;
+	}
+
+	/**
+	 * @return The system path to the level's legacy text data file, which is read if the binary data file doesn't exist
+	 */
+	public String getLegacyDiskLocation() {
+		return "files" + File.separator + "worlds" + File.separator + "world" + worldID + File.separator + "level" + ID + LevelFormat.LEGACY_EXTENSION;
+	}
+
+	/**
+	 * @return The system path to the level's {@link LevelJournal journal} file (next to the world's archive, for levels
+	 * in a packed world)
+	 */
+	public String getJournalLocation() {
+		WorldArchive archive = this.archive;
+		if (archive != null)
+			return archive.getFile().getPath() + ".level" + ID + LevelJournal.EXTENSION;
+		return "files" + File.separator + "worlds" + File.separator + "world" + worldID + File.separator + "level" + ID + LevelJournal.EXTENSION;
+	}
+
+	/**
+	 * @return The {@link #width}, in tiles, of the level
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The {@link #height}, in tiles, of the level
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The width, in {@link Chunk chunks}, of the level
+	 */
+	public int getChunksX() {
+		return chunksX;
+	}
+
+	/**
+	 * @return The height, in {@link Chunk chunks}, of the level
+	 */
+	public int getChunksY() {
+		return chunksY;
+	}
+
+	/**
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @return The {@link Chunk} at the specified chunk coordinates, or null if the chunk is out of bounds or contains
+	 * nothing but air
+	 */
+	public Chunk getChunk(int cx, int cy) {
+		if (cx < 0 || cx >= chunksX || cy < 0 || cy >= chunksY)
+			return null;
+		Chunk chunk = chunks.get(cy * chunksX + cx);
+		if (chunk == null && streamer != null)
+			chunk = streamer.fetch(cx, cy);
+		return chunk;
+	}
+
+	/**
+	 * Adds the supplied {@link Chunk} to the level, replacing the chunk at the same coordinates, if any.
+	 *
+	 * @param chunk
+	 */
+	void putChunk(Chunk chunk) {
+		chunks.put(chunk.getY() * chunksX + chunk.getX(), chunk);
+		collisionMap.update(chunk.getX(), chunk.getY(), chunk.getTiles());
+	}
+
+	/**
+	 * Removes the supplied {@link Chunk} from the level, if it is still the chunk at its coordinates. The chunk's
+	 * tiles are kept in the {@link #collisionMap}, since chunks are only removed when they are evicted by the
+	 * {@link ChunkStreamer}.
+	 *
+	 * @param chunk
+	 */
+	void removeChunk(Chunk chunk) {
+		chunks.remove(chunk.getY() * chunksX + chunk.getX(), chunk);
+	}
+
+	/**
+	 * @return The {@link Chunk chunks} in the level (chunks that contain nothing but air may be missing, as may chunks
+	 * that have not been streamed in)
+	 */
+	public Collection<Chunk> getChunks() {
+		return chunks.values();
 	}
 
 	/**
 	 * @param x
 	 * @param y
-	 * @return The object at the specified location within the level
+	 * @return A view of the object at the specified location within the level. The returned {@link Object} reads
+	 * and writes its type through to the level, but is not retained by it.
 	 */
 	public Object getObject(int x, int y) {
-		if (x < 0 || x >= WIDTH || y < 0 || y >= HEIGHT) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to retrieve the object at the tile location (" + x + ", " + y + ") - index out of bounds.\nThe x value must be between 0 and " + (WIDTH - 1) + ", and the height value must be between 0 and " + (HEIGHT - 1) + ", inclusive.");
+				System.err.println("Failed to retrieve the object at the tile location (" + x + ", " + y + ") - index out of bounds.\nThe x value must be between 0 and " + (width - 1) + ", and the height value must be between 0 and " + (height - 1) + ", inclusive.");
 			return null;
 		}
-		return objects[x][y];
+		return new Object(this, x, y, null);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return The {@link ObjectType} of the tile at the specified location within the level, or null if the location
+	 * is out of bounds
+	 */
+	public ObjectType getType(int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		Chunk chunk = chunks.get((y >> Chunk.SHIFT) * chunksX + (x >> Chunk.SHIFT));
+		if (chunk == null && streamer != null)
+			chunk = streamer.fetch(x >> Chunk.SHIFT, y >> Chunk.SHIFT);
+		if (chunk == null)
+			return ObjectType.AIR;
+		return TYPES[chunk.getTile(x & Chunk.MASK, y & Chunk.MASK)];
+	}
+
+	/**
+	 * Sets the type of the tile at the specified location within the level, creating the tile's {@link Chunk} if
+	 * necessary, and records the edit in the level's {@link LevelJournal journal}, if any. Locations that are out of
+	 * bounds are ignored.
+	 *
+	 * @param x
+	 * @param y
+	 * @param type The new {@link ObjectType} of the tile
+	 */
+	public void setType(int x, int y, ObjectType type) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.err.println("Failed to set the object type at the tile location (" + x + ", " + y + ") - index out of bounds.");
+			return;
+		}
+		int index = (y >> Chunk.SHIFT) * chunksX + (x >> Chunk.SHIFT);
+		Chunk chunk = chunks.get(index);
+		if (chunk == null && streamer != null)
+			chunk = streamer.fetch(x >> Chunk.SHIFT, y >> Chunk.SHIFT);
+		if (chunk == null) {
+			if (type == ObjectType.AIR)
+				return;
+			chunk = new Chunk(x >> Chunk.SHIFT, y >> Chunk.SHIFT);
+			chunks.put(index, chunk);
+			if (streamer != null)
+				streamer.track(chunk);
+		}
+		byte oldType = chunk.getTile(x & Chunk.MASK, y & Chunk.MASK);
+		if (oldType == type.ordinal())
+			return;
+		chunk.setTile(x & Chunk.MASK, y & Chunk.MASK, (byte) type.ordinal());
+		chunk.setDirty(true);
+		collisionMap.set(x, y, type);
+		LevelJournal journal = this.journal;
+		if (journal != null)
+			journal.append(x, y, oldType, (byte) type.ordinal());
+	}
+
+	/**
+	 * Writes a bulk edit directly into the level's tile storage. The chunks are visited in index order, each chunk
+	 * that changes is marked {@link Chunk#modified() modified} once (rather than once per tile), chunks are only
+	 * created where non-air tiles are written, and every changed tile is journaled.
+	 *
+	 * @param targets The new type ordinals of the edited tiles, by chunk index - each array holds {@link Chunk#AREA}
+	 * entries, with -1 for the tiles the edit leaves alone
+	 * @return The patch from the level's previous tiles to its new tiles
+	 */
+	LevelPatch writeTiles(SortedMap<Integer, byte[]> targets) {
+		LevelPatch.RunWriter writer = new LevelPatch.RunWriter();
+		LevelJournal journal = this.journal;
+		for (Map.Entry<Integer, byte[]> target : targets.entrySet()) {
+			int index = target.getKey();
+			int cx = index % chunksX, cy = index / chunksX;
+			byte[] newTiles = target.getValue();
+			Chunk chunk = getChunk(cx, cy);
+			if (chunk == null) {
+				boolean empty = true;
+				for (int i = 0; empty && i < Chunk.AREA; i++)
+					empty = newTiles[i] <= 0;
+				if (empty)
+					continue; // Air over air
+				chunk = new Chunk(cx, cy);
+				chunks.put(index, chunk);
+				if (streamer != null)
+					streamer.track(chunk);
+			}
+			byte[] tiles = chunk.getTiles();
+			boolean changed = false;
+			for (int i = 0; i < Chunk.AREA; i++) {
+				byte newType = newTiles[i];
+				if (newType < 0 || tiles[i] == newType)
+					continue;
+				writer.add(index * Chunk.AREA + i, tiles[i], newType);
+				if (journal != null)
+					journal.append((cx << Chunk.SHIFT) + (i & Chunk.MASK), (cy << Chunk.SHIFT) + (i >> Chunk.SHIFT), tiles[i], newType);
+				tiles[i] = newType;
+				changed = true;
+			}
+			if (changed) {
+				chunk.modified();
+				collisionMap.update(cx, cy, tiles);
+			}
+		}
+		return writer.finish(width, height);
 	}
 }
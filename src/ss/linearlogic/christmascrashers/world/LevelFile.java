@@ -0,0 +1,437 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
+/**
+ * An open binary level data file (see {@link LevelFormat}) that allows individual {@link Chunk chunks} to be read
+ * and written without touching the rest of the file. Only the header and the chunk table are held in memory.
+ * <p>Chunks are written in {@link #writeChunks(List) batches}, crash-safely: the new chunk data is appended without
+ * touching the existing data (chunks are never overwritten in place), and the new header and chunk table
+ * are first written to the file's table log (a sibling ".table" file that is kept between saves, so that no directory
+ * entries change), and only then copied over the header and table in place. If the in-place write is interrupted,
+ * the table log is {@link #recover(File) replayed} the next time the file is opened. The table log is deleted whenever
+ * the file is {@link LevelFormat#writeAtomically(File, Level, boolean) rewritten} in full. The file is opened
+ * read-only, and is only opened for writing once chunks are first written to it. Reads and writes may be made from
+ * multiple threads.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelFile {
+
+	/**
+	 * The suffix appended to a data file's name to get the name of its table log
+	 */
+	public static final String TABLE_LOG_SUFFIX = ".table";
+
+	/**
+	 * The data file
+	 */
+	private final File dataFile;
+
+	/**
+	 * The read-only channel used to read from the {@link #dataFile}
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Whether chunks may be written to the file
+	 */
+	private final boolean writable;
+
+	/**
+	 * The channel used to write to the {@link #dataFile}, or null if nothing has been written to the file yet
+	 */
+	private FileChannel writeChannel;
+
+	/**
+	 * The width, in tiles, of the level stored in the file
+	 */
+	private final int width;
+
+	/**
+	 * The height, in tiles, of the level stored in the file
+	 */
+	private final int height;
+
+	/**
+	 * The width, in chunks, of the level stored in the file
+	 */
+	private final int chunksX;
+
+	/**
+	 * The height, in chunks, of the level stored in the file
+	 */
+	private final int chunksY;
+
+	/**
+	 * The length, in bytes, of the file header
+	 */
+	private final int headerLength;
+
+	/**
+	 * The file offset of each chunk, indexed by chunk index (zero if the chunk is not stored)
+	 */
+	private final int[] offsets;
+
+	/**
+	 * The CRC32 checksum of each chunk, indexed by chunk index
+	 */
+	private final int[] checksums;
+
+	/**
+	 * The number of chunks stored in the file
+	 */
+	private int chunkCount;
+
+	/**
+	 * The offset at which the next appended chunk will be written
+	 */
+	private long end;
+
+	/**
+	 * The number of bytes written to the file since it was opened
+	 */
+	private long bytesWritten;
+
+	/**
+	 * Opens the supplied data file, which must be in the current version of the {@link LevelFormat binary level format},
+	 * and reads its header and chunk table.
+	 *
+	 * @param dataFile The binary level file to open
+	 * @param writable Whether chunks may be written to the file (the file is still only opened for writing once
+	 * chunks are written to it)
+	 * @throws IOException If the file could not be read or is not a valid level file of the current version
+	 */
+	public LevelFile(File dataFile, boolean writable) throws IOException {
+		this.dataFile = dataFile;
+		this.writable = writable;
+		recover(dataFile);
+		channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(LevelFormat.HEADER_LENGTH);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt(0) != LevelFormat.MAGIC || header.getShort(4) != LevelFormat.VERSION || header.getInt(16) != Chunk.SIZE)
+				throw new IOException("Level file " + dataFile.getPath() + " is not a chunked level file of the current version.");
+			headerLength = header.getShort(6);
+			width = header.getInt(8);
+			height = header.getInt(12);
+			chunkCount = header.getInt(24);
+			long tableEnd = getTableEnd(header);
+			if (tableEnd < 0 || tableEnd > channel.size())
+				throw new IOException("Level file " + dataFile.getPath() + " has an invalid header or a truncated chunk table.");
+			chunksX = (int) (((long) width + Chunk.MASK) >> Chunk.SHIFT);
+			chunksY = (int) (((long) height + Chunk.MASK) >> Chunk.SHIFT);
+			ByteBuffer table = ByteBuffer.allocate(chunksX * chunksY * LevelFormat.TABLE_ENTRY_LENGTH);
+			readFully(table, headerLength);
+			table.flip();
+			CRC32 crc = new CRC32();
+			crc.update(table.duplicate());
+			if ((int) crc.getValue() != header.getInt(20))
+				throw new IOException("Level file " + dataFile.getPath() + " has a corrupt chunk table.");
+			offsets = new int[chunksX * chunksY];
+			checksums = new int[chunksX * chunksY];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = table.getInt();
+				checksums[i] = table.getInt();
+			}
+			end = channel.size();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @return True iff the specified chunk is stored in the file
+	 */
+	public boolean hasChunk(int cx, int cy) {
+		if (cx < 0 || cx >= chunksX || cy < 0 || cy >= chunksY)
+			return false;
+		return offsets[cy * chunksX + cx] != 0;
+	}
+
+	/**
+	 * Reads the specified chunk from the file and verifies its checksum.
+	 *
+	 * @param cx The chunk x-coordinate
+	 * @param cy The chunk y-coordinate
+	 * @return The chunk, or null if the chunk is not stored in the file (meaning it contains nothing but air)
+	 * @throws IOException If the chunk could not be read or is corrupt
+	 */
+	public Chunk readChunk(int cx, int cy) throws IOException {
+		int offset;
+		int checksum;
+		synchronized (this) {
+			if (!hasChunk(cx, cy))
+				return null;
+			offset = offsets[cy * chunksX + cx];
+			checksum = checksums[cy * chunksX + cx];
+		}
+		byte[] tiles = new byte[Chunk.AREA];
+		readFully(ByteBuffer.wrap(tiles), offset);
+		CRC32 crc = new CRC32();
+		crc.update(tiles, 0, tiles.length);
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("Chunk (" + cx + ", " + cy + ") in " + dataFile.getPath() + " is corrupt.");
+		for (byte tile : tiles)
+			if (tile < 0 || tile >= Level.TYPES.length)
+				throw new IOException("Chunk (" + cx + ", " + cy + ") in " + dataFile.getPath() + " contains an invalid object type.");
+		return new Chunk(cx, cy, tiles);
+	}
+
+	/**
+	 * Writes the supplied chunks to the file crash-safely. The chunk data is appended to the end of the file (leaving
+	 * the previous copies of the chunks intact) and forced, then the new header and chunk table are written to the
+	 * table log and forced, and finally the header and table are overwritten in place and forced. A crash at any point
+	 * leaves the file with either the old or the new set of chunks. The space taken up by the previous copies is only
+	 * reclaimed when the file is rewritten in full (see {@link #getDeadBytes()}).
+	 *
+	 * @param chunks The chunks to write (whose tile arrays must not be modified while they are being written)
+	 * @throws IOException If the chunks could not be written, or the file was not opened as writable
+	 */
+	public synchronized void writeChunks(List<Chunk> chunks) throws IOException {
+		if (chunks.isEmpty())
+			return;
+		if (!writable)
+			throw new IOException("Level file " + dataFile.getPath() + " was opened read-only.");
+		if (writeChannel == null)
+			writeChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE);
+		if (end > Integer.MAX_VALUE - (long) chunks.size() * Chunk.AREA)
+			throw new IOException("Level file " + dataFile.getPath() + " is full.");
+		int[] newOffsets = offsets.clone();
+		int[] newChecksums = checksums.clone();
+		int newChunkCount = chunkCount;
+		ByteBuffer[] data = new ByteBuffer[chunks.size()];
+		CRC32 crc = new CRC32();
+		long position = end;
+		for (int i = 0; i < data.length; i++) {
+			Chunk chunk = chunks.get(i);
+			int index = chunk.getY() * chunksX + chunk.getX();
+			crc.reset();
+			crc.update(chunk.getTiles(), 0, Chunk.AREA);
+			if (newOffsets[index] == 0)
+				newChunkCount++;
+			newOffsets[index] = (int) position;
+			newChecksums[index] = (int) crc.getValue();
+			data[i] = ByteBuffer.wrap(chunk.getTiles(), 0, Chunk.AREA);
+			position += Chunk.AREA;
+		}
+		writeChannel.position(end);
+		while (data[data.length - 1].hasRemaining())
+			bytesWritten += writeChannel.write(data);
+		writeChannel.force(false);
+
+		ByteBuffer table = ByteBuffer.allocate(newOffsets.length * LevelFormat.TABLE_ENTRY_LENGTH);
+		for (int i = 0; i < newOffsets.length; i++)
+			table.putInt(newOffsets[i]).putInt(newChecksums[i]);
+		table.flip();
+		crc.reset();
+		crc.update(table.duplicate());
+		ByteBuffer header = LevelFormat.header(headerLength, width, height, (int) crc.getValue(), newChunkCount);
+		writeTableLog(header.duplicate(), table.duplicate());
+		writeFully(header, 0);
+		writeFully(table, headerLength);
+		writeChannel.force(false);
+
+		System.arraycopy(newOffsets, 0, offsets, 0, offsets.length);
+		System.arraycopy(newChecksums, 0, checksums, 0, checksums.length);
+		chunkCount = newChunkCount;
+		end = position;
+		LevelWatcher.recordWrite(dataFile);
+	}
+
+	/**
+	 * Writes the supplied header and chunk table to the file's table log, along with the checksum of the header and
+	 * table they replace, and forces the log onto the storage device.
+	 */
+	private void writeTableLog(ByteBuffer header, ByteBuffer table) throws IOException {
+		ByteBuffer current = ByteBuffer.allocate(headerLength + table.remaining());
+		readFully(current, 0);
+		current.flip();
+		CRC32 crc = new CRC32();
+		crc.update(current);
+		int baseChecksum = (int) crc.getValue();
+		ByteBuffer entry = ByteBuffer.allocate(8 + header.remaining() + table.remaining() + 4);
+		entry.putInt(baseChecksum).putInt(header.remaining() + table.remaining()).put(header).put(table);
+		crc.reset();
+		crc.update(entry.array(), 0, entry.position());
+		entry.putInt((int) crc.getValue()).flip();
+		File logFile = new File(dataFile.getPath() + TABLE_LOG_SUFFIX);
+		boolean created = !logFile.exists();
+		FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (entry.hasRemaining())
+				bytesWritten += log.write(entry);
+			log.force(false);
+		} finally {
+			log.close();
+		}
+		if (created) // The log is kept from now on, so the directory only has to be synced the first time
+			LevelFormat.syncDirectory(logFile.getParentFile());
+	}
+
+	/**
+	 * Completes an interrupted {@link #writeChunks(List) batch write} to the specified data file, if its table log
+	 * shows that the header and chunk table were being overwritten when the write was interrupted. Table logs that
+	 * are incomplete, or that belong to an earlier write (the data file's header and table no longer match the ones
+	 * the log replaces, and are intact on their own, whatever the dimensions of the file), are ignored.
+	 *
+	 * @param dataFile The level data file
+	 * @throws IOException If the data file could not be repaired
+	 */
+	public static void recover(File dataFile) throws IOException {
+		File logFile = new File(dataFile.getPath() + TABLE_LOG_SUFFIX);
+		if (!logFile.exists() || !dataFile.exists())
+			return;
+		ByteBuffer entry = ByteBuffer.wrap(Files.readAllBytes(logFile.toPath()));
+		if (entry.remaining() < 12)
+			return;
+		int baseChecksum = entry.getInt(0);
+		int length = entry.getInt(4);
+		if (length < LevelFormat.HEADER_LENGTH || entry.remaining() != 8 + length + 4)
+			return;
+		CRC32 crc = new CRC32();
+		crc.update(entry.array(), 0, 8 + length);
+		if ((int) crc.getValue() != entry.getInt(8 + length))
+			return;
+		FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer current = ByteBuffer.allocate((int) Math.min(length, channel.size()));
+			while (current.hasRemaining() && channel.read(current, current.position()) >= 0)
+				;
+			current.flip();
+			crc.reset();
+			crc.update(current.duplicate());
+			if ((int) crc.getValue() != baseChecksum && hasValidTable(channel))
+				return; // The log has already been applied, or belongs to an earlier write
+			ByteBuffer replacement = ByteBuffer.wrap(entry.array(), 8, length);
+			long position = 0;
+			while (replacement.hasRemaining())
+				position += channel.write(replacement, position);
+			channel.force(false);
+			LevelWatcher.recordWrite(dataFile);
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Recovered the chunk table of " + dataFile.getPath() + " from its table log.");
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return True iff the data file open in the supplied channel starts with a header and a chunk table (of the length
+	 * given by the header's own dimensions) that match the table checksum in the header
+	 */
+	private static boolean hasValidTable(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(LevelFormat.HEADER_LENGTH);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+			;
+		long tableEnd = getTableEnd(header);
+		if (header.hasRemaining() || header.getInt(0) != LevelFormat.MAGIC || tableEnd < 0 || tableEnd > channel.size())
+			return false;
+		int headerLength = header.getShort(6);
+		ByteBuffer table = ByteBuffer.allocate((int) tableEnd - headerLength);
+		while (table.hasRemaining() && channel.read(table, headerLength + table.position()) >= 0)
+			;
+		table.flip();
+		CRC32 crc = new CRC32();
+		crc.update(table);
+		return (int) crc.getValue() == header.getInt(20);
+	}
+
+	/**
+	 * @param header The header of a data file
+	 * @return The offset of the end of the chunk table described by the header, or -1 if the header's length or
+	 * dimensions are invalid
+	 */
+	private static long getTableEnd(ByteBuffer header) {
+		int headerLength = header.getShort(6);
+		long width = header.getInt(8);
+		long height = header.getInt(12);
+		if (headerLength < LevelFormat.HEADER_LENGTH || width <= 0 || height <= 0)
+			return -1;
+		return headerLength + ((width + Chunk.MASK) >> Chunk.SHIFT) * ((height + Chunk.MASK) >> Chunk.SHIFT) * LevelFormat.TABLE_ENTRY_LENGTH;
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	public synchronized void close() {
+		try {
+			channel.close();
+			if (writeChannel != null)
+				writeChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The width, in tiles, of the level stored in the file
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height, in tiles, of the level stored in the file
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The number of bytes written to the file since it was opened
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return The number of bytes in the file taken up by chunk data that is no longer referenced by the chunk table
+	 */
+	public synchronized long getDeadBytes() {
+		return end - headerLength - (long) offsets.length * LevelFormat.TABLE_ENTRY_LENGTH - (long) chunkCount * Chunk.AREA;
+	}
+
+	/**
+	 * @return The data file
+	 */
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	/**
+	 * Fills the supplied buffer with data read from the specified position in the file.
+	 */
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of level file " + dataFile.getPath() + ".");
+			position += read;
+		}
+	}
+
+	/**
+	 * Writes the entire contents of the supplied buffer to the specified position in the file, through the
+	 * {@link #writeChannel}.
+	 */
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		bytesWritten += buffer.remaining();
+		while (buffer.hasRemaining())
+			position += writeChannel.write(buffer, position);
+	}
+}
@@ -0,0 +1,419 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.object.ObjectType;
+import ss.linearlogic.christmascrashers.util.FileMonkey;
+
+/**
+ * Reads and writes level data files. Levels are stored in a versioned binary format (".llb" files). The current
+ * version (2) stores the level as a table of {@link Chunk chunks}, so that empty regions take up no space:
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number ("CCLV")
+ *      4     2  format version
+ *      6     2  header length, in bytes
+ *      8     4  level width, in tiles
+ *     12     4  level height, in tiles
+ *     16     4  chunk size, in tiles
+ *     20     4  CRC32 checksum of the chunk table
+ *     24     4  number of chunks stored in the file
+ *     28     4  reserved (zero)
+ *     32     -  chunk table - one (offset, CRC32) pair of ints per chunk, row by row starting from the bottom row
+ *                 of chunks. An offset of zero means that the chunk contains nothing but air and is not stored.
+ *      -     -  chunk data - one {@link ObjectType} ordinal per tile, row by row starting from the bottom row
+ * </pre>
+ * Version 1 files (a 24-byte header holding the dimensions and a payload checksum, followed by a dense tile
+ * payload) are still read. Binary files are read through a memory-mapped buffer in a single pass and written with a
+ * single gathering write. The legacy text format (".ll" files, one data character per tile and one line per row,
+ * top row first) can also still be read, so that levels created by older versions of the game continue to load.
+ * <p>Levels are saved {@link #writeAtomically(File, Level, boolean) atomically}, by writing a sibling temporary
+ * file and moving it over the data file, so that a crash in the middle of a save never leaves a truncated level.
+ * The data file's {@link LevelFile} table log describes the file that was replaced, so it is deleted along the way.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelFormat {
+
+	/**
+	 * The magic number at the start of every binary level file ("CCLV" in ASCII)
+	 */
+	public static final int MAGIC = 0x43434C56;
+
+	/**
+	 * The version of the binary format written by {@link #write(File, Level)}
+	 */
+	public static final short VERSION = 2;
+
+	/**
+	 * The length, in bytes, of the binary file header
+	 */
+	public static final int HEADER_LENGTH = 32;
+
+	/**
+	 * The length, in bytes, of the header of version 1 files
+	 */
+	private static final int VERSION_1_HEADER_LENGTH = 24;
+
+	/**
+	 * The length, in bytes, of each entry in the chunk table
+	 */
+	public static final int TABLE_ENTRY_LENGTH = 8;
+
+	/**
+	 * The extension of binary level files
+	 */
+	public static final String EXTENSION = ".llb";
+
+	/**
+	 * The extension of legacy text level files
+	 */
+	public static final String LEGACY_EXTENSION = ".ll";
+
+	/**
+	 * The suffix appended to a data file's name to get the name of the temporary file it is written to
+	 */
+	public static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Reads the binary level file at the specified location into the supplied level, replacing its dimensions and contents.
+	 *
+	 * @param dataFile The binary level file to read
+	 * @param level The level to load the file into
+	 * @return The format version of the file
+	 * @throws IOException If the file could not be read or is not a valid level file
+	 */
+	public static short read(File dataFile, Level level) throws IOException {
+		FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			try {
+				return read(buffer, level);
+			} finally {
+				FileMonkey.unmap(buffer); // The chunks are copied out, so the file can be replaced as soon as it has been read
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads binary level data from the supplied buffer (positioned at the start of the header) into the supplied
+	 * level, replacing its dimensions and contents. The whole of the data is validated before the level is touched, so
+	 * the level is left as it was if the data turns out to be corrupt.
+	 *
+	 * @param buffer The buffer containing the level data
+	 * @param level The level to load the data into
+	 * @return The format version of the data
+	 * @throws IOException If the buffer does not contain a valid level
+	 */
+	public static short read(ByteBuffer buffer, Level level) throws IOException {
+		buffer = buffer.slice();
+		if (buffer.remaining() < VERSION_1_HEADER_LENGTH)
+			throw new IOException("Level data is too short to contain a header (" + buffer.remaining() + " bytes).");
+		if (buffer.getInt(0) != MAGIC)
+			throw new IOException("Level data does not start with the level file magic number.");
+		short version = buffer.getShort(4);
+		int headerLength = buffer.getShort(6);
+		int width = buffer.getInt(8);
+		int height = buffer.getInt(12);
+		if (width <= 0 || height <= 0)
+			throw new IOException("Invalid level dimensions " + width + "x" + height + ".");
+		if (version == 1)
+			readVersion1(buffer, headerLength, width, height, level);
+		else if (version == VERSION)
+			readVersion2(buffer, headerLength, width, height, level);
+		else
+			throw new IOException("Unsupported level format version " + version + ".");
+		return version;
+	}
+
+	/**
+	 * Reads a version 1 (dense) level into the supplied level.
+	 */
+	private static void readVersion1(ByteBuffer buffer, int headerLength, int width, int height, Level level) throws IOException {
+		int checksum = buffer.getInt(16);
+		if (headerLength < VERSION_1_HEADER_LENGTH)
+			throw new IOException("Invalid level header length " + headerLength + ".");
+		if (buffer.remaining() < headerLength + (long) width * height)
+			throw new IOException("Level data is truncated.");
+		byte[] tiles = new byte[width * height];
+		buffer.position(headerLength);
+		buffer.get(tiles);
+		CRC32 crc = new CRC32();
+		crc.update(tiles, 0, tiles.length);
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("Level data checksum mismatch.");
+		for (byte tile : tiles)
+			toType(tile);
+		level.reset(width, height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (tiles[y * width + x] != 0)
+					level.setType(x, y, toType(tiles[y * width + x]));
+	}
+
+	/**
+	 * Reads a version 2 (chunked) level into the supplied level.
+	 */
+	private static void readVersion2(ByteBuffer buffer, int headerLength, int width, int height, Level level) throws IOException {
+		if (buffer.getInt(16) != Chunk.SIZE)
+			throw new IOException("Unsupported chunk size " + buffer.getInt(16) + ".");
+		if (headerLength < HEADER_LENGTH)
+			throw new IOException("Invalid level header length " + headerLength + ".");
+		long chunkCount = (((long) width + Chunk.MASK) >> Chunk.SHIFT) * (((long) height + Chunk.MASK) >> Chunk.SHIFT);
+		if (buffer.remaining() < headerLength + chunkCount * TABLE_ENTRY_LENGTH)
+			throw new IOException("Level chunk table is truncated.");
+		int chunksX = (int) (((long) width + Chunk.MASK) >> Chunk.SHIFT);
+		int chunksY = (int) (((long) height + Chunk.MASK) >> Chunk.SHIFT);
+		int tableLength = (int) chunkCount * TABLE_ENTRY_LENGTH;
+		CRC32 crc = new CRC32();
+		ByteBuffer table = buffer.duplicate();
+		table.position(headerLength).limit(headerLength + tableLength);
+		crc.update(table);
+		if ((int) crc.getValue() != buffer.getInt(20))
+			throw new IOException("Level chunk table checksum mismatch.");
+		ArrayList<Chunk> decoded = new ArrayList<Chunk>();
+		for (int cy = 0; cy < chunksY; cy++) {
+			for (int cx = 0; cx < chunksX; cx++) {
+				int entry = headerLength + (cy * chunksX + cx) * TABLE_ENTRY_LENGTH;
+				int offset = buffer.getInt(entry);
+				if (offset == 0)
+					continue;
+				if (offset < headerLength + tableLength || offset > buffer.limit() - Chunk.AREA)
+					throw new IOException("Chunk (" + cx + ", " + cy + ") has an invalid offset " + offset + ".");
+				byte[] tiles = new byte[Chunk.AREA];
+				buffer.position(offset);
+				buffer.get(tiles);
+				crc.reset();
+				crc.update(tiles, 0, tiles.length);
+				if ((int) crc.getValue() != buffer.getInt(entry + 4))
+					throw new IOException("Chunk (" + cx + ", " + cy + ") checksum mismatch.");
+				for (byte tile : tiles)
+					toType(tile);
+				decoded.add(new Chunk(cx, cy, tiles));
+			}
+		}
+		level.reset(width, height);
+		for (Chunk chunk : decoded)
+			level.putChunk(chunk);
+	}
+
+	/**
+	 * Reads a legacy text level file into the supplied level, which keeps its current dimensions. Rows or characters
+	 * missing from the file are left as air.
+	 *
+	 * @param dataFile The legacy ".ll" level file to read
+	 * @param level The level to load the file into
+	 * @return The number of malformed entries in the file - characters that are not the data character of any object
+	 * type, and missing or excess characters and rows - which are all read as air
+	 * @throws IOException If the file could not be read
+	 */
+	public static int readLegacy(File dataFile, Level level) throws IOException {
+		byte[] data = Files.readAllBytes(dataFile.toPath());
+		level.reset(level.getWidth(), level.getHeight());
+		int pos = 0;
+		int malformed = 0;
+		int j = level.getHeight() - 1;
+		for (; j >= 0 && pos < data.length; j--) { // The first line in the file is the top row of the level
+			int i = 0;
+			while (pos < data.length && data[pos] != '\n' && data[pos] != '\r') {
+				char dataChar = (char) data[pos];
+				if (!ObjectType.isDataChar(dataChar))
+					malformed++;
+				ObjectType type = ObjectType.getTypeFromDataChar(dataChar);
+				if (i < level.getWidth() && type != ObjectType.AIR)
+					level.setType(i, j, type);
+				i++;
+				pos++;
+			}
+			malformed += Math.abs(level.getWidth() - i);
+			if (pos < data.length && data[pos] == '\r')
+				pos++;
+			if (pos < data.length && data[pos] == '\n')
+				pos++;
+		}
+		malformed += (j + 1) * level.getWidth(); // Missing rows
+		for (; pos < data.length; pos++) // Excess rows
+			if (data[pos] != '\n' && data[pos] != '\r')
+				malformed++;
+		return malformed;
+	}
+
+	/**
+	 * Writes the supplied level to the specified file in the binary level format, using a single gathering write for
+	 * the header, the chunk table and the chunk data. Chunks that contain nothing but air are not written.
+	 *
+	 * @param dataFile The file to write to (created if it doesn't exist, truncated if it does)
+	 * @param level The level to write
+	 * @throws IOException If the file could not be written
+	 */
+	public static void write(File dataFile, Level level) throws IOException {
+		ByteBuffer[] data = encode(level);
+		FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (data[data.length - 1].hasRemaining())
+				channel.write(data);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Encodes the supplied level in the binary level format into a single buffer, for storage in a
+	 * {@link WorldArchive world archive}.
+	 *
+	 * @param level The level to encode
+	 * @return The encoded level, positioned at the start of the header
+	 */
+	public static ByteBuffer toBuffer(Level level) {
+		ByteBuffer[] data = encode(level);
+		int length = 0;
+		for (ByteBuffer buffer : data)
+			length += buffer.remaining();
+		ByteBuffer result = ByteBuffer.allocate(length);
+		for (ByteBuffer buffer : data)
+			result.put(buffer);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Encodes the supplied level in the binary level format, as the header, the chunk table and one buffer per
+	 * chunk that contains anything but air.
+	 *
+	 * @param level The level to encode
+	 * @return The buffers to write, in order
+	 */
+	private static ByteBuffer[] encode(Level level) {
+		int chunksX = level.getChunksX();
+		int chunksY = level.getChunksY();
+		int tableLength = chunksX * chunksY * TABLE_ENTRY_LENGTH;
+		ByteBuffer table = ByteBuffer.allocate(tableLength);
+		ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		buffers.add(null); // Placeholder for the header, which contains the checksum of the table
+		buffers.add(table);
+		CRC32 crc = new CRC32();
+		int offset = HEADER_LENGTH + tableLength;
+		for (int cy = 0; cy < chunksY; cy++) {
+			for (int cx = 0; cx < chunksX; cx++) {
+				Chunk chunk = level.getChunk(cx, cy);
+				if (chunk == null || chunk.isEmpty()) {
+					table.putInt(0).putInt(0);
+					continue;
+				}
+				crc.reset();
+				crc.update(chunk.getTiles(), 0, Chunk.AREA);
+				table.putInt(offset).putInt((int) crc.getValue());
+				buffers.add(ByteBuffer.wrap(chunk.getTiles().clone()));
+				offset += Chunk.AREA;
+			}
+		}
+		table.flip();
+		crc.reset();
+		crc.update(table.duplicate());
+		buffers.set(0, header(HEADER_LENGTH, level.getWidth(), level.getHeight(), (int) crc.getValue(), buffers.size() - 2));
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+
+	/**
+	 * Writes the supplied level to a temporary file next to the specified data file and then moves the temporary
+	 * file over the data file in a single atomic step, so that the data file always holds either the old or the new
+	 * contents of the level. The data file's {@link LevelFile#TABLE_LOG_SUFFIX table log}, which only applies to the
+	 * replaced file, is then deleted. The move only becomes durable once the parent directory has been
+	 * {@link #syncDirectory(File) synced}.
+	 *
+	 * @param dataFile The data file to replace
+	 * @param level The level to write
+	 * @param syncDirectory Whether to sync the parent directory after the move (callers that save several levels in
+	 * the same directory can sync it once themselves)
+	 * @throws IOException If the file could not be written or moved into place
+	 */
+	public static void writeAtomically(File dataFile, Level level, boolean syncDirectory) throws IOException {
+		File tempFile = new File(dataFile.getPath() + TEMP_SUFFIX);
+		try {
+			write(tempFile, level);
+			try {
+				Files.move(tempFile.toPath(), dataFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		new File(dataFile.getPath() + LevelFile.TABLE_LOG_SUFFIX).delete();
+		LevelWatcher.recordWrite(dataFile);
+		if (syncDirectory)
+			syncDirectory(dataFile.getParentFile());
+	}
+
+	/**
+	 * Forces the entries of the specified directory (such as files that have been created, renamed or deleted in it)
+	 * onto the storage device. Platforms that don't allow directories to be opened (Windows) are silently skipped.
+	 *
+	 * @param directory The directory to sync
+	 */
+	public static void syncDirectory(File directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Could not sync directory " + directory.getPath() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds a version 2 file header.
+	 *
+	 * @param headerLength The length, in bytes, of the header (the buffer is padded with zeros past the standard fields)
+	 * @param width The level width, in tiles
+	 * @param height The level height, in tiles
+	 * @param tableChecksum The CRC32 checksum of the chunk table
+	 * @param chunkCount The number of chunks stored in the file
+	 * @return The header, ready to be written
+	 */
+	static ByteBuffer header(int headerLength, int width, int height, int tableChecksum, int chunkCount) {
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short) headerLength);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(Chunk.SIZE);
+		header.putInt(tableChecksum);
+		header.putInt(chunkCount);
+		header.putInt(0);
+		header.clear();
+		return header;
+	}
+
+	/**
+	 * @param ordinal
+	 * @return The {@link ObjectType} with the specified ordinal
+	 * @throws IOException If no type has the specified ordinal
+	 */
+	private static ObjectType toType(byte ordinal) throws IOException {
+		if (ordinal < 0 || ordinal >= Level.TYPES.length)
+			throw new IOException("Invalid object type " + ordinal + ".");
+		return Level.TYPES[ordinal];
+	}
+}
@@ -0,0 +1,575 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.util.Varint;
+
+/**
+ * A write-ahead journal of the tile edits made to a {@link Level}, so that edits survive the game being closed
+ * before the level is saved. The journal is stored next to the level's data file (".llj" files):
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number ("CCLJ")
+ *      4     2  format version
+ *      6     2  header length, in bytes
+ *      8     4  level width, in tiles
+ *     12     4  level height, in tiles
+ *     16     -  commit batches - a varint payload length, the CRC32 checksum of the payload and the payload, which
+ *                 is a sequence of edit records (varint x, varint y, old type ordinal, new type ordinal)
+ * </pre>
+ * Edits are buffered in memory and written by a background thread in batches, each batch with a single write and a
+ * single force (group commit). When the level is {@link #replay(File, Level) loaded}, the journal is replayed over
+ * the level's data file, stopping at the first incomplete or corrupt batch (left by a crash in the middle of a
+ * write). Once the journal grows past its {@link #compactionThreshold}, the commit thread {@link #compact() compacts}
+ * it in place to the net edit of each tile. The level's data file is never written by the journal, so the edits stay
+ * unsaved (and can still be discarded) until the level is saved.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelJournal implements Runnable {
+
+	/**
+	 * The magic number at the start of every journal file ("CCLJ" in ASCII)
+	 */
+	public static final int MAGIC = 0x43434C4A;
+
+	/**
+	 * The version of the journal format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The length, in bytes, of the journal header
+	 */
+	public static final int HEADER_LENGTH = 16;
+
+	/**
+	 * The extension of journal files
+	 */
+	public static final String EXTENSION = ".llj";
+
+	/**
+	 * The maximum number of milliseconds an edit is buffered in memory before it is committed to the disk
+	 */
+	public static final long COMMIT_INTERVAL = 100;
+
+	/**
+	 * The default size, in bytes, past which the journal is compacted
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 256 * 1024;
+
+	/**
+	 * The journaled {@link Level}
+	 */
+	private final Level level;
+
+	/**
+	 * The journal file
+	 */
+	private final File journalFile;
+
+	/**
+	 * The channel used to write to the {@link #journalFile} (reopened whenever the journal is compacted, and only
+	 * used while holding the {@link #fileLock})
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The thread that commits buffered edits and compacts the journal
+	 */
+	private final Thread commitThread;
+
+	/**
+	 * Lock held while the journal file is written to or truncated
+	 */
+	private final Object fileLock = new Object();
+
+	/**
+	 * The encoded edit records that have not been committed yet (guarded by this journal's monitor)
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * The number of edit records in {@link #pending}
+	 */
+	private int pendingEdits;
+
+	/**
+	 * The encoded edit records appended since the last {@link #mark()}, or null if no save is in progress. These are
+	 * written back to the journal when it is {@link #truncate() truncated}, since they may not have made it into the save.
+	 */
+	private ByteArrayOutputStream sinceMark;
+
+	/**
+	 * The size, in bytes, past which the journal is compacted
+	 */
+	private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	/**
+	 * The size, in bytes, of the journal after it was last compacted. The journal is only compacted again once it has
+	 * doubled, so that a journal of many distinct edits isn't compacted after every commit.
+	 */
+	private long compactedLength;
+
+	/**
+	 * The number of edits committed to the disk
+	 */
+	private long committedEdits;
+
+	/**
+	 * The number of commit batches written to the disk
+	 */
+	private long commits;
+
+	/**
+	 * Whether the journal has been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Opens the journal file for the supplied level, creating it if it doesn't exist or doesn't match the level's
+	 * dimensions, and starts the commit thread. Any incomplete batch at the end of an existing file is cut off.
+	 *
+	 * @param level The level to journal
+	 * @param journalFile The journal file
+	 * @throws IOException If the journal file could not be opened
+	 */
+	public LevelJournal(Level level, File journalFile) throws IOException {
+		this.level = level;
+		this.journalFile = journalFile;
+		if (!journalFile.getParentFile().exists())
+			journalFile.getParentFile().mkdirs();
+		channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long end = channel.size() >= HEADER_LENGTH ? validLength(channel, level.getWidth(), level.getHeight()) : -1;
+			if (end < 0)
+				writeHeader();
+			else
+				channel.truncate(end);
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		commitThread = new Thread(this, "Journal for level " + level.getID() + " in world " + level.getWorldID());
+		commitThread.setDaemon(true);
+		commitThread.start();
+	}
+
+	/**
+	 * Buffers an edit record for the next commit.
+	 *
+	 * @param x The x-coordinate of the edited tile
+	 * @param y The y-coordinate of the edited tile
+	 * @param oldType The {@link ss.linearlogic.christmascrashers.object.ObjectType} ordinal the tile had before the edit
+	 * @param newType The ordinal the tile has after the edit
+	 */
+	public synchronized void append(int x, int y, byte oldType, byte newType) {
+		if (closed)
+			return;
+		encode(pending, x, y, oldType, newType);
+		pendingEdits++;
+		if (sinceMark != null)
+			encode(sinceMark, x, y, oldType, newType);
+		if (pendingEdits == 1) // Wake the commit thread, which then waits for further edits before committing
+			notifyAll();
+	}
+
+	/**
+	 * Writes the buffered edits to the journal file as a single batch and forces them onto the storage device.
+	 */
+	public void commit() {
+		synchronized (fileLock) {
+			byte[] payload;
+			int edits;
+			synchronized (this) {
+				if (pending.size() == 0)
+					return;
+				payload = pending.toByteArray();
+				edits = pendingEdits;
+				pending.reset();
+				pendingEdits = 0;
+			}
+			try {
+				writeBatch(payload);
+				channel.force(false);
+				synchronized (this) {
+					committedEdits += edits;
+					commits++;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to commit " + payload.length + " bytes to the journal of level " + level.getID() + " in world " + level.getWorldID() + ".");
+			}
+		}
+	}
+
+	/**
+	 * Commits the buffered edits and starts recording the edits appended from now on, so that they can be kept
+	 * when the journal is {@link #truncate() truncated} after the level has been saved.
+	 */
+	void mark() {
+		synchronized (fileLock) {
+			commit();
+			synchronized (this) {
+				sinceMark = new ByteArrayOutputStream();
+			}
+		}
+	}
+
+	/**
+	 * Stops recording edits for a save that failed, leaving the journal as it is.
+	 */
+	synchronized void unmark() {
+		sinceMark = null;
+	}
+
+	/**
+	 * Truncates the journal after the level has been saved, keeping only the edits appended since the last
+	 * {@link #mark()} (which may or may not have made it into the saved data file - replaying them is harmless).
+	 */
+	void truncate() {
+		synchronized (fileLock) {
+			byte[] payload;
+			synchronized (this) {
+				if (sinceMark == null)
+					return;
+				payload = sinceMark.toByteArray();
+				sinceMark = null;
+				pending.reset(); // Every pending edit was appended after the mark, and is contained in the payload
+				pendingEdits = 0;
+			}
+			try {
+				channel.truncate(HEADER_LENGTH);
+				channel.position(HEADER_LENGTH);
+				if (payload.length > 0)
+					writeBatch(payload);
+				channel.force(false);
+				compactedLength = 0;
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Compacted the journal of level " + level.getID() + " in world " + level.getWorldID() + " (" + channel.size() + " bytes remaining).");
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to truncate the journal of level " + level.getID() + " in world " + level.getWorldID() + ".");
+			}
+		}
+	}
+
+	/**
+	 * Commits the buffered edits, stops the commit thread and closes the journal file. The file itself is kept, so
+	 * that it is replayed the next time the level is loaded.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			commitThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commit();
+		synchronized (fileLock) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Closes the journal and deletes the journal file, discarding every edit that has not been saved.
+	 */
+	public void discard() {
+		close();
+		if (!journalFile.delete() && journalFile.exists())
+			System.err.println("Failed to delete the journal of level " + level.getID() + " in world " + level.getWorldID() + ".");
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!closed && pending.size() == 0)
+						wait();
+					if (closed)
+						return;
+					wait(COMMIT_INTERVAL); // Let more edits accumulate, so that they are committed together
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			commit();
+			compact();
+		}
+	}
+
+	/**
+	 * Compacts the journal once it has grown past the {@link #compactionThreshold}: the committed edits are reduced to
+	 * one record per tile (holding the tile's type before its first edit and after its last), which are written to a
+	 * temporary file that is then atomically moved over the journal file. A crash at any point leaves either the old or
+	 * the compacted journal, which replay to the same level. The level's data file is left alone.
+	 */
+	void compact() {
+		synchronized (fileLock) {
+			if (closed)
+				return;
+			File tempFile = new File(journalFile.getPath() + ".tmp");
+			try {
+				long size = channel.size();
+				if (size <= Math.max(compactionThreshold, 2 * compactedLength))
+					return;
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Journal of level " + level.getID() + " in world " + level.getWorldID() + " has passed " + compactionThreshold + " bytes - compacting it.");
+				ByteBuffer data = ByteBuffer.allocate((int) size);
+				while (data.hasRemaining() && channel.read(data, data.position()) >= 0)
+					;
+				data.flip();
+				data.position(HEADER_LENGTH);
+				LinkedHashMap<Long, byte[]> net = new LinkedHashMap<Long, byte[]>();
+				ByteBuffer payload;
+				while ((payload = nextBatch(data)) != null) {
+					while (payload.hasRemaining()) {
+						int x = Varint.read(payload);
+						int y = Varint.read(payload);
+						byte oldType = payload.get();
+						byte newType = payload.get();
+						Long tile = ((long) y << 32) | (x & 0xFFFFFFFFL);
+						byte[] edit = net.get(tile);
+						if (edit == null)
+							net.put(tile, new byte[] {oldType, newType});
+						else
+							edit[1] = newType;
+					}
+				}
+				// Edits that end where they started are kept too, since the data file may have been saved in between
+				ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+				for (Map.Entry<Long, byte[]> entry : net.entrySet())
+					encode(compacted, (int) entry.getKey().longValue(), (int) (entry.getKey() >>> 32), entry.getValue()[0], entry.getValue()[1]);
+				FileChannel temp = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					ByteBuffer header = header();
+					while (header.hasRemaining())
+						temp.write(header);
+					if (compacted.size() > 0)
+						writeBatch(temp, compacted.toByteArray());
+					temp.force(false);
+				} finally {
+					temp.close();
+				}
+				channel.close(); // The journal file can't be replaced while it is open (on Windows)
+				try {
+					try {
+						Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				} finally {
+					channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+					channel.position(channel.size());
+				}
+				LevelFormat.syncDirectory(journalFile.getParentFile());
+				compactedLength = channel.size();
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Compacted the journal of level " + level.getID() + " in world " + level.getWorldID() + " from " + size + " to " + compactedLength + " bytes.");
+			} catch (IOException e) {
+				tempFile.delete();
+				e.printStackTrace();
+				System.err.println("Failed to compact the journal of level " + level.getID() + " in world " + level.getWorldID() + ".");
+			}
+		}
+	}
+
+	/**
+	 * @return The size, in bytes, past which the journal is compacted
+	 */
+	public long getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the size, in bytes, past which the journal is compacted
+	 *
+	 * @param compactionThreshold
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return The number of edits committed to the disk since the journal was opened
+	 */
+	public synchronized long getCommittedEdits() {
+		return committedEdits;
+	}
+
+	/**
+	 * @return The number of commit batches written to the disk since the journal was opened
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * @return The journal file
+	 */
+	public File getJournalFile() {
+		return journalFile;
+	}
+
+	/**
+	 * Replays the edits in the supplied journal file over the supplied level, stopping at the first incomplete or
+	 * corrupt batch. Journals that don't match the level's dimensions are ignored.
+	 *
+	 * @param journalFile The journal file to replay
+	 * @param level The level to apply the edits to
+	 * @return The number of edits replayed
+	 * @throws IOException If the journal file could not be read
+	 */
+	public static int replay(File journalFile, Level level) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+		if (!isValidHeader(data, level.getWidth(), level.getHeight())) {
+			System.err.println("Ignoring the journal of level " + level.getID() + " in world " + level.getWorldID() + " - it does not match the level.");
+			return 0;
+		}
+		int replayed = 0;
+		data.position(HEADER_LENGTH);
+		ByteBuffer payload;
+		while ((payload = nextBatch(data)) != null) {
+			while (payload.hasRemaining()) {
+				int x = Varint.read(payload);
+				int y = Varint.read(payload);
+				payload.get(); // The old type is only needed for undoing edits
+				byte newType = payload.get();
+				if (newType < 0 || newType >= Level.TYPES.length)
+					throw new IOException("Journal of level " + level.getID() + " in world " + level.getWorldID() + " contains an invalid object type.");
+				level.setType(x, y, Level.TYPES[newType]);
+				replayed++;
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * @return The length of the valid part of the journal open on the supplied channel, or -1 if the journal header
+	 * does not match the supplied dimensions
+	 */
+	private static long validLength(FileChannel channel, int width, int height) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+		while (data.hasRemaining() && channel.read(data, data.position()) >= 0)
+			;
+		data.flip();
+		if (!isValidHeader(data, width, height))
+			return -1;
+		data.position(HEADER_LENGTH);
+		while (nextBatch(data) != null)
+			;
+		return data.position();
+	}
+
+	/**
+	 * @return True iff the supplied buffer starts with a journal header for a level of the supplied dimensions
+	 */
+	private static boolean isValidHeader(ByteBuffer data, int width, int height) {
+		return data.limit() >= HEADER_LENGTH && data.getInt(0) == MAGIC && data.getShort(4) == VERSION && data.getInt(8) == width && data.getInt(12) == height;
+	}
+
+	/**
+	 * Reads the next batch from the supplied buffer, advancing its position past the batch.
+	 *
+	 * @return The batch payload, or null (leaving the position unchanged) if the buffer holds no complete, valid batch
+	 */
+	private static ByteBuffer nextBatch(ByteBuffer data) {
+		int start = data.position();
+		try {
+			int length = Varint.read(data);
+			if (length < 0 || data.remaining() < 4 + length) {
+				data.position(start);
+				return null;
+			}
+			int checksum = data.getInt();
+			ByteBuffer payload = data.slice();
+			payload.limit(length);
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				data.position(start);
+				return null;
+			}
+			data.position(data.position() + length);
+			return payload;
+		} catch (RuntimeException e) { // Truncated varint
+			data.position(start);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the journal header to the start of the file, discarding its previous contents.
+	 */
+	private void writeHeader() throws IOException {
+		ByteBuffer header = header();
+		channel.truncate(0);
+		while (header.hasRemaining())
+			channel.write(header, header.position());
+		channel.force(false);
+	}
+
+	/**
+	 * @return The journal header for the level, ready to be written
+	 */
+	private ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) HEADER_LENGTH).putInt(level.getWidth()).putInt(level.getHeight()).flip();
+		return header;
+	}
+
+	/**
+	 * Appends the supplied payload to the end of the journal file as a single batch.
+	 */
+	private void writeBatch(byte[] payload) throws IOException {
+		writeBatch(channel, payload);
+	}
+
+	/**
+	 * Appends the supplied payload to the end of the file open on the supplied channel as a single batch.
+	 */
+	private static void writeBatch(FileChannel channel, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer batch = ByteBuffer.allocate(5 + 4 + payload.length);
+		Varint.write(batch, payload.length);
+		batch.putInt((int) crc.getValue()).put(payload).flip();
+		long position = channel.size();
+		while (batch.hasRemaining())
+			position += channel.write(batch, position);
+	}
+
+	/**
+	 * Encodes an edit record into the supplied stream.
+	 */
+	private static void encode(ByteArrayOutputStream out, int x, int y, byte oldType, byte newType) {
+		Varint.write(out, x);
+		Varint.write(out, y);
+		out.write(oldType);
+		out.write(newType);
+	}
+}
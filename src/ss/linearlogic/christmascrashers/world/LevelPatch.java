@@ -0,0 +1,535 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import ss.linearlogic.christmascrashers.util.Varint;
+
+/**
+ * The difference between two versions of a {@link Level} of the same size, in a compact form whose size scales with
+ * the number of tiles that changed rather than with the size of the level. Patches power editor undo, keeping levels
+ * in sync between processes and distributing level updates.
+ * <p>A patch is {@link #diff(Level, Level) computed} by walking the two levels chunk by chunk, skipping chunks that
+ * are shared or missing from both, and comparing the remaining chunks a row at a time as four long words, so only the
+ * rows that actually differ are inspected tile by tile. The changed tiles are grouped into runs of consecutive tiles
+ * (in chunk order, the order the tiles are stored in), and each run is stored as the varint gap since the previous
+ * run, the varint run length and the run-length encoded old and new types of its tiles. Since the old types are kept,
+ * every patch can be {@link #invert() inverted} to undo it.
+ * <p>The encoded form is:
+ * <pre>
+ * int    magic ("CCLP")
+ * short  version
+ * int    width, height
+ * varint run count, changed tile count
+ * per run: varint gap, varint length, (varint repeat, byte type)... old types, (varint repeat, byte type)... new types
+ * </pre>
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelPatch {
+
+	/**
+	 * The magic number at the start of every encoded patch ("CCLP" in ASCII)
+	 */
+	public static final int MAGIC = 0x43434C50;
+
+	/**
+	 * The version of the patch format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The number of bytes before the first varint of an encoded patch
+	 */
+	private static final int HEADER_LENGTH = 14;
+
+	/**
+	 * The tiles of a chunk that doesn't exist (all air)
+	 */
+	private static final byte[] EMPTY = new byte[Chunk.AREA];
+
+	/**
+	 * The width, in tiles, of the levels the patch applies to
+	 */
+	private final int width;
+
+	/**
+	 * The height, in tiles, of the levels the patch applies to
+	 */
+	private final int height;
+
+	/**
+	 * The number of runs of changed tiles
+	 */
+	private final int runCount;
+
+	/**
+	 * The number of tiles changed by the patch
+	 */
+	private final int tileCount;
+
+	/**
+	 * The encoded runs (everything after the header and counts)
+	 */
+	private final byte[] runs;
+
+	/**
+	 * @param width The {@link #width} of the patched levels
+	 * @param height The {@link #height} of the patched levels
+	 * @param runCount The number of runs
+	 * @param tileCount The number of changed tiles
+	 * @param runs The encoded {@link #runs}
+	 */
+	private LevelPatch(int width, int height, int runCount, int tileCount, byte[] runs) {
+		this.width = width;
+		this.height = height;
+		this.runCount = runCount;
+		this.tileCount = tileCount;
+		this.runs = runs;
+	}
+
+	/**
+	 * Computes the patch that turns one version of a level into another.
+	 *
+	 * @param from The original version of the level
+	 * @param to The new version of the level
+	 * @return The patch which, applied to the original version, produces the new version
+	 * @throws IllegalArgumentException If the levels are not the same size
+	 */
+	public static LevelPatch diff(Level from, Level to) {
+		if (from.getWidth() != to.getWidth() || from.getHeight() != to.getHeight())
+			throw new IllegalArgumentException("Cannot diff a " + from.getWidth() + "x" + from.getHeight() + " level against a " + to.getWidth() + "x" + to.getHeight() + " level.");
+		RunWriter writer = new RunWriter();
+		int chunksX = from.getChunksX();
+		int chunkCount = chunksX * from.getChunksY();
+		for (int index = 0; index < chunkCount; index++) {
+			Chunk a = from.getChunk(index % chunksX, index / chunksX);
+			Chunk b = to.getChunk(index % chunksX, index / chunksX);
+			if (a == b)
+				continue; // Both missing, or the same chunk
+			byte[] oldTiles = a == null ? EMPTY : a.getTiles();
+			byte[] newTiles = b == null ? EMPTY : b.getTiles();
+			LongBuffer oldWords = ByteBuffer.wrap(oldTiles).asLongBuffer();
+			LongBuffer newWords = ByteBuffer.wrap(newTiles).asLongBuffer();
+			int base = index * Chunk.AREA;
+			for (int row = 0; row < Chunk.SIZE; row++) {
+				int word = row * (Chunk.SIZE / 8);
+				boolean same = true;
+				for (int i = 0; same && i < Chunk.SIZE / 8; i++)
+					same = oldWords.get(word + i) == newWords.get(word + i);
+				if (same)
+					continue;
+				int start = row * Chunk.SIZE;
+				for (int i = start; i < start + Chunk.SIZE; i++)
+					if (oldTiles[i] != newTiles[i])
+						writer.add(base + i, oldTiles[i], newTiles[i]);
+			}
+		}
+		return writer.finish(from.getWidth(), from.getHeight());
+	}
+
+	/**
+	 * Decodes a patch from its {@link #encode() encoded} form.
+	 *
+	 * @param data The encoded patch, from its position to its limit
+	 * @return The decoded patch
+	 * @throws IllegalArgumentException If the data is not a valid patch
+	 */
+	public static LevelPatch decode(ByteBuffer data) {
+		data = data.slice();
+		try {
+			if (data.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a level patch.");
+			short version = data.getShort();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported level patch version " + version + ".");
+			int width = data.getInt();
+			int height = data.getInt();
+			int runCount = Varint.read(data);
+			int tileCount = Varint.read(data);
+			if (width <= 0 || height <= 0 || runCount < 0 || tileCount < 0)
+				throw new IllegalArgumentException("Malformed level patch header.");
+			byte[] runs = new byte[data.remaining()];
+			data.get(runs);
+			LevelPatch patch = new LevelPatch(width, height, runCount, tileCount, runs);
+			patch.validate();
+			return patch;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated level patch.");
+		}
+	}
+
+	/**
+	 * @return The patch in its compact binary form, ready to be written or sent
+	 */
+	public ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 10 + runs.length);
+		buffer.putInt(MAGIC).putShort(VERSION).putInt(width).putInt(height);
+		Varint.write(buffer, runCount);
+		Varint.write(buffer, tileCount);
+		buffer.put(runs).flip();
+		return buffer;
+	}
+
+	/**
+	 * Applies the patch to the supplied level in place, through {@link Level#setType(int, int,
+	 * ss.linearlogic.christmascrashers.object.ObjectType) setType}, so the changes are marked dirty and journaled like
+	 * any other edit. The patch is applied regardless of the level's current tiles - use {@link #matches(Level)} first
+	 * to check that the level is the version the patch was made from.
+	 *
+	 * @param level The level to patch
+	 * @return The number of tiles changed
+	 * @throws IllegalArgumentException If the level is not the size of the patched levels
+	 */
+	public int apply(Level level) {
+		return apply(level, false);
+	}
+
+	/**
+	 * Applies the patch, or its {@link #invert() inverse}, to the supplied level in place, as described in
+	 * {@link #apply(Level)}. Applying the inverse doesn't require the inverted patch to be built.
+	 *
+	 * @param level The level to patch
+	 * @param inverse Whether to change the tiles back to their old types rather than to their new types
+	 * @return The number of tiles changed
+	 */
+	int apply(Level level, boolean inverse) {
+		checkSize(level);
+		int chunksX = level.getChunksX();
+		int changed = 0;
+		ByteBuffer in = ByteBuffer.wrap(runs);
+		byte[] types = new byte[Chunk.AREA];
+		int position = 0;
+		for (int run = 0; run < runCount; run++) {
+			position += Varint.read(in);
+			int length = Varint.read(in);
+			if (types.length < length)
+				types = new byte[length];
+			if (inverse) {
+				readTypes(in, types, length);
+				skipTypes(in, length);
+			} else {
+				skipTypes(in, length);
+				readTypes(in, types, length);
+			}
+			for (int i = 0; i < length; i++, position++) {
+				int chunk = position / Chunk.AREA;
+				int tile = position % Chunk.AREA;
+				int x = (chunk % chunksX << Chunk.SHIFT) + (tile & Chunk.MASK);
+				int y = (chunk / chunksX << Chunk.SHIFT) + (tile >> Chunk.SHIFT);
+				if (level.getType(x, y) != Level.TYPES[types[i]]) {
+					level.setType(x, y, Level.TYPES[types[i]]);
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param level The level to check
+	 * @return True iff the level is the size of the patched levels and every tile changed by the patch currently has
+	 * the type the patch changes it from
+	 */
+	public boolean matches(Level level) {
+		return matches(level, false);
+	}
+
+	/**
+	 * Checks whether the patch, or its {@link #invert() inverse}, can be applied to the supplied level, as described
+	 * in {@link #matches(Level)}.
+	 *
+	 * @param level The level to check
+	 * @param inverse Whether to check the tiles against their new types rather than against their old types
+	 * @return True iff the patch (or its inverse) applies to the level
+	 */
+	boolean matches(Level level, boolean inverse) {
+		if (level.getWidth() != width || level.getHeight() != height)
+			return false;
+		int chunksX = level.getChunksX();
+		ByteBuffer in = ByteBuffer.wrap(runs);
+		byte[] types = new byte[Chunk.AREA];
+		int position = 0;
+		for (int run = 0; run < runCount; run++) {
+			position += Varint.read(in);
+			int length = Varint.read(in);
+			if (types.length < length)
+				types = new byte[length];
+			if (inverse) {
+				skipTypes(in, length);
+				readTypes(in, types, length);
+			} else {
+				readTypes(in, types, length);
+				skipTypes(in, length);
+			}
+			for (int i = 0; i < length; i++, position++) {
+				int chunk = position / Chunk.AREA;
+				int tile = position % Chunk.AREA;
+				int x = (chunk % chunksX << Chunk.SHIFT) + (tile & Chunk.MASK);
+				int y = (chunk / chunksX << Chunk.SHIFT) + (tile >> Chunk.SHIFT);
+				if (level.getType(x, y) != Level.TYPES[types[i]])
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The patch that undoes this one, turning the new version of the level back into the original version
+	 */
+	public LevelPatch invert() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(runs.length);
+		ByteBuffer in = ByteBuffer.wrap(runs);
+		for (int run = 0; run < runCount; run++) {
+			Varint.write(out, Varint.read(in));
+			int length = Varint.read(in);
+			Varint.write(out, length);
+			int oldStart = in.position();
+			skipTypes(in, length);
+			int newStart = in.position();
+			skipTypes(in, length);
+			out.write(runs, newStart, in.position() - newStart);
+			out.write(runs, oldStart, newStart - oldStart);
+		}
+		return new LevelPatch(width, height, runCount, tileCount, out.toByteArray());
+	}
+
+	/**
+	 * @return True iff the patch changes no tiles
+	 */
+	public boolean isEmpty() {
+		return tileCount == 0;
+	}
+
+	/**
+	 * @return The number of tiles changed by the patch
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return The number of bytes in the patch's {@link #encode() encoded} form
+	 */
+	public int getEncodedLength() {
+		return HEADER_LENGTH + Varint.length(runCount) + Varint.length(tileCount) + runs.length;
+	}
+
+	/**
+	 * @return The width, in tiles, of the levels the patch applies to
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height, in tiles, of the levels the patch applies to
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof LevelPatch))
+			return false;
+		LevelPatch patch = (LevelPatch) other;
+		return width == patch.width && height == patch.height && runCount == patch.runCount && Arrays.equals(runs, patch.runs);
+	}
+
+	@Override
+	public int hashCode() {
+		return (width * 31 + height) * 31 + Arrays.hashCode(runs);
+	}
+
+	/**
+	 * @return The position of the specified tile in the order patches store tiles in: the index of its chunk times
+	 * {@link Chunk#AREA}, plus its index within the chunk
+	 */
+	static int position(Level level, int x, int y) {
+		return ((y >> Chunk.SHIFT) * level.getChunksX() + (x >> Chunk.SHIFT)) * Chunk.AREA + ((y & Chunk.MASK) << Chunk.SHIFT | (x & Chunk.MASK));
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the supplied level is not the size of the patched levels
+	 */
+	private void checkSize(Level level) {
+		if (level.getWidth() != width || level.getHeight() != height)
+			throw new IllegalArgumentException("Cannot apply a patch for " + width + "x" + height + " levels to a " + level.getWidth() + "x" + level.getHeight() + " level.");
+	}
+
+	/**
+	 * Checks that the encoded runs are well formed: that they stay within the level's chunks, that their types are
+	 * valid object types and that they add up to the tile count.
+	 *
+	 * @throws IllegalArgumentException If the runs are malformed
+	 */
+	private void validate() {
+		long limit = (long) ((width + Chunk.MASK) >> Chunk.SHIFT) * ((height + Chunk.MASK) >> Chunk.SHIFT) * Chunk.AREA;
+		ByteBuffer in = ByteBuffer.wrap(runs);
+		byte[] types = new byte[Chunk.AREA];
+		long position = 0, tiles = 0;
+		try {
+			for (int run = 0; run < runCount; run++) {
+				int gap = Varint.read(in);
+				if (gap < 0 || position + gap > limit) // A five byte varint can set the sign bit
+					throw new IllegalArgumentException("Level patch run out of bounds.");
+				position += gap;
+				int length = Varint.read(in);
+				if (length <= 0 || position + length > limit)
+					throw new IllegalArgumentException("Level patch run out of bounds.");
+				if (types.length < length)
+					types = new byte[length];
+				for (int pass = 0; pass < 2; pass++) {
+					readTypes(in, types, length);
+					for (int i = 0; i < length; i++)
+						if (types[i] < 0 || types[i] >= Level.TYPES.length)
+							throw new IllegalArgumentException("Level patch contains an invalid object type.");
+				}
+				position += length;
+				tiles += length;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated level patch.");
+		}
+		if (tiles != tileCount || in.hasRemaining())
+			throw new IllegalArgumentException("Malformed level patch.");
+	}
+
+	/**
+	 * Reads a run-length encoded sequence of the specified number of types.
+	 */
+	private static void readTypes(ByteBuffer in, byte[] types, int length) {
+		int i = 0;
+		while (i < length) {
+			int repeat = Varint.read(in);
+			if (repeat <= 0 || repeat > length - i)
+				throw new IllegalArgumentException("Malformed level patch run.");
+			Arrays.fill(types, i, i + repeat, in.get());
+			i += repeat;
+		}
+	}
+
+	/**
+	 * Skips a run-length encoded sequence of the specified number of types.
+	 */
+	private static void skipTypes(ByteBuffer in, int length) {
+		int i = 0;
+		while (i < length) {
+			int repeat = Varint.read(in);
+			if (repeat <= 0 || repeat > length - i)
+				throw new IllegalArgumentException("Malformed level patch run.");
+			in.get();
+			i += repeat;
+		}
+	}
+
+	/**
+	 * Writes a sequence of types run-length encoded, as (varint repeat, type) pairs.
+	 */
+	private static void writeTypes(ByteArrayOutputStream out, byte[] types, int length) {
+		int i = 0;
+		while (i < length) {
+			int repeat = 1;
+			while (i + repeat < length && types[i + repeat] == types[i])
+				repeat++;
+			Varint.write(out, repeat);
+			out.write(types[i]);
+			i += repeat;
+		}
+	}
+
+	/**
+	 * Collects changed tiles, in increasing position order, into runs and encodes them.
+	 */
+	static class RunWriter {
+
+		/**
+		 * The encoded runs so far
+		 */
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		/**
+		 * The old types of the tiles in the current run
+		 */
+		private byte[] oldTypes = new byte[Chunk.SIZE];
+
+		/**
+		 * The new types of the tiles in the current run
+		 */
+		private byte[] newTypes = new byte[Chunk.SIZE];
+
+		/**
+		 * The position of the first tile of the current run
+		 */
+		private int start;
+
+		/**
+		 * The number of tiles in the current run
+		 */
+		private int length;
+
+		/**
+		 * The position just past the end of the previous run
+		 */
+		private int previousEnd;
+
+		/**
+		 * The number of runs written
+		 */
+		private int runCount;
+
+		/**
+		 * The number of tiles written
+		 */
+		private int tileCount;
+
+		/**
+		 * Adds a changed tile, which must come after every tile added before it.
+		 *
+		 * @param position The tile's position: its chunk index times {@link Chunk#AREA}, plus its index in the chunk
+		 * @param oldType The tile's original type ordinal
+		 * @param newType The tile's new type ordinal
+		 */
+		void add(int position, byte oldType, byte newType) {
+			if (length > 0 && position != start + length)
+				flush();
+			if (length == 0)
+				start = position;
+			if (length == oldTypes.length) {
+				oldTypes = Arrays.copyOf(oldTypes, length * 2);
+				newTypes = Arrays.copyOf(newTypes, length * 2);
+			}
+			oldTypes[length] = oldType;
+			newTypes[length++] = newType;
+		}
+
+		/**
+		 * Encodes the current run, if any.
+		 */
+		private void flush() {
+			if (length == 0)
+				return;
+			Varint.write(out, start - previousEnd);
+			Varint.write(out, length);
+			writeTypes(out, oldTypes, length);
+			writeTypes(out, newTypes, length);
+			previousEnd = start + length;
+			runCount++;
+			tileCount += length;
+			length = 0;
+		}
+
+		/**
+		 * @return The patch made of the tiles added, for levels of the specified size
+		 */
+		LevelPatch finish(int width, int height) {
+			flush();
+			return new LevelPatch(width, height, runCount, tileCount, out.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.util.FileMonkey;
+
+/**
+ * Verifies the integrity of the levels of every world in the {@link WorldCatalog}, and optionally repairs the damaged
+ * ones. Run with the "--verify" (report only) or "--repair" command line argument.
+ * <p>Every level is checked against the checksums stored in the binary {@link LevelFormat level format} - the chunk
+ * table checksum and the checksum of each {@link Chunk chunk} - and every tile is checked to be a valid object type.
+ * Legacy text files, which have no checksums, are checked for characters that aren't object types and for missing or
+ * excess rows. The levels are memory-mapped and verified in parallel, one task per level.
+ * <p>A damaged level is repaired by keeping its intact chunks and taking the damaged ones from the world's most recent
+ * {@link WorldSnapshots snapshot} (or leaving them empty if there is none), then replaying the level's
+ * {@link LevelJournal journal} over the result. Levels whose header can't be read are restored from the snapshot
+ * entirely.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelVerifier {
+
+	/**
+	 * Verifies every level of every world in the catalog.
+	 *
+	 * @param repair Whether to repair the damaged levels
+	 * @return The report of each level, ordered by world and level ID
+	 */
+	public static List<Report> verifyAll(final boolean repair) {
+		WorldCatalog catalog = WorldManager.getCatalog();
+		ArrayList<CompletableFuture<Report>> checks = new ArrayList<CompletableFuture<Report>>();
+		ArrayList<WorldArchive> archives = new ArrayList<WorldArchive>();
+		for (final int worldID : catalog.getWorldIDs()) {
+			final WorldArchive archive = openArchive(worldID);
+			if (archive != null)
+				archives.add(archive);
+			for (final int levelID : catalog.getLevelIDs(worldID))
+				checks.add(CompletableFuture.supplyAsync(new Supplier<Report>() {
+					@Override
+					public Report get() {
+						return verify(worldID, levelID, archive, repair);
+					}
+				}, WorldIOScheduler.getLevelPool()));
+		}
+		ArrayList<Report> reports = new ArrayList<Report>();
+		for (CompletableFuture<Report> check : checks)
+			reports.add(check.join());
+		for (WorldArchive archive : archives)
+			archive.release();
+		return reports;
+	}
+
+	/**
+	 * Verifies (and optionally repairs) every level in the catalog and prints a report of the damaged levels.
+	 *
+	 * @param repair Whether to repair the damaged levels
+	 * @return True iff no damage was found, or all of it was repaired
+	 */
+	public static boolean run(boolean repair) {
+		long start = System.currentTimeMillis();
+		List<Report> reports = verifyAll(repair);
+		int damaged = 0, repaired = 0;
+		long bytes = 0;
+		for (Report report : reports) {
+			bytes += report.bytes;
+			if (report.isIntact())
+				continue;
+			damaged++;
+			if (report.repaired)
+				repaired++;
+			System.out.println(report);
+		}
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Verified " + reports.size() + " levels (" + bytes + " bytes) in " + time + " ms: " + damaged + " damaged" + (repair ? ", " + repaired + " repaired." : "."));
+		return damaged == repaired;
+	}
+
+	/**
+	 * @return The archive of the specified world if it is packed, or else null
+	 */
+	private static WorldArchive openArchive(int worldID) {
+		File archiveFile = new File(new World(worldID).getArchiveLocation());
+		if (!archiveFile.exists())
+			return null;
+		try {
+			return new WorldArchive(archiveFile);
+		} catch (IOException e) {
+			System.err.println("World archive " + archiveFile.getPath() + " is damaged: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Verifies (and optionally repairs) a single level.
+	 */
+	private static Report verify(int worldID, int levelID, WorldArchive archive, boolean repair) {
+		Level level = new Level(worldID, levelID);
+		Report report = new Report(worldID, levelID);
+		try {
+			ByteBuffer data;
+			File dataFile = new File(level.getDiskLocation());
+			if (archive != null) {
+				data = archive.getLevelData(levelID);
+				if (data == null) {
+					report.problems.add("missing from the world archive");
+					return report;
+				}
+			} else if (dataFile.exists()) {
+				if (repair)
+					LevelFile.recover(dataFile); // Completes an interrupted chunk write first
+				data = map(dataFile);
+			} else {
+				File legacyFile = new File(level.getLegacyDiskLocation());
+				if (!legacyFile.exists()) {
+					report.problems.add("data file is missing");
+					return report;
+				}
+				report.bytes = legacyFile.length();
+				int malformed = LevelFormat.readLegacy(legacyFile, level);
+				if (malformed > 0)
+					report.problems.add(malformed + " malformed entries in the legacy data file (legacy files can't be repaired)");
+				return report;
+			}
+			report.bytes = data.remaining();
+			Level intact = scan(data, level, report, repair);
+			if (data instanceof MappedByteBuffer)
+				FileMonkey.unmap((MappedByteBuffer) data); // The intact chunks have been copied out, and the file may be rewritten below
+			if (!repair || report.isIntact())
+				return report;
+			Level repairedLevel = repair(intact, report);
+			if (repairedLevel == null)
+				return report;
+			if (archive != null)
+				archive.write(Collections.singletonList(repairedLevel), true);
+			else
+				LevelFormat.writeAtomically(dataFile, repairedLevel, true);
+			report.repaired = true;
+		} catch (IOException e) {
+			report.problems.add("could not be read or written: " + e.getMessage());
+		}
+		return report;
+	}
+
+	/**
+	 * Checks the supplied level data, recording the problems found in the report.
+	 *
+	 * @param data The level data, in the binary level format
+	 * @param level The level to read the intact chunks into, if they are wanted
+	 * @param report The report to record problems in
+	 * @param keepChunks Whether to read the intact chunks into the level
+	 * @return The level holding the intact chunks, or null if the level's header is damaged
+	 */
+	private static Level scan(ByteBuffer data, Level level, Report report, boolean keepChunks) {
+		data = data.slice();
+		if (data.remaining() < 24 || data.getInt(0) != LevelFormat.MAGIC) {
+			report.problems.add("header is damaged");
+			return null;
+		}
+		short version = data.getShort(4);
+		int headerLength = data.getShort(6);
+		int width = data.getInt(8);
+		int height = data.getInt(12);
+		if (width <= 0 || height <= 0 || headerLength < 24 || (version == LevelFormat.VERSION && (headerLength < LevelFormat.HEADER_LENGTH || data.getInt(16) != Chunk.SIZE))) {
+			report.problems.add("header is damaged");
+			return null;
+		}
+		if (version != LevelFormat.VERSION) { // Version 1 levels only have a checksum of the whole level
+			try {
+				LevelFormat.read(data, level);
+				return level;
+			} catch (IOException e) {
+				report.problems.add("level data is damaged (" + e.getMessage() + ")");
+				return null;
+			}
+		}
+		// The dimensions are checked against the data before the level is sized, so that a damaged header can't make
+		// the level allocate more than the file could describe
+		long tableEntries = (((long) width + Chunk.MASK) >> Chunk.SHIFT) * (((long) height + Chunk.MASK) >> Chunk.SHIFT);
+		if (headerLength + tableEntries * LevelFormat.TABLE_ENTRY_LENGTH > data.limit()) {
+			report.problems.add("header is damaged or chunk table is truncated");
+			return null;
+		}
+		long storedChunks = data.getInt(24);
+		if (storedChunks < 0 || storedChunks > tableEntries) {
+			report.problems.add("header is damaged");
+			return null;
+		}
+		level.reset(width, height);
+		int chunksX = level.getChunksX();
+		int chunkCount = (int) tableEntries;
+		int tableEnd = headerLength + chunkCount * LevelFormat.TABLE_ENTRY_LENGTH;
+		CRC32 crc = new CRC32();
+		ByteBuffer table = data.duplicate();
+		table.position(headerLength).limit(tableEnd);
+		crc.update(table);
+		if ((int) crc.getValue() != data.getInt(20))
+			report.problems.add("chunk table checksum mismatch");
+		byte[] tiles = new byte[Chunk.AREA];
+		for (int index = 0; index < chunkCount; index++) {
+			int entry = headerLength + index * LevelFormat.TABLE_ENTRY_LENGTH;
+			int offset = data.getInt(entry);
+			if (offset == 0)
+				continue;
+			boolean intact = offset >= tableEnd && offset <= data.limit() - Chunk.AREA;
+			if (intact) {
+				data.position(offset);
+				data.get(tiles);
+				crc.reset();
+				crc.update(tiles, 0, Chunk.AREA);
+				intact = (int) crc.getValue() == data.getInt(entry + 4);
+				for (int i = 0; intact && i < Chunk.AREA; i++)
+					intact = tiles[i] >= 0 && tiles[i] < Level.TYPES.length;
+			}
+			if (!intact) {
+				report.damagedChunks++;
+				report.damaged.add(index);
+			} else if (keepChunks) {
+				level.putChunk(new Chunk(index % chunksX, index / chunksX, tiles.clone()));
+			}
+		}
+		if (report.damagedChunks > 0)
+			report.problems.add(report.damagedChunks + " damaged chunks");
+		return level;
+	}
+
+	/**
+	 * Rebuilds a damaged level from its intact chunks, the world's most recent snapshot and the level's journal.
+	 *
+	 * @param intact The level holding the intact chunks, or null if the level's header is damaged
+	 * @param report The level's report
+	 * @return The repaired level, or null if it can't be repaired
+	 */
+	private static Level repair(Level intact, Report report) throws IOException {
+		Level snapshot = null;
+		ByteBuffer snapshotData = WorldSnapshots.latestLevelData(report.worldID, report.levelID);
+		if (snapshotData != null) {
+			snapshot = new Level(report.worldID, report.levelID);
+			try {
+				LevelFormat.read(snapshotData, snapshot);
+			} catch (IOException e) {
+				snapshot = null;
+			}
+		}
+		Level repaired;
+		if (intact == null) {
+			if (snapshot == null) {
+				report.problems.add("no snapshot to restore the level from");
+				return null;
+			}
+			repaired = snapshot;
+			report.problems.add("restored from the latest snapshot");
+		} else {
+			repaired = intact;
+			boolean fromSnapshot = snapshot != null && snapshot.getWidth() == intact.getWidth() && snapshot.getHeight() == intact.getHeight();
+			for (int index : report.damaged) {
+				int cx = index % intact.getChunksX();
+				int cy = index / intact.getChunksX();
+				Chunk chunk = fromSnapshot ? snapshot.getChunk(cx, cy) : null;
+				if (chunk != null)
+					repaired.putChunk(new Chunk(cx, cy, chunk.getTiles().clone()));
+			}
+			if (!report.damaged.isEmpty())
+				report.problems.add(fromSnapshot ? "damaged chunks restored from the latest snapshot" : "damaged chunks emptied (no snapshot)");
+		}
+		File journalFile = new File(repaired.getJournalLocation());
+		if (journalFile.exists()) {
+			int replayed = LevelJournal.replay(journalFile, repaired);
+			if (replayed > 0)
+				report.problems.add(replayed + " journaled edits replayed");
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Repaired level " + report.levelID + " in world " + report.worldID + ".");
+		return repaired;
+	}
+
+	/**
+	 * @return The supplied file, mapped into memory
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return buffer;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * The result of verifying a single level.
+	 *
+	 * @author LinearLogic
+	 * @since 0.4.8
+	 */
+	public static class Report {
+
+		/**
+		 * The ID of the level's world
+		 */
+		private final int worldID;
+
+		/**
+		 * The level ID
+		 */
+		private final int levelID;
+
+		/**
+		 * The problems found, and the steps taken to repair them
+		 */
+		private final List<String> problems = new ArrayList<String>();
+
+		/**
+		 * The indices of the damaged chunks
+		 */
+		private final List<Integer> damaged = new ArrayList<Integer>();
+
+		/**
+		 * The number of damaged chunks
+		 */
+		private int damagedChunks;
+
+		/**
+		 * The number of bytes verified
+		 */
+		private long bytes;
+
+		/**
+		 * Whether the level was repaired
+		 */
+		private boolean repaired;
+
+		private Report(int worldID, int levelID) {
+			this.worldID = worldID;
+			this.levelID = levelID;
+		}
+
+		/**
+		 * @return True iff no problems were found
+		 */
+		public boolean isIntact() {
+			return problems.isEmpty();
+		}
+
+		/**
+		 * @return True iff the level was damaged and has been repaired
+		 */
+		public boolean isRepaired() {
+			return repaired;
+		}
+
+		/**
+		 * @return The number of damaged {@link Chunk chunks} found
+		 */
+		public int getDamagedChunks() {
+			return damagedChunks;
+		}
+
+		/**
+		 * @return The problems found, and the steps taken to repair them
+		 */
+		public List<String> getProblems() {
+			return problems;
+		}
+
+		@Override
+		public String toString() {
+			return "Level " + levelID + " in world " + worldID + (repaired ? " [repaired]" : " [damaged]") + ": " + String.join("; ", problems);
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
+/**
+ * Watches the level data files under the worlds directory for changes made outside the game (by external editors
+ * or scripts, for instance) and reloads the changed levels while the game runs.
+ * <p>A background thread waits on a WatchService registered on the worlds directory and each world directory. Once
+ * a level file has stopped changing for {@link #QUIET_PERIOD} milliseconds, the thread parses it into a detached
+ * {@link Level} and queues it. The main loop then {@link #applyPendingReloads() applies} the queued reloads between
+ * frames, replacing only the {@link Chunk chunks} that differ in the loaded level, so that nothing is ever rendered
+ * or collided with while a level is half replaced. Levels with unsaved modifications are left alone, so that edits
+ * made in the game are never lost to a reload, as are levels in {@link WorldArchive packed worlds}.
+ * <p>The game's own saves change the same files, so the size and modification time of every level file the game
+ * writes is {@link #recordWrite(File) recorded}, and changes that leave a file exactly as the game wrote it are
+ * ignored rather than parsed again.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class LevelWatcher {
+
+	/**
+	 * The number of milliseconds a level file must go without changing before it is reloaded, so that files which
+	 * are being written are not parsed half-written
+	 */
+	public static final long QUIET_PERIOD = 100;
+
+	/**
+	 * The watch service, or null if the watcher isn't running
+	 */
+	private static WatchService watchService;
+
+	/**
+	 * The world directory each registered watch key belongs to, keyed by watch key (the worlds directory maps to null)
+	 */
+	private static final HashMap<WatchKey, File> watchedDirectories = new HashMap<WatchKey, File>();
+
+	/**
+	 * The parsed levels waiting to be swapped into their worlds by the main loop
+	 */
+	private static final ConcurrentLinkedQueue<Reload> pending = new ConcurrentLinkedQueue<Reload>();
+
+	/**
+	 * The size and modification time of each level file as the game last wrote it, keyed by absolute path
+	 */
+	private static final ConcurrentHashMap<String, long[]> ownWrites = new ConcurrentHashMap<String, long[]>();
+
+	/**
+	 * Starts watching the worlds directory, unless the watcher is already running.
+	 */
+	public static synchronized void start() {
+		if (watchService != null)
+			return;
+		File worldsDir = new File("files" + File.separator + "worlds");
+		worldsDir.mkdirs();
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			register(worldsDir, null);
+			File[] worldDirs = worldsDir.listFiles();
+			if (worldDirs != null)
+				for (File worldDir : worldDirs)
+					if (worldDir.isDirectory())
+						register(worldDir, worldDir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to start watching the level files - levels will not be reloaded when they are changed.");
+			stop();
+			return;
+		}
+		final WatchService service = watchService;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(service);
+			}
+		}, "Level watcher");
+		thread.setDaemon(true);
+		thread.start();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Watching " + worldsDir.getPath() + " for level file changes.");
+	}
+
+	/**
+	 * Stops watching the worlds directory and drops any reloads that haven't been applied yet.
+	 */
+	public static synchronized void stop() {
+		if (watchService == null)
+			return;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		watchService = null;
+		watchedDirectories.clear();
+		pending.clear();
+	}
+
+	/**
+	 * Swaps the levels that have been reloaded since the last call into their worlds. Called by the main loop between
+	 * frames, so that every frame sees each level either entirely before or entirely after a reload.
+	 *
+	 * @return The number of levels that were changed
+	 */
+	public static int applyPendingReloads() {
+		int applied = 0;
+		Reload reload;
+		while ((reload = pending.poll()) != null)
+			if (apply(reload))
+				applied++;
+		return applied;
+	}
+
+	/**
+	 * Records that the game has just written the supplied level file, so that the change isn't mistaken for an outside
+	 * edit. Called by every code path that writes level files.
+	 *
+	 * @param file The level file that was written
+	 */
+	static void recordWrite(File file) {
+		ownWrites.put(file.getAbsolutePath(), new long[] {file.length(), file.lastModified()});
+	}
+
+	/**
+	 * @return True iff the supplied file is exactly as the game last {@link #recordWrite(File) wrote} it
+	 */
+	private static boolean isOwnWrite(File file) {
+		long[] stamp = ownWrites.get(file.getAbsolutePath());
+		return stamp != null && stamp[0] == file.length() && stamp[1] == file.lastModified();
+	}
+
+	/**
+	 * Waits for changes on the supplied watch service and reloads the changed levels, until the service is closed.
+	 */
+	private static void watch(WatchService service) {
+		LinkedHashSet<File> changed = new LinkedHashSet<File>();
+		try {
+			while (true) {
+				WatchKey key = changed.isEmpty() ? service.take() : service.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+				if (key == null) { // Quiet for long enough - reload what changed
+					for (File file : changed)
+						reload(file);
+					changed.clear();
+					continue;
+				}
+				File worldDir;
+				synchronized (LevelWatcher.class) {
+					worldDir = watchedDirectories.get(key);
+				}
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						continue;
+					File file = directory.resolve((Path) event.context()).toFile();
+					if (worldDir == null) { // A new world directory
+						if (file.isDirectory() && event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+							register(file, file);
+					} else if (file.getName().endsWith(LevelFormat.EXTENSION) || file.getName().endsWith(LevelFormat.LEGACY_EXTENSION)) {
+						changed.add(file);
+					}
+				}
+				if (!key.reset()) {
+					synchronized (LevelWatcher.class) {
+						watchedDirectories.remove(key);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Stopped watching the level files - could not watch a new world directory.");
+		}
+	}
+
+	/**
+	 * Registers the supplied directory with the watch service.
+	 *
+	 * @param directory The directory to watch
+	 * @param worldDir The world directory the events belong to, or null for the worlds directory
+	 */
+	private static synchronized void register(File directory, File worldDir) throws IOException {
+		if (watchService == null)
+			return;
+		WatchKey key = directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		watchedDirectories.put(key, worldDir);
+	}
+
+	/**
+	 * Parses the supplied level file into a detached level and queues it to be swapped into its world, if the level
+	 * is loaded.
+	 */
+	private static void reload(File file) {
+		String name = file.getName();
+		boolean legacy = name.endsWith(LevelFormat.LEGACY_EXTENSION) && !name.endsWith(LevelFormat.EXTENSION);
+		int levelID = parseID(name.substring(0, name.lastIndexOf('.')), "level");
+		int worldID = parseID(file.getParentFile().getName(), "world");
+		if (levelID < 0 || worldID < 0 || !file.exists() || isOwnWrite(file))
+			return;
+		if (legacy && new File(file.getParentFile(), "level" + levelID + LevelFormat.EXTENSION).exists() && ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Legacy file of level " + levelID + " in world " + worldID + " changed - it will replace the binary file when the level is next saved.");
+		World world = WorldManager.getWorld(worldID);
+		Level loaded = findLevel(world, levelID);
+		if (loaded == null || !loaded.isLoaded())
+			return; // Read from the disk when it is next retrieved
+		Level parsed = new Level(worldID, levelID, loaded.getWidth(), loaded.getHeight());
+		try {
+			if (legacy)
+				LevelFormat.readLegacy(file, parsed);
+			else
+				LevelFormat.read(file, parsed);
+		} catch (IOException e) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Could not reload level " + levelID + " in world " + worldID + " - " + e.getMessage());
+			return;
+		}
+		pending.add(new Reload(world, loaded, parsed, legacy));
+	}
+
+	/**
+	 * Swaps a parsed level into its world, as described in {@link #applyPendingReloads()}.
+	 *
+	 * @return True iff any of the level's chunks were replaced
+	 */
+	private static boolean apply(Reload reload) {
+		Level level = reload.level;
+		if (findLevel(reload.world, level.getID()) != level || !level.isLoaded() || level.getArchive() != null)
+			return false; // Unloaded, replaced or packed since the file was parsed
+		if (level.isDirty()) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Not reloading level " + level.getID() + " in world " + level.getWorldID() + " - it has unsaved modifications.");
+			return false;
+		}
+		int replaced;
+		if (level.getStreamer() != null) {
+			level.stopStreaming(); // Its chunk table no longer matches the file (nothing is written, since no chunks are dirty)
+			if (reload.legacy) { // Only part of the level is in memory, so the binary file is brought up to date from the parsed level
+				File dataFile = new File(level.getDiskLocation());
+				try {
+					LevelFormat.writeAtomically(dataFile, reload.parsed, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.err.println("Failed to reload level " + level.getID() + " in world " + level.getWorldID() + " - could not rewrite its data file.");
+					level.startStreaming();
+					return false;
+				}
+			}
+			replaced = level.replaceContents(reload.parsed, false, true); // The chunks that aren't resident are streamed from the file
+			level.startStreaming();
+		} else {
+			replaced = level.replaceContents(reload.parsed, reload.legacy, false);
+			if (reload.legacy && replaced > 0)
+				level.save(); // Brings the binary file up to date
+		}
+		if (ChristmasCrashers.isDebugModeEnabled() && replaced > 0)
+			System.out.println("Reloaded level " + level.getID() + " in world " + level.getWorldID() + " (" + replaced + " chunks changed).");
+		return replaced > 0;
+	}
+
+	/**
+	 * @return The level with the specified ID in the supplied world, without loading it, or null if there is none
+	 */
+	private static Level findLevel(World world, int levelID) {
+		if (world == null)
+			return null;
+		for (Level level : world.getLevels())
+			if (level.getID() == levelID)
+				return level;
+		return null;
+	}
+
+	/**
+	 * @return The ID in a name of the form prefix + ID, or -1 if the name is not of that form
+	 */
+	private static int parseID(String name, String prefix) {
+		if (name.length() <= prefix.length() || !name.regionMatches(true, 0, prefix, 0, prefix.length()))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A level file that has been parsed and is waiting to be swapped into its world.
+	 */
+	private static class Reload {
+
+		/**
+		 * The world the level belongs to
+		 */
+		private final World world;
+
+		/**
+		 * The loaded level to update
+		 */
+		private final Level level;
+
+		/**
+		 * The level parsed from the changed file
+		 */
+		private final Level parsed;
+
+		/**
+		 * Whether the changed file is a legacy text file, in which case the binary file has to be rewritten
+		 */
+		private final boolean legacy;
+
+		private Reload(World world, Level level, Level parsed, boolean legacy) {
+			this.world = world;
+			this.level = level;
+			this.parsed = parsed;
+			this.legacy = legacy;
+		}
+	}
+}
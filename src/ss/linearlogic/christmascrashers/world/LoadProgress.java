@@ -0,0 +1,63 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the levels discovered and loaded during a {@link WorldManager#loadWorlds(LoadProgressListener) load} of
+ * one or more worlds, and forwards every change to a {@link LoadProgressListener}.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+class LoadProgress {
+
+	/**
+	 * The listener notified of every change, or null
+	 */
+	private final LoadProgressListener listener;
+
+	/**
+	 * The number of levels found so far that are loaded up front
+	 */
+	private final AtomicInteger discovered = new AtomicInteger();
+
+	/**
+	 * The number of levels loaded so far
+	 */
+	private final AtomicInteger loaded = new AtomicInteger();
+
+	/**
+	 * @param listener The {@link #listener} to notify, or null
+	 */
+	LoadProgress(LoadProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Records the discovery of the specified number of levels to load.
+	 *
+	 * @param count
+	 */
+	void levelsDiscovered(int count) {
+		int total = discovered.addAndGet(count);
+		if (listener != null)
+			listener.progressChanged(loaded.get(), total);
+	}
+
+	/**
+	 * Records the loading of a level.
+	 */
+	void levelLoaded() {
+		int total = loaded.incrementAndGet();
+		if (listener != null)
+			listener.progressChanged(total, discovered.get());
+	}
+
+	/**
+	 * Notifies the listener that loading is complete.
+	 */
+	void complete() {
+		if (listener != null)
+			listener.loadingComplete();
+	}
+}
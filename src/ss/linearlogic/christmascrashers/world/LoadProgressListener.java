@@ -0,0 +1,25 @@
+package ss.linearlogic.christmascrashers.world;
+
+/**
+ * Receives progress updates while {@link World worlds} are being loaded by the {@link WorldManager}. The methods are
+ * called from the threads that load the worlds, not from the game loop.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public interface LoadProgressListener {
+
+	/**
+	 * Called whenever a level has been discovered or loaded.
+	 *
+	 * @param levelsLoaded The number of levels loaded so far
+	 * @param levelsDiscovered The number of levels found so far that are loaded up front - each world's start level
+	 * (more may be found as the remaining worlds are indexed)
+	 */
+	public void progressChanged(int levelsLoaded, int levelsDiscovered);
+
+	/**
+	 * Called once every world has been loaded.
+	 */
+	public void loadingComplete();
+}
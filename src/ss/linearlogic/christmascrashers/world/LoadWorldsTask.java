@@ -1,11 +1,9 @@
 package ss.linearlogic.christmascrashers.world;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
-import ss.linearlogic.christmascrashers.state.IntroState;
-import ss.linearlogic.christmascrashers.state.StateType;
 
 /**
- * Starts a new thread and loads World objects from files in the ..files/worlds directory branch.
+ * Loads World objects from files in the ..files/worlds directory branch. Run by the {@link WorldIOScheduler}.
  * 
  * @author LinearLogic
  * @since 0.2.3
@@ -17,6 +15,11 @@ public class LoadWorldsTask implements Runnable {
 	 */
 	private World[] worldsToLoad;
 
+	/**
+	 * The tracker that discovered and loaded levels are reported to, or null
+	 */
+	private LoadProgress progress;
+
 	/**
 	 * Runs the thread that loads the {@link #worldsToLoad}
 	 */
@@ -24,14 +27,8 @@ public class LoadWorldsTask implements Runnable {
 		if (ChristmasCrashers.isDebugModeEnabled())	
 			System.out.println("Starting a new LoadWorldsTask...");
 		for (World w : this.worldsToLoad) { // Load the detected worlds
-			w.load();
+			w.load(progress);
 		}
-		try {
-			Thread.sleep(4000); // Just to make things look realistic ;-)
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		((IntroState) ChristmasCrashers.getState(StateType.INTRO)).setAnimationComplete(true); // Move on from the loading screen splash
 	}
 
 	/**
@@ -40,6 +37,17 @@ public class LoadWorldsTask implements Runnable {
 	 * @param worlds The {@link World} objects to load
 	 */
 	public LoadWorldsTask(World[] worlds) {
+		this(worlds, null);
+	}
+
+	/**
+	 * Constructs the task with the worlds to be loaded from the disk and the tracker to report progress to
+	 *
+	 * @param worlds The {@link World} objects to load
+	 * @param progress The {@link #progress} tracker, or null
+	 */
+	LoadWorldsTask(World[] worlds, LoadProgress progress) {
 		this.worldsToLoad = worlds;
+		this.progress = progress;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,249 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import ss.linearlogic.christmascrashers.object.ObjectType;
+
+/**
+ * A bulk edit of a {@link Level}'s tiles - rectangle fills, flood fills and pastes - which is built up in memory and
+ * then {@link #apply() applied} to the level's tile storage in one pass.
+ * <p>The edit keeps the new type of every tile it touches in a sparse map of chunk-sized arrays, so building it costs
+ * an array fill per chunk row for rectangles and pastes, and a scanline walk for flood fills. Applying it visits each
+ * touched chunk once, in chunk order, writing the tiles directly and marking the chunk modified once, rather than
+ * going through {@link Level#setType(int, int, ObjectType)} tile by tile; the changed tiles are still journaled, and
+ * the returned {@link LevelPatch} lets the edit be undone as a single stroke.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class RegionEdit {
+
+	/**
+	 * The level being edited
+	 */
+	private final Level level;
+
+	/**
+	 * The new type ordinals of the touched tiles, by chunk index - each array holds {@link Chunk#AREA} entries, with
+	 * -1 for the tiles the edit leaves alone
+	 */
+	private final TreeMap<Integer, byte[]> targets = new TreeMap<Integer, byte[]>();
+
+	/**
+	 * The index of the chunk most recently looked up by {@link #typeAt(int, int)} or {@link #set(int, int, byte)}, or
+	 * -1 - fills walk a chunk at a time, so caching the last chunk's arrays saves most map lookups
+	 */
+	private int cachedIndex = -1;
+
+	/**
+	 * The target array of the {@link #cachedIndex cached} chunk
+	 */
+	private byte[] cachedTarget;
+
+	/**
+	 * The level's tiles in the {@link #cachedIndex cached} chunk, or null if the level has no chunk there
+	 */
+	private byte[] cachedTiles;
+
+	/**
+	 * The number of tiles the edit touches
+	 */
+	private int tileCount;
+
+	/**
+	 * Creates an empty edit of the supplied level.
+	 *
+	 * @param level The {@link #level} to edit
+	 */
+	public RegionEdit(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * Sets every tile of a rectangle to the supplied type. The parts of the rectangle outside the level are ignored.
+	 *
+	 * @param x0 The x-coordinate of one corner of the rectangle
+	 * @param y0 The y-coordinate of one corner of the rectangle
+	 * @param x1 The x-coordinate of the opposite corner
+	 * @param y1 The y-coordinate of the opposite corner
+	 * @param type The new {@link ObjectType} of the tiles
+	 * @return This edit
+	 */
+	public RegionEdit fillRectangle(int x0, int y0, int x1, int y1, ObjectType type) {
+		int left = Math.max(Math.min(x0, x1), 0), right = Math.min(Math.max(x0, x1), level.getWidth() - 1);
+		int bottom = Math.max(Math.min(y0, y1), 0), top = Math.min(Math.max(y0, y1), level.getHeight() - 1);
+		if (left > right || bottom > top)
+			return this;
+		byte ordinal = (byte) type.ordinal();
+		for (int cy = bottom >> Chunk.SHIFT; cy <= top >> Chunk.SHIFT; cy++) {
+			for (int cx = left >> Chunk.SHIFT; cx <= right >> Chunk.SHIFT; cx++) {
+				byte[] target = target(cy * level.getChunksX() + cx);
+				int from = Math.max(left, cx << Chunk.SHIFT) & Chunk.MASK, to = (Math.min(right, (cx << Chunk.SHIFT) + Chunk.MASK) & Chunk.MASK) + 1;
+				int rowFrom = Math.max(bottom, cy << Chunk.SHIFT) & Chunk.MASK, rowTo = Math.min(top, (cy << Chunk.SHIFT) + Chunk.MASK) & Chunk.MASK;
+				for (int row = rowFrom; row <= rowTo; row++) {
+					int start = row << Chunk.SHIFT;
+					for (int i = start + from; i < start + to; i++)
+						if (target[i] < 0)
+							tileCount++;
+					Arrays.fill(target, start + from, start + to, ordinal);
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Flood fills the area of same-type tiles connected (horizontally and vertically) to the specified tile with the
+	 * supplied type, using a scanline fill: each run of matching tiles in a row is filled at once, and the rows above
+	 * and below are only scanned along that run for further seeds, so each tile is examined a constant number of
+	 * times and no recursion is needed. The fill sees the tiles as this edit has already changed them.
+	 *
+	 * @param x The x-coordinate of the seed tile
+	 * @param y The y-coordinate of the seed tile
+	 * @param type The new {@link ObjectType} of the filled tiles
+	 * @return This edit
+	 */
+	public RegionEdit floodFill(int x, int y, ObjectType type) {
+		int width = level.getWidth(), height = level.getHeight();
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return this;
+		byte seedType = typeAt(x, y);
+		byte ordinal = (byte) type.ordinal();
+		if (seedType == ordinal)
+			return this;
+		int[] stack = new int[64];
+		int size = 0;
+		stack[size++] = x;
+		stack[size++] = y;
+		while (size > 0) {
+			int sy = stack[--size];
+			int sx = stack[--size];
+			if (typeAt(sx, sy) != seedType)
+				continue; // Filled since it was pushed
+			int left = sx, right = sx;
+			while (left > 0 && typeAt(left - 1, sy) == seedType)
+				left--;
+			while (right < width - 1 && typeAt(right + 1, sy) == seedType)
+				right++;
+			for (int i = left; i <= right; i++)
+				set(i, sy, ordinal);
+			for (int ny = sy - 1; ny <= sy + 1; ny += 2) {
+				if (ny < 0 || ny >= height)
+					continue;
+				boolean inRun = false;
+				for (int i = left; i <= right; i++) {
+					boolean matches = typeAt(i, ny) == seedType;
+					if (matches && !inRun) { // One seed per run of matching tiles
+						if (size + 2 > stack.length)
+							stack = Arrays.copyOf(stack, stack.length * 2);
+						stack[size++] = i;
+						stack[size++] = ny;
+					}
+					inRun = matches;
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Pastes a copied region into the level. The parts of the region that fall outside the level are ignored.
+	 *
+	 * @param region The region to paste
+	 * @param x The x-coordinate of the tile the region's bottom left tile is pasted onto
+	 * @param y The y-coordinate of the tile the region's bottom left tile is pasted onto
+	 * @param includeAir Whether the region's air tiles overwrite the level's tiles (if not, only the region's non-air
+	 * tiles are pasted)
+	 * @return This edit
+	 */
+	public RegionEdit paste(TileRegion region, int x, int y, boolean includeAir) {
+		byte[] tiles = region.getTiles();
+		int regionWidth = region.getWidth();
+		int x0 = Math.max(x, 0), x1 = Math.min(x + regionWidth, level.getWidth()) - 1;
+		int y0 = Math.max(y, 0), y1 = Math.min(y + region.getHeight(), level.getHeight()) - 1;
+		for (int ty = y0; ty <= y1; ty++) {
+			for (int tx = x0; tx <= x1; tx++) {
+				byte type = tiles[(ty - y) * regionWidth + tx - x];
+				if (type != 0 || includeAir)
+					set(tx, ty, type);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the edit into the level's tile storage, as described in the class documentation, and empties the edit.
+	 *
+	 * @return The patch from the level's previous tiles to its new tiles, which is empty if nothing changed
+	 */
+	public LevelPatch apply() {
+		LevelPatch patch = level.writeTiles(targets);
+		targets.clear();
+		cachedIndex = -1;
+		tileCount = 0;
+		return patch;
+	}
+
+	/**
+	 * @return The number of tiles the edit touches (including tiles it sets to the type they already have)
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return The level being edited
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The type ordinal the specified in-bounds tile has with this edit applied
+	 */
+	private byte typeAt(int x, int y) {
+		cache(x, y);
+		int tile = ((y & Chunk.MASK) << Chunk.SHIFT) | (x & Chunk.MASK);
+		if (cachedTarget[tile] >= 0)
+			return cachedTarget[tile];
+		return cachedTiles == null ? 0 : cachedTiles[tile];
+	}
+
+	/**
+	 * Sets the new type ordinal of the specified in-bounds tile.
+	 */
+	private void set(int x, int y, byte type) {
+		cache(x, y);
+		int tile = ((y & Chunk.MASK) << Chunk.SHIFT) | (x & Chunk.MASK);
+		if (cachedTarget[tile] < 0)
+			tileCount++;
+		cachedTarget[tile] = type;
+	}
+
+	/**
+	 * Makes the chunk containing the specified in-bounds tile the {@link #cachedIndex cached} chunk.
+	 */
+	private void cache(int x, int y) {
+		int index = (y >> Chunk.SHIFT) * level.getChunksX() + (x >> Chunk.SHIFT);
+		if (index == cachedIndex)
+			return;
+		Chunk chunk = level.getChunk(x >> Chunk.SHIFT, y >> Chunk.SHIFT);
+		cachedIndex = index;
+		cachedTarget = target(index);
+		cachedTiles = chunk == null ? null : chunk.getTiles();
+	}
+
+	/**
+	 * @return The target array of the specified chunk, created if the edit doesn't touch the chunk yet
+	 */
+	private byte[] target(int index) {
+		byte[] target = targets.get(index);
+		if (target == null) {
+			target = new byte[Chunk.AREA];
+			Arrays.fill(target, (byte) -1);
+			targets.put(index, target);
+		}
+		return target;
+	}
+}
@@ -3,8 +3,8 @@ package ss.linearlogic.christmascrashers.world;
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
 
 /**
- * Runs a thread that saves all the {@link World} objects (provided in the {@link #SaveWorldsTask(World[])} constructor})
- * to the disk location of the world.
+ * Saves all the {@link World} objects (provided in the {@link #SaveWorldsTask(World[])} constructor})
+ * to the disk location of the world. Run by the {@link WorldIOScheduler}.
  * 
  * @author LinearLogic
  * @since 0.2.3
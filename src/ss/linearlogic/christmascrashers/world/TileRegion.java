@@ -0,0 +1,103 @@
+package ss.linearlogic.christmascrashers.world;
+
+import ss.linearlogic.christmascrashers.object.ObjectType;
+
+/**
+ * A rectangular block of tiles copied out of a {@link Level}, used as the Level Editor's clipboard. Regions are
+ * immutable, and are pasted back into a level with a {@link RegionEdit}.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class TileRegion {
+
+	/**
+	 * The width, in tiles, of the region
+	 */
+	private final int width;
+
+	/**
+	 * The height, in tiles, of the region
+	 */
+	private final int height;
+
+	/**
+	 * The {@link ObjectType} ordinals of the region's tiles, stored row by row starting from the bottom row
+	 */
+	private final byte[] tiles;
+
+	/**
+	 * @param width The region's {@link #width}
+	 * @param height The region's {@link #height}
+	 * @param tiles The region's {@link #tiles}
+	 */
+	private TileRegion(int width, int height, byte[] tiles) {
+		this.width = width;
+		this.height = height;
+		this.tiles = tiles;
+	}
+
+	/**
+	 * Copies a rectangle of tiles out of a level, reading each overlapped chunk's tile array directly. The parts of
+	 * the rectangle outside the level are copied as air.
+	 *
+	 * @param level The level to copy from
+	 * @param x The x-coordinate of the rectangle's left column
+	 * @param y The y-coordinate of the rectangle's bottom row
+	 * @param width The width, in tiles, of the rectangle
+	 * @param height The height, in tiles, of the rectangle
+	 * @return The copied region
+	 */
+	public static TileRegion copy(Level level, int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Cannot copy a " + width + "x" + height + " region.");
+		byte[] tiles = new byte[width * height];
+		int x0 = Math.max(x, 0), x1 = Math.min(x + width, level.getWidth()) - 1;
+		int y0 = Math.max(y, 0), y1 = Math.min(y + height, level.getHeight()) - 1;
+		for (int cy = y0 >> Chunk.SHIFT; cy <= y1 >> Chunk.SHIFT && y0 <= y1; cy++) {
+			for (int cx = x0 >> Chunk.SHIFT; cx <= x1 >> Chunk.SHIFT && x0 <= x1; cx++) {
+				Chunk chunk = level.getChunk(cx, cy);
+				if (chunk == null)
+					continue; // All air
+				byte[] chunkTiles = chunk.getTiles();
+				int left = Math.max(x0, cx << Chunk.SHIFT), right = Math.min(x1, (cx << Chunk.SHIFT) + Chunk.MASK);
+				int bottom = Math.max(y0, cy << Chunk.SHIFT), top = Math.min(y1, (cy << Chunk.SHIFT) + Chunk.MASK);
+				for (int ty = bottom; ty <= top; ty++)
+					System.arraycopy(chunkTiles, ((ty & Chunk.MASK) << Chunk.SHIFT) + (left & Chunk.MASK), tiles, (ty - y) * width + left - x, right - left + 1);
+			}
+		}
+		return new TileRegion(width, height, tiles);
+	}
+
+	/**
+	 * @return The width, in tiles, of the region
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height, in tiles, of the region
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param x The x-coordinate of the tile within the region
+	 * @param y The y-coordinate of the tile within the region
+	 * @return The {@link ObjectType} of the specified tile, or null if the location is out of bounds
+	 */
+	public ObjectType getType(int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		return Level.TYPES[tiles[y * width + x]];
+	}
+
+	/**
+	 * @return The region's backing {@link #tiles} array (not a copy)
+	 */
+	byte[] getTiles() {
+		return tiles;
+	}
+}
@@ -1,16 +1,31 @@
 package ss.linearlogic.christmascrashers.world;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.util.FileMonkey;
 
 /**
  * A game world contains one or more {@link Level} objects, connected via teleporters. Each level, in turn, contains
  * blocks and entities that the player interacts with while moving around the level. 
- * <p>Note that for a world to be detected, its directory must follow the format "world#" where # is the slot
- * number between 0 and 4, inclusive.
+ * <p>The levels in a world are listed in the {@link WorldCatalog}, which is kept up to date as levels are added,
+ * saved and deleted; the world directory ("world#", where # is the world ID) is never scanned.
+ * <p>A world is stored either as a directory with one data file per level, or packed into a single
+ * {@link WorldArchive} ("world#.ccw") - the world loads and saves through whichever layout it finds on the disk,
+ * and can be converted between the two with {@link #pack()} and {@link #unpack()}.
  * <p>Worlds can be created and populated in the Level Editor, and the player chooses the world to play in
  * from a menu presented immediately after clicking the "Start Game" button.
+ * <p>Loading a world only builds an index of its levels; each level is parsed the first time it is
+ * {@link #getLevel(int) retrieved}, and stays cached until it is evicted to keep the world's loaded levels within
+ * its {@link #memoryBudget}. Loading a world that has already been loaded does not touch the disk again.
  * 
  * @author LinearLogic
  * @since 0.2.1
@@ -24,10 +39,36 @@ public class World {
 	private int ID;
 
 	/**
-	 * An Array of all the {@link Level Levels} in the world, with level {@link #ID}s as index values. There can be
-	 * up to 5 levels per world.
+	 * A map of all the {@link Level Levels} in the world, keyed by level {@link #ID}. Any non-negative ID is valid.
 	 */
-	private Level[] levels = new Level[5];
+	private final TreeMap<Integer, Level> levels = new TreeMap<Integer, Level>();
+
+	/**
+	 * The default {@link #memoryBudget}, in bytes
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	/**
+	 * The number of bytes of memory the world's loaded levels may take up before the least recently retrieved
+	 * unmodified levels are unloaded
+	 */
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	/**
+	 * The archive the world is packed into, or null if the world is stored as a directory
+	 */
+	private WorldArchive archive;
+
+	/**
+	 * Whether the world's level index has been built
+	 */
+	private boolean indexed;
+
+	/**
+	 * Whether the edits made to the world's levels are being {@link #startJournaling() journaled}, in which case
+	 * levels start journaling as soon as they are loaded
+	 */
+	private boolean journaling;
 
 	/**
 	 * Constructor - creates a World object with the giveen name, ID, and system path. The rest of the attributes
@@ -41,77 +82,439 @@ public class World {
 	}
 
 	/**
-	 * Loads the {@Level levels} in the world from their respective data files in the world directory.
+	 * Builds the index of the {@Level levels} in the world from the world's {@link WorldCatalog catalog} entry, unless
+	 * it has already been built. The levels themselves are loaded when they are first {@link #getLevel(int) retrieved}.
 	 */
 	public void load() {
-		if (ChristmasCrashers.isDebugModeEnabled())
-			System.out.println("Loading world " + ID + ".");
-		File worldDir = new File(getDiskLocation());
-		if (!worldDir.exists()) {
+		load(null);
+	}
+
+	/**
+	 * Builds the world's level index, as described in {@link #load()}. If a tracker is supplied (when the worlds are
+	 * loaded at startup), the world's start level - the level with the lowest ID, which the game starts in - is also
+	 * parsed up front, and is the one level reported to the tracker. The other levels are still parsed on demand, and
+	 * are not counted.
+	 *
+	 * @param progress The tracker to report progress to, or null
+	 */
+	synchronized void load(LoadProgress progress) {
+		if (indexed) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("World " + ID + " does not exist, creating it. System path to world directory: .." + getDiskLocation());
-			worldDir.mkdirs();
+				System.out.println("World " + ID + " is already loaded - using the cached levels.");
 			return;
 		}
-		for (File levelFile : worldDir.listFiles()) { // Iterate through files in the world folder, only loading the ones that match the level file format
-			if (levelFile.getName().length() == 9 && levelFile.getName().substring(0, 5).equalsIgnoreCase("level"))
-				if (Character.isDigit(levelFile.getName().charAt(5))) {
-					int levelID = Character.getNumericValue(levelFile.getName().charAt(5));
-					if (levelID >= 0 && levelID <= 4) // in range
-						levels[levelID] = new Level(this.ID, levelID);
-				}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Loading the level index of world " + ID + ".");
+		WorldCatalog catalog = WorldManager.getCatalog();
+		File archiveFile = new File(getArchiveLocation());
+		if (archiveFile.exists()) {
+			try {
+				archive = new WorldArchive(archiveFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to load world " + ID + " - could not read world archive.");
+				return;
+			}
+		}
+		if (!catalog.containsWorld(ID)) {
+			catalog.addWorld(ID);
+			if (archive != null) { // Packed outside the game - add its levels to the catalog
+				for (int levelID : archive.getLevelIDs())
+					catalog.putLevel(ID, levelID, archive);
+				catalog.save();
+			} else {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("World " + ID + " does not exist, creating it. System path to world directory: .." + getDiskLocation());
+				new File(getDiskLocation()).mkdirs();
+				catalog.save();
+				indexed = true;
+				return;
+			}
+		}
+		for (int levelID : catalog.getLevelIDs(ID)) {
+			if (!levels.containsKey(levelID)) {
+				Level level = new Level(this.ID, levelID);
+				level.setArchive(archive, false);
+				level.markUnloaded();
+				levels.put(levelID, level);
+			}
 		}
+		indexed = true;
 		if (!containsLoadedLevels()) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("No levels were found for world " + this.ID + " - check to make sure the level files are properly named. Aborting loading of world " + this.ID + ".");
+				System.out.println("No levels are listed in the catalog for world " + this.ID + ". Aborting loading of world " + this.ID + ".");
 			return;
 		}
-		for (Level l : levels)
-			if (l != null)
-				l.load();
+		if (progress != null) {
+			progress.levelsDiscovered(1);
+			getLevel(levels.firstKey());
+			progress.levelLoaded();
+		}
+	}
+
+	/**
+	 * Discards the world's cached levels (including any unsaved modifications) and rebuilds its level index from the catalog.
+	 */
+	public void reload() {
+		Collection<Level> previous;
+		WorldArchive previousArchive;
+		synchronized (this) {
+			previous = new ArrayList<Level>(levels.values());
+			previousArchive = archive;
+			levels.clear();
+			archive = null;
+			indexed = false;
+		}
+		for (Level l : previous) { // Release the files held open by the previously loaded levels
+			l.stopJournaling();
+			l.unload();
+		}
+		if (previousArchive != null)
+			previousArchive.release();
+		load();
+	}
+
+	/**
+	 * Releases everything the world holds open, before its files are deleted: each level's journal is stopped and its
+	 * streamer discarded, without writing anything to the level's data file, and the {@link WorldArchive} mapping is
+	 * released. The levels are left unloaded.
+	 */
+	void release() {
+		WorldArchive archive;
+		synchronized (this) {
+			journaling = false;
+			archive = this.archive;
+		}
+		for (Level l : getLevels()) {
+			l.stopJournaling();
+			l.unload();
+		}
+		if (archive != null)
+			archive.release(); // The archive can't be deleted while it is mapped (on Windows)
+	}
+
+	/**
+	 * Loads every indexed level in the world that isn't loaded yet, parsing the levels in parallel.
+	 */
+	public void loadAllLevels() {
+		load();
+		ArrayList<CompletableFuture<Void>> loads = new ArrayList<CompletableFuture<Void>>();
+		for (final int levelID : getLevelIDs()) {
+			loads.add(CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					getLevel(levelID);
+				}
+			}, WorldIOScheduler.getLevelPool()));
+		}
+		CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[loads.size()])).join();
+	}
+
+	/**
+	 * Unloads the least recently retrieved levels that have not been modified (and are not being played) until the
+	 * world's loaded levels fit within its {@link #memoryBudget}.
+	 *
+	 * @param keep A level that must not be unloaded, or null
+	 */
+	public void enforceMemoryBudget(Level keep) {
+		List<Level> candidates = new ArrayList<Level>(getLevels());
+		long usage = 0;
+		for (Level l : candidates)
+			if (l.isLoaded())
+				usage += l.getMemoryUsage();
+		if (usage <= memoryBudget)
+			return;
+		Collections.sort(candidates, new Comparator<Level>() {
+			@Override
+			public int compare(Level a, Level b) {
+				return Long.compare(a.getLastAccessTime(), b.getLastAccessTime());
+			}
+		});
+		for (Level l : candidates) {
+			if (usage <= memoryBudget)
+				break;
+			if (l == keep || !l.isLoaded() || l.isDirty() || l.getStreamer() != null)
+				continue;
+			long freed = l.getMemoryUsage();
+			l.stopJournaling();
+			l.unload();
+			usage -= freed;
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Unloaded level " + l.getID() + " in world " + ID + " to stay within the memory budget (" + freed + " bytes freed).");
+		}
+	}
+
+	/**
+	 * Unloads every level in the world that has been modified since it was loaded or last saved, discarding the
+	 * modifications. The levels are loaded from the disk again the next time they are retrieved.
+	 */
+	public void unloadModifiedLevels() {
+		for (Level l : getLevels()) {
+			if (l.isDirty()) {
+				l.stopJournaling();
+				l.unload();
+			}
+		}
 	}
 	
 
 	/**
-	 * {@link Level#save() Saves} each of the levels in the world, writing their data to the disk.
+	 * {@link Level#save() Saves} each of the modified levels in the world, writing their modified chunks to the disk.
+	 * Unmodified levels are skipped. The world directory is synced once, after all the levels have been saved, and the
+	 * saved levels' {@link WorldCatalog catalog} entries are then updated. In a packed world, each modified level
+	 * rewrites the {@link WorldArchive}.
 	 */
 	public void save() {
-		if (ChristmasCrashers.isDebugModeEnabled())
-			System.out.println("Saving world " + ID + ".");
 		if (!containsLoadedLevels()) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.out.println("Aborting save operation for world "  + ID + " - world does not contain any loaded levels.");
 			return;
 		}
-		for (Level l : levels)
-			if (l != null)
-				l.save();
+		if (!isDirty()) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Skipping save of world " + ID + " - no levels have been modified.");
+			return;
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Saving world " + ID + ".");
+		ArrayList<Level> saved = new ArrayList<Level>();
+		for (Level l : getLevels()) {
+			if (l.isDirty()) {
+				l.save(false);
+				saved.add(l);
+			}
+		}
+		File storage = getStorageLocation();
+		LevelFormat.syncDirectory(isPacked() ? storage.getParentFile() : storage); // Makes the replaced level files durable in one go
+		WorldCatalog catalog = WorldManager.getCatalog();
+		for (Level l : saved)
+			catalogLevel(catalog, l);
+		catalog.save();
 	}
 
 	/**
-	 * @return The {@link #levels} that the world contains
+	 * Converts the world from a directory into a single {@link WorldArchive}: every level is loaded, written into the
+	 * archive, and the world directory is then deleted. Unsaved modifications are saved first.
 	 */
-	public Level[] getLevels() {
-		return levels;
+	public void pack() {
+		if (isPacked())
+			return;
+		List<Level> packed = convert();
+		try {
+			WorldArchive packedArchive = WorldArchive.create(new File(getArchiveLocation()), packed);
+			synchronized (this) {
+				archive = packedArchive;
+				for (Level l : packed)
+					l.setArchive(packedArchive, false);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to pack world " + ID + " - could not write world archive.");
+			restartJournals();
+			return;
+		}
+		File worldDir = new File(getDiskLocation());
+		if (worldDir.exists())
+			FileMonkey.delete(worldDir);
+		WorldCatalog catalog = WorldManager.getCatalog();
+		for (Level l : packed)
+			catalogLevel(catalog, l);
+		catalog.save();
+		restartJournals();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Packed world " + ID + " (" + packed.size() + " levels) into " + getArchiveLocation() + ".");
+	}
+
+	/**
+	 * Converts the world from a {@link WorldArchive} back into a directory with one data file per level: every level
+	 * is loaded, written to its own data file, and the archive is then released and deleted. Unsaved modifications are
+	 * saved first.
+	 */
+	public void unpack() {
+		if (!isPacked())
+			return;
+		List<Level> unpacked = convert();
+		WorldArchive packed;
+		synchronized (this) {
+			packed = archive;
+			archive = null;
+			for (Level l : unpacked)
+				l.setArchive(null, true);
+		}
+		new File(getDiskLocation()).mkdirs();
+		for (Level l : unpacked)
+			l.save(false);
+		LevelFormat.syncDirectory(new File(getDiskLocation()));
+		packed.release(); // The archive can't be deleted while it is mapped (on Windows)
+		packed.getFile().delete();
+		WorldCatalog catalog = WorldManager.getCatalog();
+		for (Level l : unpacked)
+			catalogLevel(catalog, l);
+		catalog.save();
+		restartJournals();
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Unpacked world " + ID + " (" + unpacked.size() + " levels) into " + getDiskLocation() + ".");
+	}
+
+	/**
+	 * Prepares the world for a conversion between layouts: every level is loaded and saved, and the levels' journals
+	 * (whose locations depend on the layout) are stopped and deleted.
+	 *
+	 * @return The world's levels
+	 */
+	private List<Level> convert() {
+		loadAllLevels();
+		List<Level> all = new ArrayList<Level>(getLevels());
+		for (Level l : all) {
+			l.stopStreaming();
+			l.save(false);
+			l.discardJournal();
+		}
+		return all;
+	}
+
+	/**
+	 * Restarts journaling the world's loaded levels after a conversion, if the world is being journaled.
+	 */
+	private synchronized void restartJournals() {
+		if (journaling)
+			startJournaling();
+	}
+
+	/**
+	 * Updates the {@link WorldCatalog catalog} entry of the supplied level from its data file or its data in the archive.
+	 */
+	void catalogLevel(WorldCatalog catalog, Level level) {
+		WorldArchive archive = level.getArchive();
+		if (archive != null) {
+			catalog.putLevel(ID, level.getID(), archive);
+			return;
+		}
+		File dataFile = new File(level.getDiskLocation());
+		catalog.putLevel(ID, level.getID(), dataFile.exists() ? dataFile : new File(level.getLegacyDiskLocation()));
+	}
+
+	/**
+	 * {@link Level#startJournaling() Starts journaling} the edits made to each of the levels in the world.
+	 */
+	public synchronized void startJournaling() {
+		journaling = true;
+		for (Level l : levels.values())
+			if (l.isLoaded())
+				l.startJournaling();
+	}
+
+	/**
+	 * {@link Level#stopJournaling() Stops journaling} the edits made to the world's levels, committing the edits that
+	 * are still buffered in memory. The journal files are kept, so that the edits are recovered when the world is next
+	 * loaded.
+	 */
+	public void stopJournaling() {
+		synchronized (this) {
+			journaling = false;
+		}
+		for (Level l : getLevels())
+			l.stopJournaling();
+	}
+
+	/**
+	 * @return True iff the edits made to the world's levels are being {@link #startJournaling() journaled}
+	 */
+	public synchronized boolean isJournaling() {
+		return journaling;
+	}
+
+	/**
+	 * {@link Level#discardJournal() Discards} the journaled edits of each of the levels in the world, so that unsaved
+	 * edits are not recovered when the world is next loaded.
+	 */
+	public void discardJournals() {
+		synchronized (this) {
+			journaling = false;
+		}
+		for (Level l : getLevels())
+			l.discardJournal();
+	}
+
+	/**
+	 * @return True iff one or more of the world's levels have been modified since they were loaded or last saved
+	 */
+	public boolean isDirty() {
+		for (Level l : getLevels())
+			if (l.isDirty())
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return The {@link #levels} that the world contains, in ascending order of level ID
+	 */
+	public synchronized Collection<Level> getLevels() {
+		return new ArrayList<Level>(levels.values());
+	}
+
+	/**
+	 * @return The IDs of the {@link #levels} that the world contains, in ascending order
+	 */
+	public synchronized List<Integer> getLevelIDs() {
+		return new ArrayList<Integer>(levels.keySet());
 	}
 
 	/**
 	 * @param ID The ID of the level to retrieve from the list of currently loaded level
-	 * @return The {@link Level level} at the specified location in the {@link #levels} Array (the level's ID is
-	 * the same as its index in the list).  If no Level object has been loaded with the provided ID, or if the
-	 * ID is not within range (between 0 and 4, inclusive), then the method returns null.
+	 * @return The {@link Level level} with the specified ID in the {@link #levels} map, loading it first if it hasn't
+	 * been loaded yet.  If no Level object has been indexed with the provided ID, or if the ID is negative, then the
+	 * method returns null.
 	 */
 	public Level getLevel(int ID) {
-		if (ID < 0 || ID > 5) {
+		if (ID < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Could not retrieve level " + ID + " in world " + this.ID + " - invalid level ID (must be between 0 and 4, inclusive).");
+				System.err.println("Could not retrieve level " + ID + " in world " + this.ID + " - invalid level ID (must not be negative).");
 			return null;
 		}
-		return levels[ID];
+		Level level;
+		synchronized (this) {
+			level = levels.get(ID);
+		}
+		if (level == null)
+			return null;
+		level.touch();
+		if (!level.isLoaded()) {
+			boolean journal;
+			synchronized (level) {
+				if (!level.isLoaded())
+					level.load();
+			}
+			synchronized (this) {
+				journal = journaling;
+			}
+			if (journal && level.isLoaded()) // A level that failed to load keeps its journal file as it is
+				level.startJournaling();
+			enforceMemoryBudget(level);
+		}
+		return level;
+	}
+
+	/**
+	 * @return The number of bytes of memory the world's loaded levels may take up before unmodified levels are unloaded
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the number of bytes of memory the world's loaded levels may take up before the least recently retrieved
+	 * unmodified levels are unloaded
+	 *
+	 * @param memoryBudget
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
 	}
 
 	/**
-	 * Adds a level to the {@link #levels} ArrayList, with the provided level's ID as the index.
+	 * Adds a level to the {@link #levels} map, with the provided level's ID as the key, and lists it in the
+	 * {@link WorldCatalog catalog}.
 	 * 
 	 * @param level The {@link Level} to add
 	 */
@@ -121,45 +524,74 @@ public class World {
 				System.err.println("Failed to add level to world " + ID + " - null Level object provided.");
 			return;
 		}
-		if (level.getID() < 0 || level.getID() > 4) {
+		if (level.getID() < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to add level " + level.getID() + " to world " + ID + " - invalid level ID (must be between 0 and 4, inclusive).");
+				System.err.println("Failed to add level " + level.getID() + " to world " + ID + " - invalid level ID (must not be negative).");
 			return;
 		}
-		if (levels[level.getID()] != null)
-			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("[Warning] Overwriting level " + level.getID() + " in world " + ID + ".");
-		levels[level.getID()] = level;
+		synchronized (this) {
+			if (levels.put(level.getID(), level) != null)
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("[Warning] Overwriting level " + level.getID() + " in world " + ID + ".");
+			level.setArchive(archive, true);
+		}
 		level.load();
+		WorldCatalog catalog = WorldManager.getCatalog();
+		catalogLevel(catalog, level);
+		catalog.save();
 	}
 
 	/**
-	 * Deletes the level with the specified ID
+	 * Deletes the level with the specified ID, removing it from the {@link WorldCatalog catalog}. The level's journal
+	 * and streamer are stopped without saving anything, and its files are deleted (or, in a packed world, it is removed
+	 * from the {@link WorldArchive}), so that a level added later with the same ID doesn't pick up the deleted contents.
 	 * 
 	 * @param ID The ID of the level to remove
 	 */
 	public void deleteLevel(int ID) {
-		if (ID < 0 || ID > 4) {
+		if (ID < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to delete level " + ID + " - invalid level ID (must be between 0 and 4, inclusive).");
+				System.err.println("Failed to delete level " + ID + " - invalid level ID (must not be negative).");
 			return;
 		}
-		if (levels[ID] == null) {
-			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to delete level " + ID + " - level does not exist.");
-			return;
+		Level level;
+		WorldArchive archive;
+		synchronized (this) {
+			level = levels.remove(ID);
+			if (level == null) {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.err.println("Failed to delete level " + ID + " - level does not exist.");
+				return;
+			}
+			archive = this.archive;
+		}
+		level.discardJournal();
+		level.unload();
+		if (archive != null) {
+			try {
+				archive.remove(ID);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to remove level " + ID + " from the archive of world " + this.ID + ".");
+			}
+		} else {
+			String[] paths = {level.getDiskLocation(), level.getDiskLocation() + LevelFile.TABLE_LOG_SUFFIX, level.getLegacyDiskLocation()};
+			for (String path : paths) {
+				File file = new File(path);
+				if (file.exists() && !file.delete())
+					System.err.println("Failed to delete " + file.getPath() + " of level " + ID + " in world " + this.ID + ".");
+			}
 		}
-		levels[ID] = null;
+		WorldCatalog catalog = WorldManager.getCatalog();
+		catalog.removeLevel(this.ID, ID);
+		catalog.save();
 	}
 
 	/**
-	 * @return True iff the {@link #levels} Array contains one or more Level objects (that aren't null)
+	 * @return True iff the {@link #levels} map contains one or more Level objects
 	 */
-	public boolean containsLoadedLevels() {
-		for (int i = 0; i < 5; i++)
-			if (levels[i] != null)
-				return true;
-		return false;
+	public synchronized boolean containsLoadedLevels() {
+		return !levels.isEmpty();
 	}
 
 	/**
@@ -182,4 +614,25 @@ public class World {
 	public String getDiskLocation() {
 		return "files" + File.separator + "worlds" + File.separator + "world" + ID;
 	}
+
+	/**
+	 * @return The system path to the world's {@link WorldArchive} file, used if the world is packed
+	 */
+	public String getArchiveLocation() {
+		return getDiskLocation() + WorldArchive.EXTENSION;
+	}
+
+	/**
+	 * @return The world's archive file if the world is packed, or else the world directory
+	 */
+	public synchronized File getStorageLocation() {
+		return archive != null ? archive.getFile() : new File(getDiskLocation());
+	}
+
+	/**
+	 * @return True iff the world is packed into a {@link WorldArchive}
+	 */
+	public synchronized boolean isPacked() {
+		return archive != null;
+	}
 }
@@ -0,0 +1,332 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+import ss.linearlogic.christmascrashers.util.FileMonkey;
+
+/**
+ * A packed world: a single file holding every {@link Level} in a {@link World}, as an alternative to the world
+ * directory with one data file per level. The archive is laid out as follows:
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number ("CCWA")
+ *      4     2  format version
+ *      6     2  header length, in bytes
+ *      8     4  number of levels
+ *     12     4  CRC32 checksum of the level table
+ *     16     -  level table - the level ID, the offset of the level's data and the length of the level's data, for
+ *                 each level
+ *      -     -  level data - each level in the binary {@link LevelFormat level format}
+ * </pre>
+ * The archive is mapped into memory once when it is opened, so the data of any level is sliced out of the mapping
+ * without any further system calls. Level data is only ever handed out as copies, so nothing outside the archive holds
+ * on to the mapping. Writing a level rewrites the whole archive to a temporary file; the old mapping is then
+ * {@link #release() released}, the temporary file is atomically moved over the archive, and the new archive is mapped
+ * and sliced in place of the old one.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class WorldArchive {
+
+	/**
+	 * The magic number at the start of every archive ("CCWA" in ASCII)
+	 */
+	public static final int MAGIC = 0x43435741;
+
+	/**
+	 * The version of the archive format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The length, in bytes, of the archive header
+	 */
+	public static final int HEADER_LENGTH = 16;
+
+	/**
+	 * The length, in bytes, of each level table entry
+	 */
+	public static final int TABLE_ENTRY_LENGTH = 16;
+
+	/**
+	 * The file extension of archives
+	 */
+	public static final String EXTENSION = ".ccw";
+
+	/**
+	 * The archive file
+	 */
+	private final File file;
+
+	/**
+	 * The data of each level in the archive, keyed by level ID, as read-only slices of the {@link #mapping}
+	 */
+	private TreeMap<Integer, ByteBuffer> levels = new TreeMap<Integer, ByteBuffer>();
+
+	/**
+	 * The mapping of the archive file, or null if the archive is not mapped
+	 */
+	private MappedByteBuffer mapping;
+
+	/**
+	 * Constructor - opens the specified archive and maps it into memory. If the archive doesn't exist, the archive is
+	 * empty until a level is {@link #write(Collection, boolean) written} to it.
+	 *
+	 * @param file The archive {@link #file}
+	 * @throws IOException If the archive could not be read or is corrupt
+	 */
+	public WorldArchive(File file) throws IOException {
+		this.file = file;
+		if (file.exists())
+			map();
+	}
+
+	/**
+	 * Writes a new archive holding the supplied levels, replacing the archive at the specified location if one exists.
+	 *
+	 * @param file The archive file to write
+	 * @param levels The levels to pack into the archive
+	 * @return The new archive, opened
+	 * @throws IOException If the archive could not be written
+	 */
+	public static WorldArchive create(File file, Collection<Level> levels) throws IOException {
+		TreeMap<Integer, ByteBuffer> data = new TreeMap<Integer, ByteBuffer>();
+		for (Level level : levels) {
+			synchronized (level) {
+				data.put(level.getID(), LevelFormat.toBuffer(level));
+			}
+		}
+		replace(writeTemp(file, data), file, true);
+		return new WorldArchive(file);
+	}
+
+	/**
+	 * @return The IDs of the levels in the archive, in ascending order
+	 */
+	public synchronized List<Integer> getLevelIDs() {
+		return new ArrayList<Integer>(levels.keySet());
+	}
+
+	/**
+	 * @param levelID
+	 * @return True iff the archive contains the specified level
+	 */
+	public synchronized boolean containsLevel(int levelID) {
+		return levels.containsKey(levelID);
+	}
+
+	/**
+	 * @param levelID
+	 * @return A copy of the specified level's data, in the binary {@link LevelFormat level format}, or null if the
+	 * archive doesn't contain the level
+	 */
+	public synchronized ByteBuffer getLevelData(int levelID) {
+		ByteBuffer data = levels.get(levelID);
+		if (data == null)
+			return null;
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data.duplicate()).flip();
+		return copy;
+	}
+
+	/**
+	 * Writes the supplied levels to the archive, replacing their previous data (the other levels in the archive are
+	 * copied over unchanged). The caller must hold the lock of each level.
+	 *
+	 * @param written The levels to write
+	 * @param syncDirectory Whether to sync the archive's directory after the archive has been replaced
+	 * @throws IOException If the archive could not be written
+	 */
+	public synchronized void write(Collection<Level> written, boolean syncDirectory) throws IOException {
+		TreeMap<Integer, ByteBuffer> data = new TreeMap<Integer, ByteBuffer>(levels);
+		for (Level level : written)
+			data.put(level.getID(), LevelFormat.toBuffer(level));
+		replaceMapped(writeTemp(file, data), syncDirectory);
+	}
+
+	/**
+	 * Removes the specified level from the archive.
+	 *
+	 * @param levelID
+	 * @throws IOException If the archive could not be written
+	 */
+	public synchronized void remove(int levelID) throws IOException {
+		if (!levels.containsKey(levelID))
+			return;
+		TreeMap<Integer, ByteBuffer> data = new TreeMap<Integer, ByteBuffer>(levels);
+		data.remove(levelID);
+		replaceMapped(writeTemp(file, data), true);
+	}
+
+	/**
+	 * Releases the archive's mapping and the level slices cut from it, so that the archive file can be deleted or
+	 * replaced. The archive appears empty until it is written to again.
+	 */
+	public synchronized void release() {
+		levels = new TreeMap<Integer, ByteBuffer>();
+		if (mapping != null) {
+			FileMonkey.unmap(mapping);
+			mapping = null;
+		}
+	}
+
+	/**
+	 * Releases the mapping of the archive, moves the supplied temporary file over the archive file and maps the new
+	 * archive. If the move fails, the old archive is mapped again.
+	 */
+	private void replaceMapped(File tempFile, boolean syncDirectory) throws IOException {
+		release();
+		try {
+			replace(tempFile, file, syncDirectory);
+		} finally {
+			map();
+		}
+	}
+
+	/**
+	 * @return The archive {@link #file}
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Maps the archive file into memory (releasing the previous mapping, if any) and slices the data of each level out
+	 * of the mapping.
+	 *
+	 * @throws IOException If the archive could not be read or is corrupt
+	 */
+	private void map() throws IOException {
+		release();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer buffer;
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // The mapping outlives the channel
+		} finally {
+			channel.close();
+		}
+		try {
+			slice(buffer);
+		} catch (IOException e) {
+			FileMonkey.unmap(buffer);
+			throw e;
+		}
+		mapping = buffer;
+	}
+
+	/**
+	 * Slices the data of each level out of the supplied mapping of the archive file.
+	 *
+	 * @throws IOException If the archive is corrupt
+	 */
+	private void slice(MappedByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH || buffer.getInt(0) != MAGIC)
+			throw new IOException("World archive " + file.getPath() + " does not start with the archive magic number.");
+		if (buffer.getShort(4) != VERSION)
+			throw new IOException("Unsupported world archive version " + buffer.getShort(4) + ".");
+		int headerLength = buffer.getShort(6);
+		int count = buffer.getInt(8);
+		if (headerLength < HEADER_LENGTH || count < 0 || headerLength + (long) count * TABLE_ENTRY_LENGTH > buffer.limit())
+			throw new IOException("World archive " + file.getPath() + " has a truncated level table.");
+		int tableEnd = headerLength + count * TABLE_ENTRY_LENGTH;
+		ByteBuffer table = buffer.duplicate();
+		table.position(headerLength).limit(tableEnd);
+		CRC32 crc = new CRC32();
+		crc.update(table);
+		if ((int) crc.getValue() != buffer.getInt(12))
+			throw new IOException("World archive " + file.getPath() + " level table checksum mismatch.");
+		TreeMap<Integer, ByteBuffer> mapped = new TreeMap<Integer, ByteBuffer>();
+		for (int entry = headerLength; entry < tableEnd; entry += TABLE_ENTRY_LENGTH) {
+			int levelID = buffer.getInt(entry);
+			long offset = buffer.getLong(entry + 4);
+			int length = buffer.getInt(entry + 12);
+			if (offset < tableEnd || length < 0 || offset + length > buffer.limit())
+				throw new IOException("Level " + levelID + " in world archive " + file.getPath() + " has an invalid offset " + offset + ".");
+			ByteBuffer data = buffer.duplicate();
+			data.position((int) offset).limit((int) offset + length);
+			mapped.put(levelID, data.slice().asReadOnlyBuffer());
+		}
+		levels = mapped;
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Mapped world archive " + file.getPath() + " (" + mapped.size() + " levels, " + buffer.limit() + " bytes).");
+	}
+
+	/**
+	 * Writes an archive holding the supplied level data to a temporary file next to the specified archive file.
+	 *
+	 * @return The temporary file
+	 */
+	private static File writeTemp(File file, TreeMap<Integer, ByteBuffer> data) throws IOException {
+		int tableEnd = HEADER_LENGTH + data.size() * TABLE_ENTRY_LENGTH;
+		ByteBuffer table = ByteBuffer.allocate(tableEnd - HEADER_LENGTH);
+		ByteBuffer[] buffers = new ByteBuffer[data.size() + 2];
+		buffers[1] = table;
+		long offset = tableEnd;
+		int i = 2;
+		for (Map.Entry<Integer, ByteBuffer> level : data.entrySet()) {
+			ByteBuffer blob = level.getValue().duplicate();
+			blob.clear();
+			table.putInt(level.getKey()).putLong(offset).putInt(blob.remaining());
+			buffers[i++] = blob;
+			offset += blob.remaining();
+		}
+		table.flip();
+		CRC32 crc = new CRC32();
+		crc.update(table.duplicate());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) HEADER_LENGTH).putInt(data.size()).putInt((int) crc.getValue());
+		header.flip();
+		buffers[0] = header;
+		if (file.getParentFile() != null && !file.getParentFile().exists())
+			file.getParentFile().mkdirs();
+		File tempFile = new File(file.getPath() + LevelFormat.TEMP_SUFFIX);
+		try {
+			FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				for (long remaining = offset; remaining > 0;)
+					remaining -= channel.write(buffers);
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		return tempFile;
+	}
+
+	/**
+	 * Atomically moves the supplied temporary file over the specified archive file, which must not be mapped.
+	 */
+	private static void replace(File tempFile, File file, boolean syncDirectory) throws IOException {
+		try {
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		if (syncDirectory && file.getParentFile() != null)
+			LevelFormat.syncDirectory(file.getParentFile());
+	}
+}
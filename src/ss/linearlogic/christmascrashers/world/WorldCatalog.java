@@ -0,0 +1,473 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
+/**
+ * The persistent index of every {@link World} and {@link Level} on the disk, so that worlds can be listed and their
+ * levels found without scanning the world directories. The catalog is stored in a single binary file:
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number ("CCWC")
+ *      4     2  format version
+ *      6     2  header length, in bytes
+ *      8     4  number of worlds
+ *     12     4  CRC32 checksum of the entries
+ *     16     -  world entries - the world ID and the number of levels, followed by one level entry per level (the
+ *                 level ID, the size of its data file, the checksum from its data file header and the time at which
+ *                 the data file was last modified)
+ * </pre>
+ * The whole file is read with a single read when the catalog is opened, and rewritten atomically (through a
+ * temporary file) when it is {@link #save() saved}. If the catalog file is missing or corrupt, it is rebuilt from
+ * the world directories - the only time they are scanned.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class WorldCatalog {
+
+	/**
+	 * The magic number at the start of the catalog file ("CCWC" in ASCII)
+	 */
+	public static final int MAGIC = 0x43435743;
+
+	/**
+	 * The version of the catalog format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The length, in bytes, of the catalog header
+	 */
+	public static final int HEADER_LENGTH = 16;
+
+	/**
+	 * The length, in bytes, of each level entry
+	 */
+	public static final int LEVEL_ENTRY_LENGTH = 24;
+
+	/**
+	 * The catalog file
+	 */
+	private final File catalogFile;
+
+	/**
+	 * The directory containing the world directories
+	 */
+	private final File worldsDir;
+
+	/**
+	 * The level entries of each world, keyed by world ID and then by level ID
+	 */
+	private final TreeMap<Integer, TreeMap<Integer, LevelEntry>> worlds = new TreeMap<Integer, TreeMap<Integer, LevelEntry>>();
+
+	/**
+	 * Whether the catalog has been modified since it was last read or saved
+	 */
+	private boolean modified;
+
+	/**
+	 * Constructor - opens the catalog stored in the specified file, rebuilding it from the world directories if the
+	 * file doesn't exist or can't be read.
+	 *
+	 * @param catalogFile The {@link #catalogFile}
+	 * @param worldsDir The directory containing the world directories
+	 */
+	public WorldCatalog(File catalogFile, File worldsDir) {
+		this.catalogFile = catalogFile;
+		this.worldsDir = worldsDir;
+		if (catalogFile.exists()) {
+			try {
+				read();
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("Failed to read the world catalog - rebuilding it from the world directories.");
+				worlds.clear();
+			}
+		}
+		rebuild();
+		save();
+	}
+
+	/**
+	 * @return The IDs of every world in the catalog, in ascending order
+	 */
+	public synchronized List<Integer> getWorldIDs() {
+		return new ArrayList<Integer>(worlds.keySet());
+	}
+
+	/**
+	 * @param worldID
+	 * @return True iff the catalog contains the specified world
+	 */
+	public synchronized boolean containsWorld(int worldID) {
+		return worlds.containsKey(worldID);
+	}
+
+	/**
+	 * @param worldID
+	 * @return The IDs of the levels in the specified world, in ascending order (empty if the world isn't in the catalog)
+	 */
+	public synchronized List<Integer> getLevelIDs(int worldID) {
+		TreeMap<Integer, LevelEntry> levels = worlds.get(worldID);
+		if (levels == null)
+			return new ArrayList<Integer>();
+		return new ArrayList<Integer>(levels.keySet());
+	}
+
+	/**
+	 * @param worldID
+	 * @return The entries of the levels in the specified world (empty if the world isn't in the catalog)
+	 */
+	public synchronized Collection<LevelEntry> getLevels(int worldID) {
+		TreeMap<Integer, LevelEntry> levels = worlds.get(worldID);
+		if (levels == null)
+			return new ArrayList<LevelEntry>();
+		return new ArrayList<LevelEntry>(levels.values());
+	}
+
+	/**
+	 * @param worldID
+	 * @param levelID
+	 * @return The entry of the specified level, or null if the catalog doesn't contain the level
+	 */
+	public synchronized LevelEntry getLevel(int worldID, int levelID) {
+		TreeMap<Integer, LevelEntry> levels = worlds.get(worldID);
+		return levels == null ? null : levels.get(levelID);
+	}
+
+	/**
+	 * Adds an empty entry for the specified world, if the catalog doesn't contain one yet.
+	 *
+	 * @param worldID
+	 */
+	public synchronized void addWorld(int worldID) {
+		if (worlds.containsKey(worldID))
+			return;
+		worlds.put(worldID, new TreeMap<Integer, LevelEntry>());
+		modified = true;
+	}
+
+	/**
+	 * Removes the specified world and all of its levels from the catalog.
+	 *
+	 * @param worldID
+	 */
+	public synchronized void removeWorld(int worldID) {
+		if (worlds.remove(worldID) != null)
+			modified = true;
+	}
+
+	/**
+	 * Adds or updates the entry of the specified level, reading its size, checksum and modification time from the
+	 * supplied data file. The level's world is added to the catalog if necessary.
+	 *
+	 * @param worldID
+	 * @param levelID
+	 * @param dataFile The level's data file
+	 */
+	public synchronized void putLevel(int worldID, int levelID, File dataFile) {
+		putLevel(worldID, levelID, dataFile.length(), readChecksum(dataFile), dataFile.lastModified());
+	}
+
+	/**
+	 * Adds or updates the entry of the specified level in a {@link WorldArchive packed world}, reading its size and
+	 * checksum from its data in the archive and its modification time from the archive file.
+	 *
+	 * @param worldID
+	 * @param levelID
+	 * @param archive The world's archive
+	 */
+	public synchronized void putLevel(int worldID, int levelID, WorldArchive archive) {
+		ByteBuffer data = archive.getLevelData(levelID);
+		if (data == null)
+			return;
+		putLevel(worldID, levelID, data.remaining(), readChecksum(data), archive.getFile().lastModified());
+	}
+
+	/**
+	 * Adds or updates the entry of the specified level with the supplied values.
+	 */
+	private void putLevel(int worldID, int levelID, long size, int checksum, long lastModified) {
+		addWorld(worldID);
+		LevelEntry entry = new LevelEntry(levelID, size, checksum, lastModified);
+		if (!entry.equals(worlds.get(worldID).put(levelID, entry)))
+			modified = true;
+	}
+
+	/**
+	 * Removes the entry of the specified level from the catalog.
+	 *
+	 * @param worldID
+	 * @param levelID
+	 */
+	public synchronized void removeLevel(int worldID, int levelID) {
+		TreeMap<Integer, LevelEntry> levels = worlds.get(worldID);
+		if (levels != null && levels.remove(levelID) != null)
+			modified = true;
+	}
+
+	/**
+	 * Writes the catalog to its file, if it has been modified, replacing the file atomically.
+	 */
+	public synchronized void save() {
+		if (!modified && catalogFile.exists())
+			return;
+		int length = HEADER_LENGTH;
+		for (TreeMap<Integer, LevelEntry> levels : worlds.values())
+			length += 8 + levels.size() * LEVEL_ENTRY_LENGTH;
+		ByteBuffer data = ByteBuffer.allocate(length);
+		data.position(HEADER_LENGTH);
+		for (Map.Entry<Integer, TreeMap<Integer, LevelEntry>> world : worlds.entrySet()) {
+			data.putInt(world.getKey()).putInt(world.getValue().size());
+			for (LevelEntry level : world.getValue().values())
+				data.putInt(level.ID).putLong(level.size).putInt(level.checksum).putLong(level.lastModified);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), HEADER_LENGTH, length - HEADER_LENGTH);
+		data.putInt(0, MAGIC).putShort(4, VERSION).putShort(6, (short) HEADER_LENGTH).putInt(8, worlds.size()).putInt(12, (int) crc.getValue());
+		data.clear();
+		if (!catalogFile.getParentFile().exists())
+			catalogFile.getParentFile().mkdirs();
+		File tempFile = new File(catalogFile.getPath() + LevelFormat.TEMP_SUFFIX);
+		try {
+			FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				while (data.hasRemaining())
+					channel.write(data);
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			LevelFormat.syncDirectory(catalogFile.getParentFile());
+			modified = false;
+		} catch (IOException e) {
+			tempFile.delete();
+			e.printStackTrace();
+			System.err.println("Failed to save the world catalog - could not write catalog file.");
+		}
+	}
+
+	/**
+	 * Reads the catalog file into memory with a single read.
+	 *
+	 * @throws IOException If the file could not be read or is corrupt
+	 */
+	private void read() throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(catalogFile.toPath()));
+		if (data.remaining() < HEADER_LENGTH || data.getInt(0) != MAGIC || data.getShort(4) != VERSION)
+			throw new IOException("World catalog " + catalogFile.getPath() + " is not a catalog file of the current version.");
+		int headerLength = data.getShort(6);
+		if (headerLength < HEADER_LENGTH || headerLength > data.limit())
+			throw new IOException("World catalog " + catalogFile.getPath() + " has an invalid header length " + headerLength + ".");
+		CRC32 crc = new CRC32();
+		crc.update(data.array(), headerLength, data.remaining() - headerLength);
+		if ((int) crc.getValue() != data.getInt(12))
+			throw new IOException("World catalog " + catalogFile.getPath() + " is corrupt.");
+		int worldCount = data.getInt(8);
+		data.position(headerLength);
+		try {
+			for (int i = 0; i < worldCount; i++) {
+				int worldID = data.getInt();
+				int levelCount = data.getInt();
+				TreeMap<Integer, LevelEntry> levels = new TreeMap<Integer, LevelEntry>();
+				for (int j = 0; j < levelCount; j++) {
+					LevelEntry level = new LevelEntry(data.getInt(), data.getLong(), data.getInt(), data.getLong());
+					levels.put(level.ID, level);
+				}
+				worlds.put(worldID, levels);
+			}
+		} catch (RuntimeException e) { // Buffer underflow
+			throw new IOException("World catalog " + catalogFile.getPath() + " is truncated.");
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Read the world catalog (" + worlds.size() + " worlds).");
+	}
+
+	/**
+	 * Rebuilds the catalog by scanning the world directories for level data files.
+	 */
+	private void rebuild() {
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Building the world catalog from the world directories.");
+		File[] worldDirs = worldsDir.listFiles();
+		if (worldDirs == null)
+			return;
+		for (File worldDir : worldDirs) {
+			int packedID = parseID(worldDir.getName(), "world", WorldArchive.EXTENSION);
+			if (packedID >= 0) {
+				try {
+					WorldArchive archive = new WorldArchive(worldDir);
+					addWorld(packedID);
+					for (int levelID : archive.getLevelIDs())
+						putLevel(packedID, levelID, archive);
+					archive.release();
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.err.println("Failed to add world archive " + worldDir.getPath() + " to the catalog - could not read archive.");
+				}
+				continue;
+			}
+			int worldID = parseID(worldDir.getName(), "world", "");
+			if (worldID < 0 || !worldDir.isDirectory())
+				continue;
+			addWorld(worldID);
+			for (File levelFile : worldDir.listFiles()) {
+				int levelID = parseID(levelFile.getName(), "level", LevelFormat.EXTENSION);
+				if (levelID < 0)
+					levelID = parseID(levelFile.getName(), "level", LevelFormat.LEGACY_EXTENSION);
+				if (levelID >= 0)
+					putLevel(worldID, levelID, levelFile);
+			}
+		}
+	}
+
+	/**
+	 * @return The ID in a name of the form prefix + ID + suffix, or -1 if the name is not of that form
+	 */
+	private static int parseID(String name, String prefix, String suffix) {
+		if (name.length() <= prefix.length() + suffix.length() || !name.regionMatches(true, 0, prefix, 0, prefix.length()) || !name.endsWith(suffix))
+			return -1;
+		String digits = name.substring(prefix.length(), name.length() - suffix.length());
+		for (int i = 0; i < digits.length(); i++)
+			if (!Character.isDigit(digits.charAt(i)))
+				return -1;
+		try {
+			return Integer.parseInt(digits);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The checksum stored in the header of the specified binary level file (the chunk table checksum for
+	 * version 2 files and the payload checksum for version 1 files), or 0 for legacy text files
+	 */
+	private static int readChecksum(File dataFile) {
+		try {
+			FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(24);
+				channel.read(header, 0);
+				header.flip();
+				return readChecksum(header);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The checksum stored in the supplied binary level header, as described in {@link #readChecksum(File)}
+	 */
+	private static int readChecksum(ByteBuffer header) {
+		if (header.remaining() < 24 || header.getInt(0) != LevelFormat.MAGIC)
+			return 0;
+		return header.getShort(4) == 1 ? header.getInt(16) : header.getInt(20);
+	}
+
+	/**
+	 * The catalog entry of a single level.
+	 *
+	 * @author LinearLogic
+	 * @since 0.4.8
+	 */
+	public static class LevelEntry {
+
+		/**
+		 * The level ID
+		 */
+		private final int ID;
+
+		/**
+		 * The size, in bytes, of the level's data file
+		 */
+		private final long size;
+
+		/**
+		 * The checksum stored in the level's data file header
+		 */
+		private final int checksum;
+
+		/**
+		 * The time, in milliseconds since the epoch, at which the level's data file was last modified
+		 */
+		private final long lastModified;
+
+		/**
+		 * @param ID The level {@link #ID}
+		 * @param size The {@link #size} of the level's data file
+		 * @param checksum The {@link #checksum} from the level's data file header
+		 * @param lastModified The {@link #lastModified} time of the level's data file
+		 */
+		public LevelEntry(int ID, long size, int checksum, long lastModified) {
+			this.ID = ID;
+			this.size = size;
+			this.checksum = checksum;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return The level {@link #ID}
+		 */
+		public int getID() {
+			return ID;
+		}
+
+		/**
+		 * @return The {@link #size}, in bytes, of the level's data file
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return The {@link #checksum} from the level's data file header
+		 */
+		public int getChecksum() {
+			return checksum;
+		}
+
+		/**
+		 * @return The {@link #lastModified} time of the level's data file
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public boolean equals(java.lang.Object other) {
+			if (!(other instanceof LevelEntry))
+				return false;
+			LevelEntry entry = (LevelEntry) other;
+			return entry.ID == ID && entry.size == size && entry.checksum == checksum && entry.lastModified == lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return ID * 31 + checksum;
+		}
+	}
+}
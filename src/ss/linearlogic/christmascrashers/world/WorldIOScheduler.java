@@ -0,0 +1,207 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
+/**
+ * Runs the disk operations (loads, saves and deletions) of the {@link World worlds} in the {@link WorldManager} on a
+ * shared pool of reusable threads, with one serial queue per world: the operations on a world are run one at a
+ * time, in the order they were submitted, while operations on different worlds may run at the same time.
+ * <p>Save requests for a world that already has a save waiting in its queue are coalesced into the waiting save, so
+ * that saving rapidly (from the Level Editor, for instance) neither piles up threads nor writes the same data over
+ * and over. Every operation returns a CompletableFuture that is completed once the operation has run.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class WorldIOScheduler {
+
+	/**
+	 * The pool of threads that run the queued operations. Idle threads are reused, and are stopped after a minute
+	 * without work.
+	 */
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "World I/O " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The pool of threads that the levels of a world are loaded on in parallel, one thread per processor
+	 */
+	private static final ExecutorService levelPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Level loader " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The last operation submitted to each world's queue, keyed by world ID, which the next operation on the world is
+	 * chained onto (worlds are removed from here once their queue is empty)
+	 */
+	private static final HashMap<Integer, CompletableFuture<Void>> tails = new HashMap<Integer, CompletableFuture<Void>>();
+
+	/**
+	 * The save waiting in each world's queue, keyed by world ID (saves are removed from here once they start running)
+	 */
+	private static final HashMap<Integer, QueuedSave> queuedSaves = new HashMap<Integer, QueuedSave>();
+
+	/**
+	 * Queues a {@link LoadWorldsTask load} of the supplied world.
+	 *
+	 * @param world The world to load
+	 * @return A future that is completed once the world has been loaded
+	 */
+	public static CompletableFuture<Void> load(World world) {
+		return load(world, null);
+	}
+
+	/**
+	 * Queues a {@link LoadWorldsTask load} of the supplied world that reports its progress to the supplied tracker.
+	 *
+	 * @param world The world to load
+	 * @param progress The tracker to report discovered and loaded levels to, or null
+	 * @return A future that is completed once the world has been loaded
+	 */
+	static synchronized CompletableFuture<Void> load(World world, LoadProgress progress) {
+		return enqueue(world.getID(), new LoadWorldsTask(new World[] {world}, progress));
+	}
+
+	/**
+	 * Queues a {@link SaveWorldsTask save} of the supplied world, unless a save of the world is already waiting in
+	 * its queue, in which case the waiting save (which will save the world's current state) is returned instead.
+	 *
+	 * @param world The world to save
+	 * @return A future that is completed once the world has been saved
+	 */
+	public static synchronized CompletableFuture<Void> save(final World world) {
+		final int worldID = world.getID();
+		QueuedSave waiting = queuedSaves.get(worldID);
+		if (waiting != null && waiting.world == world) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Coalescing save of world " + worldID + " with the save already waiting in its queue.");
+			return waiting.future;
+		}
+		final QueuedSave save = new QueuedSave(world);
+		queuedSaves.put(worldID, save);
+		save.future = enqueue(worldID, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (WorldIOScheduler.class) {
+					if (queuedSaves.get(worldID) == save)
+						queuedSaves.remove(worldID); // Saves requested from now on have to be queued separately
+					if (save.cancelled)
+						return;
+				}
+				new SaveWorldsTask(new World[] {world}).run();
+			}
+		});
+		return save.future;
+	}
+
+	/**
+	 * Queues a {@link DeleteWorldsTask deletion} of the supplied world's files. A save of the world that is waiting
+	 * in its queue is cancelled, since its files would be deleted straight after being written.
+	 *
+	 * @param world The world to delete
+	 * @return A future that is completed once the world's files have been deleted
+	 */
+	public static synchronized CompletableFuture<Void> delete(World world) {
+		int worldID = world.getID();
+		QueuedSave waiting = queuedSaves.remove(worldID);
+		if (waiting != null)
+			waiting.cancelled = true;
+		return enqueue(worldID, new DeleteWorldsTask(new World[] {world}));
+	}
+
+	/**
+	 * @return The pool of threads that the levels of a world are loaded on in parallel
+	 */
+	static ExecutorService getLevelPool() {
+		return levelPool;
+	}
+
+	/**
+	 * @return A future that is completed once every operation submitted so far has run
+	 */
+	public static synchronized CompletableFuture<Void> flush() {
+		return CompletableFuture.allOf(tails.values().toArray(new CompletableFuture<?>[tails.size()]));
+	}
+
+	/**
+	 * Appends the supplied operation to the specified world's queue. The operation runs once the previous operation on
+	 * the world has completed, whether or not that operation failed.
+	 */
+	private static CompletableFuture<Void> enqueue(final int worldID, Runnable operation) {
+		CompletableFuture<Void> tail = tails.get(worldID);
+		if (tail == null)
+			tail = CompletableFuture.completedFuture(null);
+		final CompletableFuture<Void> future = tail.handle(new BiFunction<Void, Throwable, Void>() {
+			@Override
+			public Void apply(Void result, Throwable failure) {
+				return null; // The previous operation's failure has already been reported
+			}
+		}).thenRunAsync(operation, pool);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				if (failure != null) {
+					failure.printStackTrace();
+					System.err.println("A disk operation on world " + worldID + " failed.");
+				}
+				synchronized (WorldIOScheduler.class) {
+					if (tails.get(worldID) == future)
+						tails.remove(worldID); // The queue is empty
+				}
+			}
+		});
+		tails.put(worldID, future);
+		return future;
+	}
+
+	/**
+	 * A save waiting in a world's queue.
+	 */
+	private static class QueuedSave {
+
+		/**
+		 * The world to save
+		 */
+		private final World world;
+
+		/**
+		 * The future completed once the save has run
+		 */
+		private CompletableFuture<Void> future;
+
+		/**
+		 * Whether the save has been cancelled by a deletion of the world
+		 */
+		private boolean cancelled;
+
+		/**
+		 * @param world The {@link #world} to save
+		 */
+		private QueuedSave(World world) {
+			this.world = world;
+		}
+	}
+}
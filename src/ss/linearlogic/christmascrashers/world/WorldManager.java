@@ -1,13 +1,22 @@
 package ss.linearlogic.christmascrashers.world;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import ss.linearlogic.christmascrashers.ChristmasCrashers;
 
 /**
  * The World Manager is a static class containing the list of currently loaded worlds as well as methods for a
  * number of operations, such as loading and saving worlds, creating new worlds and deleting old ones, and renaming worlds.
- * <p>There are 5 world slots, and the ID of each world is the slot number (0-4).
+ * <p>The worlds on the disk are listed in the {@link WorldCatalog}, so they can be found without scanning the worlds
+ * directory. Any non-negative integer is a valid world ID, and there is no limit on the number of worlds.
+ * <p>Loads, saves and deletions are run in the background by the {@link WorldIOScheduler}, which runs the operations
+ * on each world one at a time and in order, and coalesces repeated saves. Each method returns a CompletableFuture
+ * that is completed once the operation has run.
  * 
  * @author LinearLogic
  * @since 0.2.2
@@ -15,98 +24,167 @@ import ss.linearlogic.christmascrashers.ChristmasCrashers;
 public class WorldManager {
 
 	/**
-	 * The worlds Array contains all the detected {@link World Worlds} (1 world for each of the 5 slots), which are stored in the ../files/worlds directory.
-	 * Worlds are detected and loaded in the {@link #loadWorlds()} method.
+	 * The ID of the default world, which is created if no worlds exist yet
 	 */
-	private static World[] worlds = new World[5];
+	public static final int DEFAULT_WORLD_ID = 0;
 
 	/**
-	 * Loads all of the worlds detected in the ..files/worlds directory by calling the {@link World#load()} method for each.
-	 * This method is run in a thread of its own so as to prevent a performance bottleneck.
+	 * The worlds map contains all the loaded {@link World Worlds}, keyed by world ID, which are stored in the ../files/worlds directory.
+	 * Worlds are loaded in the {@link #loadWorlds()} method.
 	 */
-	public static void loadWorlds() {
+	private static final TreeMap<Integer, World> worlds = new TreeMap<Integer, World>();
+
+	/**
+	 * The catalog of the worlds and levels on the disk, opened the first time it is {@link #getCatalog() retrieved}
+	 */
+	private static WorldCatalog catalog;
+
+	/**
+	 * Loads all of the worlds listed in the {@link WorldCatalog catalog} by calling the {@link World#load()} method for each,
+	 * in the background so as to prevent a performance bottleneck. The worlds are loaded in parallel, as are the levels
+	 * within each world.
+	 *
+	 * @return A future that is completed once all the worlds have been loaded
+	 */
+	public static CompletableFuture<Void> loadWorlds() {
+		return loadWorlds(null);
+	}
+
+	/**
+	 * Loads all of the worlds listed in the {@link WorldCatalog catalog}, as described in {@link #loadWorlds()}, and
+	 * reports the progress of the load to the supplied listener.
+	 *
+	 * @param listener The listener to notify as levels are discovered and loaded, and once loading is complete, or null
+	 * @return A future that is completed once all the worlds have been loaded
+	 */
+	public static CompletableFuture<Void> loadWorlds(LoadProgressListener listener) {
 		if (containsLoadedWorlds() && ChristmasCrashers.isDebugModeEnabled())
 			System.out.println("[Warning] LoadWorldsTask is overwriting one or more currently loaded worlds.");
-		for (int i = 0; i < 5; i++) {
-			if (worlds[i] == null)
-				worlds[i] = new World(i);
-		}
-		new Thread(new LoadWorldsTask(worlds)).start();
+		final LoadProgress progress = new LoadProgress(listener);
+		List<Integer> IDs = getCatalog().getWorldIDs();
+		if (!IDs.contains(DEFAULT_WORLD_ID))
+			IDs.add(0, DEFAULT_WORLD_ID); // Created on load
+		CompletableFuture<?>[] loads = new CompletableFuture<?>[IDs.size()];
+		for (int i = 0; i < loads.length; i++)
+			loads[i] = WorldIOScheduler.load(getOrCreateWorld(IDs.get(i)), progress);
+		return CompletableFuture.allOf(loads).thenRun(new Runnable() {
+			@Override
+			public void run() {
+				progress.complete();
+			}
+		});
 	}
 
 	/**
-	 * Checks if the world with the specified ID exists, and if so, loads it from the disk.
+	 * Loads the world with the specified ID from the disk, creating it if it doesn't exist yet.
 	 * @param ID
+	 * @return A future that is completed once the world has been loaded
 	 */
-	public static void loadWorld(int ID) {
-		if (ID < 0 || ID > 4) {
+	public static CompletableFuture<Void> loadWorld(int ID) {
+		if (ID < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to load world " + ID + " - invalid world ID (must be between 0 and 4, inclusive).");
-			return;
-		}
-		if (worlds[ID] != null) {
-			if (ChristmasCrashers.isDebugModeEnabled())
-				System.out.println("[Warning] LoadWorldsTask is overwriting world " + ID + ".");
-		} else {
-			worlds[ID] = new World(ID);
+				System.err.println("Failed to load world " + ID + " - invalid world ID (must not be negative).");
+			return CompletableFuture.completedFuture(null);
 		}
-		World[] worldsToLoad = {worlds[ID]};
-		new Thread(new LoadWorldsTask(worldsToLoad)).start();
+		if (getWorld(ID) != null && ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("[Warning] LoadWorldsTask is overwriting world " + ID + ".");
+		return WorldIOScheduler.load(getOrCreateWorld(ID));
 	}
 
 	/**
-	 * Runs a {@link SaveWorldsTask}, passing all the the currently loaded {@link World} objects to be saved.
+	 * Queues a {@link SaveWorldsTask} for each of the the currently loaded {@link World} objects that have been modified.
+	 *
+	 * @return A future that is completed once the worlds have been saved
 	 */
-	public static void saveWorlds() {
+	public static CompletableFuture<Void> saveWorlds() {
 		if (!containsLoadedWorlds()) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.out.println("Cancelling the SaveWorldTask - there are no loaded worlds.");
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
-		new Thread(new SaveWorldsTask(worlds)).start();
+		ArrayList<CompletableFuture<Void>> saves = new ArrayList<CompletableFuture<Void>>();
+		for (World w : getWorlds())
+			if (w.isDirty())
+				saves.add(WorldIOScheduler.save(w));
+		if (saves.isEmpty() && ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Cancelling the SaveWorldTask - no worlds have been modified.");
+		return CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[saves.size()]));
 	}
 
 	/**
-	 * Runs a {@link SaveWorldsTask}, passing the world with the provided ID
+	 * Queues a {@link SaveWorldsTask} for the world with the provided ID, or returns the save already waiting in the
+	 * world's queue, if any
 	 * 
 	 * @param ID The ID of the world to be saved to the disk
+	 * @return A future that is completed once the world has been saved
 	 */
-	public static void saveWorld(int ID) {
-		if (ID < 0 || ID > 4) {
+	public static CompletableFuture<Void> saveWorld(int ID) {
+		if (ID < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to save world " + ID + " - invalid world ID (must be between 0 and 4, inclusive).");
-			return;
+				System.err.println("Failed to save world " + ID + " - invalid world ID (must not be negative).");
+			return CompletableFuture.completedFuture(null);
 		}
-		if (worlds[ID] == null) {
+		World world = getWorld(ID);
+		if (world == null) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.err.println("Failed to save world " + ID + " - world does not exist.");
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
-		World[] worldsToSave = {worlds[ID]};
-		new Thread(new SaveWorldsTask(worldsToSave)).start();
+		if (!world.isDirty()) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.out.println("Skipping save of world " + ID + " - world has not been modified.");
+			return CompletableFuture.completedFuture(null);
+		}
+		return WorldIOScheduler.save(world);
 	}
 
 	/**
-	 * @return The contents of the {@link #worlds} ArrayList, as an Array of {@link World} objects.
+	 * @return The contents of the {@link #worlds} map, in ascending order of world ID
 	 */
-	public static World[] getWorlds() {
-		return worlds;
+	public static synchronized Collection<World> getWorlds() {
+		return new ArrayList<World>(worlds.values());
 	}
 
 	/** 
 	 * @param ID The ID of the world to retrieve from the list of currently loaded worlds
-	 * @return The {@link World world} at the specified location in the {@link #worlds} Array (the world's ID
-	 * is the same as its index in the list).  If no World object has been loaded with the provided ID, or if the
-	 * ID is not within range (between 0 and 4, inclusive), then the method returns null.
+	 * @return The {@link World world} with the specified ID in the {@link #worlds} map.  If no World object has been
+	 * loaded with the provided ID, then the method returns null.
 	 */
-	public static World getWorld(int ID) {
-		if (ID < 0 || ID > 5) {
-			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Could not retrieve world " + ID + " - invalid level ID (must be between 0 and 4, inclusive).");
-			return null;
+	public static synchronized World getWorld(int ID) {
+		return worlds.get(ID);
+	}
+
+	/**
+	 * @return The {@link #catalog} of the worlds and levels on the disk, opening it first if necessary
+	 */
+	public static synchronized WorldCatalog getCatalog() {
+		if (catalog == null) {
+			File worldsDir = new File("files" + File.separator + "worlds");
+			catalog = new WorldCatalog(new File(worldsDir, "worlds.catalog"), worldsDir);
 		}
-		return worlds[ID];
-	}	
+		return catalog;
+	}
+
+	/**
+	 * {@link World#stopJournaling() Stops journaling} every loaded world, committing the edits still buffered in memory
+	 * so that they are recovered when the game is next started. Called before the game exits.
+	 */
+	public static void closeJournals() {
+		for (World world : getWorlds())
+			world.stopJournaling();
+	}
+
+	/**
+	 * @return The world with the specified ID in the {@link #worlds} map, which is added to the map if it isn't there yet
+	 */
+	private static synchronized World getOrCreateWorld(int ID) {
+		World world = worlds.get(ID);
+		if (world == null) {
+			world = new World(ID);
+			worlds.put(ID, world);
+		}
+		return world;
+	}
 
 	/**
 	 * Adds the specified world to the {@link #worlds list of loaded worlds}
@@ -118,66 +196,68 @@ public class WorldManager {
 				System.err.println("Failed to add world - null World object provided.");
 			return;
 		}
-		if (world.getID() < 0 || world.getID() > 4) {
+		if (world.getID() < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to add world " + world.getID() + " - invalid world ID (must be between 0 and 4, inclusive).");
+				System.err.println("Failed to add world " + world.getID() + " - invalid world ID (must not be negative).");
 			return;
 		}
-		if (worlds[world.getID()] != null) {
-			if (ChristmasCrashers.isDebugModeEnabled())
+		synchronized (WorldManager.class) {
+			if (worlds.put(world.getID(), world) != null && ChristmasCrashers.isDebugModeEnabled())
 				System.out.println("[Warning] Overwriting world " + world.getID() + ".");
 		}
-		worlds[world.getID()] = world;
 		world.load();
 	}
 
 	/**
-	 * Deletes all of the worlds in the {@link #worlds list of loaded worlds}
+	 * Deletes all of the worlds in the {@link #worlds list of loaded worlds}, removing them from the {@link WorldCatalog catalog}
+	 *
+	 * @return A future that is completed once the worlds' files have been deleted
 	 */
-	public static void deleteWorlds() {
+	public static CompletableFuture<Void> deleteWorlds() {
 		if (!containsLoadedWorlds()) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.out.println("Cancelling DeleteWorldsTask - there are no loaded worlds.");
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
-		ArrayList<World> worldsToDelete = new ArrayList<World>();
-		
-		for (World w : worlds)
-			if (w != null)
-				worldsToDelete.add(w);
-		new Thread(new DeleteWorldsTask((World[]) worldsToDelete.toArray())).start();
-		for (World w : worldsToDelete)
-			worlds[w.getID()] = null;
+		ArrayList<CompletableFuture<Void>> deletions = new ArrayList<CompletableFuture<Void>>();
+		for (World w : getWorlds())
+			deletions.add(deleteWorld(w.getID()));
+		return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[deletions.size()]));
 	}
 
 	/**
-	 * Removes the world with the specified ID from the {@link #worlds list of loaded worlds} and deletes its system files.
+	 * Removes the world with the specified ID from the {@link #worlds list of loaded worlds} and the {@link WorldCatalog catalog},
+	 * and deletes its system files.
 	 * 
 	 * @param ID The ID of the world to be saved to the disk
+	 * @return A future that is completed once the world's files have been deleted
 	 */
-	public static void deleteWorld(int ID) {
-		if (ID < 0 || ID > 4) {
+	public static CompletableFuture<Void> deleteWorld(int ID) {
+		if (ID < 0) {
 			if (ChristmasCrashers.isDebugModeEnabled())
-				System.err.println("Failed to delete world " + ID + " - invalid world ID (must be between 0 and 4, inclusive).");
-			return;
+				System.err.println("Failed to delete world " + ID + " - invalid world ID (must not be negative).");
+			return CompletableFuture.completedFuture(null);
+		}
+		World world;
+		synchronized (WorldManager.class) {
+			world = worlds.remove(ID);
 		}
-		if (worlds[ID] == null) {
+		if (world == null) {
 			if (ChristmasCrashers.isDebugModeEnabled())
 				System.err.println("Failed to delete world " + ID + " - world does not exist.");
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
-		World[] worldsToDelete = {worlds[ID]};
-		new Thread(new DeleteWorldsTask(worldsToDelete)).start();
-		worlds[ID] = null;
+		WorldCatalog catalog = getCatalog();
+		catalog.removeWorld(ID);
+		catalog.save();
+		world.release(); // Nothing may write to the world's files once the deletion is queued
+		return WorldIOScheduler.delete(world);
 	}
 
 	/**
-	 * @return True iff the {@link #worlds} Array contains one or more World objects (that aren't null)
+	 * @return True iff the {@link #worlds} map contains one or more World objects
 	 */
-	public static boolean containsLoadedWorlds() {
-		for (int i = 0; i < 5; i++)
-			if (worlds[i] != null)
-				return true;
-		return false;
+	public static synchronized boolean containsLoadedWorlds() {
+		return !worlds.isEmpty();
 	}
 }
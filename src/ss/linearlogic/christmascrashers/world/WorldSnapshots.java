@@ -0,0 +1,605 @@
+package ss.linearlogic.christmascrashers.world;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ss.linearlogic.christmascrashers.ChristmasCrashers;
+
+/**
+ * Named, copy-on-write snapshots of {@link World worlds}, for backing worlds up and rolling them back.
+ * <p>Every level in a snapshot is stored as a blob in the binary {@link LevelFormat level format}, named after the
+ * SHA-256 hash of its content, in a blob store shared by all worlds (files/snapshots/blobs). A snapshot itself is
+ * only a small manifest listing the hash of each of the world's levels (files/snapshots/world#/name.snapshot), so
+ * levels that haven't changed between snapshots - or that are identical in different worlds - are stored once.
+ * <p>The manifest also records the {@link WorldCatalog catalog} entry of each level when it was hashed. A level whose
+ * catalog entry still matches the world's most recent snapshot (and which has no unsaved modifications) is known to
+ * be unchanged without being read, so taking, comparing and restoring snapshots only touches the levels that have
+ * changed.
+ *
+ * @author LinearLogic
+ * @since 0.4.8
+ */
+public class WorldSnapshots {
+
+	/**
+	 * The first word of every snapshot manifest
+	 */
+	public static final String MAGIC = "CCWS";
+
+	/**
+	 * The version of the manifest format
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The file extension of snapshot manifests
+	 */
+	public static final String EXTENSION = ".snapshot";
+
+	/**
+	 * The name of the file in each world's snapshot directory that holds the name of the world's most recent snapshot
+	 */
+	public static final String HEAD = "HEAD";
+
+	/**
+	 * The system path to the snapshot directory
+	 */
+	public static final String DIRECTORY = "files" + File.separator + "snapshots";
+
+	/**
+	 * The manifest of the most recent snapshot taken or restored of each world, keyed by world ID
+	 */
+	private static final HashMap<Integer, Manifest> heads = new HashMap<Integer, Manifest>();
+
+	/**
+	 * Takes a snapshot of the supplied world, including any unsaved modifications to its loaded levels. Only the
+	 * levels that have changed since the world's most recent snapshot are read and hashed, and only levels whose
+	 * content isn't in the blob store yet are written to it.
+	 *
+	 * @param world The world to snapshot
+	 * @param name The name of the snapshot (letters, digits, '-' and '_'), which replaces any snapshot of the world
+	 * with the same name
+	 * @return True iff the snapshot was taken
+	 */
+	public static synchronized boolean create(World world, String name) {
+		if (!isValidName(name)) {
+			if (ChristmasCrashers.isDebugModeEnabled())
+				System.err.println("Failed to snapshot world " + world.getID() + " - invalid snapshot name \"" + name + "\".");
+			return false;
+		}
+		world.load();
+		Manifest manifest = new Manifest(System.currentTimeMillis());
+		int hashed = 0;
+		try {
+			for (int levelID : world.getLevelIDs()) {
+				Entry entry = unchangedEntry(world, levelID);
+				if (entry == null) {
+					entry = storeLevel(world, levelID);
+					hashed++;
+				}
+				if (entry != null)
+					manifest.entries.put(levelID, entry);
+			}
+			writeManifest(world.getID(), name, manifest);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to snapshot world " + world.getID() + " - could not write snapshot.");
+			return false;
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Took snapshot \"" + name + "\" of world " + world.getID() + " (" + manifest.entries.size() + " levels, " + hashed + " changed).");
+		return true;
+	}
+
+	/**
+	 * Rolls the supplied world back to the specified snapshot. Levels that are identical in the world and the snapshot
+	 * are left alone; the others are replaced with their snapshot content and saved, levels missing from the snapshot
+	 * are deleted from the world, and levels missing from the world are added to it. Unsaved modifications to the
+	 * replaced levels are discarded.
+	 *
+	 * @param world The world to roll back
+	 * @param name The name of the snapshot to restore
+	 * @return True iff the snapshot was restored
+	 */
+	public static synchronized boolean restore(World world, String name) {
+		Manifest target;
+		try {
+			target = readManifest(world.getID(), name);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to restore snapshot \"" + name + "\" of world " + world.getID() + " - could not read snapshot.");
+			return false;
+		}
+		world.load();
+		List<Integer> changed = diff(world, target);
+		ArrayList<Level> restored = new ArrayList<Level>();
+		try {
+			for (int levelID : changed) {
+				Entry entry = target.entries.get(levelID);
+				if (entry == null) {
+					world.deleteLevel(levelID);
+					continue;
+				}
+				ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(blobFile(entry.hash).toPath()));
+				Level level = world.getLevel(levelID);
+				if (level == null) {
+					level = new Level(world.getID(), levelID);
+					world.addLevel(level);
+				}
+				level.stopStreaming();
+				level.discardJournal();
+				synchronized (level) {
+					LevelFormat.read(data, level); // Marks the level for a full rewrite
+					level.markLoaded(); // In case its own data file could not be read
+				}
+				restored.add(level);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to restore snapshot \"" + name + "\" of world " + world.getID() + " - could not read level data.");
+			return false;
+		}
+		world.save();
+		if (world.isJournaling())
+			world.startJournaling();
+		Manifest head = new Manifest(target.created);
+		WorldCatalog catalog = WorldManager.getCatalog();
+		for (Map.Entry<Integer, Entry> entry : target.entries.entrySet()) // Record the restored levels' new catalog entries
+			head.entries.put(entry.getKey(), new Entry(entry.getValue().hash, catalog.getLevel(world.getID(), entry.getKey())));
+		heads.put(world.getID(), head);
+		try {
+			writeHead(world.getID(), name);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to record snapshot \"" + name + "\" as the head of world " + world.getID() + ".");
+		}
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Restored snapshot \"" + name + "\" of world " + world.getID() + " (" + changed.size() + " levels changed, " + restored.size() + " rewritten).");
+		return true;
+	}
+
+	/**
+	 * @param world
+	 * @param name The name of a snapshot of the world
+	 * @return The IDs of the levels that differ between the world's current state and the specified snapshot
+	 * (including levels that are in only one of them), or null if the snapshot could not be read
+	 */
+	public static synchronized List<Integer> diff(World world, String name) {
+		try {
+			world.load();
+			return diff(world, readManifest(world.getID(), name));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to compare world " + world.getID() + " with snapshot \"" + name + "\" - could not read snapshot.");
+			return null;
+		}
+	}
+
+	/**
+	 * @param worldID
+	 * @param first The name of a snapshot of the world
+	 * @param second The name of another snapshot of the world
+	 * @return The IDs of the levels that differ between the two snapshots (including levels that are in only one of
+	 * them), or null if either snapshot could not be read
+	 */
+	public static synchronized List<Integer> diff(int worldID, String first, String second) {
+		try {
+			Manifest a = readManifest(worldID, first);
+			Manifest b = readManifest(worldID, second);
+			HashSet<Integer> levelIDs = new HashSet<Integer>(a.entries.keySet());
+			levelIDs.addAll(b.entries.keySet());
+			ArrayList<Integer> changed = new ArrayList<Integer>();
+			for (int levelID : levelIDs) {
+				Entry x = a.entries.get(levelID);
+				Entry y = b.entries.get(levelID);
+				if (x == null || y == null || !x.hash.equals(y.hash))
+					changed.add(levelID);
+			}
+			Collections.sort(changed);
+			return changed;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Failed to compare snapshots \"" + first + "\" and \"" + second + "\" of world " + worldID + " - could not read snapshots.");
+			return null;
+		}
+	}
+
+	/**
+	 * @param worldID
+	 * @return The names of the world's snapshots, oldest first
+	 */
+	public static synchronized List<String> list(int worldID) {
+		File[] files = worldDirectory(worldID).listFiles();
+		final HashMap<String, Long> created = new HashMap<String, Long>();
+		if (files != null) {
+			for (File file : files) {
+				String fileName = file.getName();
+				if (!fileName.endsWith(EXTENSION))
+					continue;
+				String name = fileName.substring(0, fileName.length() - EXTENSION.length());
+				try {
+					created.put(name, readManifest(worldID, name).created);
+				} catch (IOException e) {
+					System.err.println("Skipping unreadable snapshot " + file.getPath() + ".");
+				}
+			}
+		}
+		ArrayList<String> names = new ArrayList<String>(created.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(created.get(a), created.get(b));
+			}
+		});
+		return names;
+	}
+
+	/**
+	 * Deletes the specified snapshot. The level blobs it referenced are kept until the blob store is
+	 * {@link #collectGarbage() garbage collected}.
+	 *
+	 * @param worldID
+	 * @param name
+	 */
+	public static synchronized void delete(int worldID, String name) {
+		if (isValidName(name))
+			new File(worldDirectory(worldID), name + EXTENSION).delete();
+	}
+
+	/**
+	 * Deletes every level blob that isn't referenced by any snapshot of any world.
+	 *
+	 * @return The number of blobs deleted
+	 */
+	public static synchronized int collectGarbage() {
+		HashSet<String> referenced = new HashSet<String>();
+		File[] worldDirs = new File(DIRECTORY).listFiles();
+		if (worldDirs == null)
+			return 0;
+		for (File worldDir : worldDirs) {
+			if (!worldDir.getName().startsWith("world"))
+				continue;
+			int worldID;
+			try {
+				worldID = Integer.parseInt(worldDir.getName().substring(5));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			for (String name : list(worldID)) {
+				try {
+					for (Entry entry : readManifest(worldID, name).entries.values())
+						referenced.add(entry.hash);
+				} catch (IOException e) {
+					if (ChristmasCrashers.isDebugModeEnabled())
+						System.out.println("Aborting garbage collection - could not read snapshot \"" + name + "\" of world " + worldID + ".");
+					return 0; // Its blobs can't be told apart from garbage
+				}
+			}
+		}
+		int deleted = 0;
+		File[] fanouts = new File(DIRECTORY, "blobs").listFiles();
+		if (fanouts != null)
+			for (File fanout : fanouts)
+				for (File blob : fanout.listFiles())
+					if (!referenced.contains(blob.getName().replace(LevelFormat.EXTENSION, "")) && blob.delete())
+						deleted++;
+		if (ChristmasCrashers.isDebugModeEnabled())
+			System.out.println("Deleted " + deleted + " unreferenced snapshot blobs.");
+		return deleted;
+	}
+
+	/**
+	 * @param worldID
+	 * @param levelID
+	 * @return The data of the specified level in the world's most recent snapshot, in the binary level format, or null
+	 * if the world has no snapshot or the level isn't in it
+	 */
+	static synchronized ByteBuffer latestLevelData(int worldID, int levelID) {
+		Manifest head = head(worldID);
+		Entry entry = head == null ? null : head.entries.get(levelID);
+		if (entry == null)
+			return null;
+		try {
+			return ByteBuffer.wrap(Files.readAllBytes(blobFile(entry.hash).toPath()));
+		} catch (IOException e) {
+			System.err.println("Could not read the snapshot of level " + levelID + " in world " + worldID + ".");
+			return null;
+		}
+	}
+
+	/**
+	 * @return The IDs of the levels that differ between the world's current state and the supplied manifest
+	 */
+	private static List<Integer> diff(World world, Manifest target) {
+		ArrayList<Integer> changed = new ArrayList<Integer>();
+		HashSet<Integer> levelIDs = new HashSet<Integer>(world.getLevelIDs());
+		for (int levelID : target.entries.keySet())
+			if (!levelIDs.contains(levelID))
+				changed.add(levelID);
+		for (int levelID : levelIDs) {
+			Entry wanted = target.entries.get(levelID);
+			if (wanted == null) {
+				changed.add(levelID);
+				continue;
+			}
+			Entry current = unchangedEntry(world, levelID);
+			if (current == null) { // Changed since the last snapshot - compare its content
+				Level level = world.getLevel(levelID);
+				if (level == null || !hash(encode(level)).equals(wanted.hash))
+					changed.add(levelID);
+			} else if (!current.hash.equals(wanted.hash)) {
+				changed.add(levelID);
+			}
+		}
+		Collections.sort(changed);
+		return changed;
+	}
+
+	/**
+	 * @return The entry of the specified level in the world's most recent snapshot, if the level is known not to have
+	 * changed since (its catalog entry matches the snapshot and it has no unsaved modifications), or else null. The
+	 * level's catalog entry is refreshed from its data file header first, which doesn't read the level itself.
+	 */
+	private static Entry unchangedEntry(World world, int levelID) {
+		Level level = null;
+		for (Level l : world.getLevels())
+			if (l.getID() == levelID)
+				level = l;
+		if (level == null)
+			return null;
+		WorldCatalog catalog = WorldManager.getCatalog();
+		world.catalogLevel(catalog, level); // Levels may have been saved outside of World.save()
+		Manifest head = head(world.getID());
+		Entry entry = head == null ? null : head.entries.get(levelID);
+		if (entry == null || level.isDirty())
+			return null;
+		WorldCatalog.LevelEntry current = catalog.getLevel(world.getID(), levelID);
+		if (current == null || current.getSize() != entry.size || current.getChecksum() != entry.checksum || current.getLastModified() != entry.lastModified)
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Encodes the specified level, stores it in the blob store if its content isn't there yet, and returns its entry.
+	 */
+	private static Entry storeLevel(World world, int levelID) throws IOException {
+		Level level = world.getLevel(levelID);
+		if (level == null)
+			return null;
+		boolean dirty = level.isDirty();
+		ByteBuffer data = encode(level);
+		String hash = hash(data);
+		File blob = blobFile(hash);
+		if (!blob.exists()) {
+			blob.getParentFile().mkdirs();
+			writeAtomically(blob, data);
+		}
+		if (dirty) // The catalog entry describes the saved level, not the snapshotted content
+			return new Entry(hash, -1, 0, -1);
+		return new Entry(hash, WorldManager.getCatalog().getLevel(world.getID(), levelID));
+	}
+
+	/**
+	 * @return The supplied level, encoded in the binary level format
+	 */
+	private static ByteBuffer encode(Level level) {
+		synchronized (level) {
+			return LevelFormat.toBuffer(level);
+		}
+	}
+
+	/**
+	 * @return The SHA-256 hash of the supplied data, in hexadecimal
+	 */
+	private static String hash(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data.duplicate());
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest.digest())
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every Java platform supports SHA-256
+		}
+	}
+
+	/**
+	 * @return The file of the blob with the specified hash, which is placed in a subdirectory named after the first
+	 * two digits of the hash to keep directories small
+	 */
+	private static File blobFile(String hash) {
+		return new File(DIRECTORY + File.separator + "blobs" + File.separator + hash.substring(0, 2), hash + LevelFormat.EXTENSION);
+	}
+
+	/**
+	 * @return The directory holding the specified world's snapshot manifests
+	 */
+	private static File worldDirectory(int worldID) {
+		return new File(DIRECTORY, "world" + worldID);
+	}
+
+	/**
+	 * @return True iff the supplied snapshot name is non-empty and made up of letters, digits, '-' and '_' only
+	 */
+	private static boolean isValidName(String name) {
+		if (name == null || name.isEmpty())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The manifest of the specified world's most recent snapshot, read from the disk the first time it is
+	 * needed, or null if the world has no snapshots
+	 */
+	private static Manifest head(int worldID) {
+		if (heads.containsKey(worldID))
+			return heads.get(worldID);
+		Manifest head = null;
+		File headFile = new File(worldDirectory(worldID), HEAD);
+		if (headFile.exists()) {
+			try {
+				head = readManifest(worldID, new String(Files.readAllBytes(headFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (IOException e) {
+				if (ChristmasCrashers.isDebugModeEnabled())
+					System.out.println("Could not read the most recent snapshot of world " + worldID + " - every level will be rehashed.");
+			}
+		}
+		heads.put(worldID, head);
+		return head;
+	}
+
+	/**
+	 * Writes the supplied manifest and makes it the world's most recent snapshot.
+	 */
+	private static void writeManifest(int worldID, String name, Manifest manifest) throws IOException {
+		StringBuilder text = new StringBuilder();
+		text.append(MAGIC).append(' ').append(VERSION).append(' ').append(manifest.created).append('\n');
+		for (Map.Entry<Integer, Entry> level : manifest.entries.entrySet()) {
+			Entry entry = level.getValue();
+			text.append(level.getKey()).append(' ').append(entry.hash).append(' ').append(entry.size).append(' ')
+				.append(entry.checksum).append(' ').append(entry.lastModified).append('\n');
+		}
+		File directory = worldDirectory(worldID);
+		directory.mkdirs();
+		writeAtomically(new File(directory, name + EXTENSION), StandardCharsets.UTF_8.encode(text.toString()));
+		writeHead(worldID, name);
+		heads.put(worldID, manifest);
+	}
+
+	/**
+	 * Records the specified snapshot as the world's most recent snapshot.
+	 */
+	private static void writeHead(int worldID, String name) throws IOException {
+		writeAtomically(new File(worldDirectory(worldID), HEAD), StandardCharsets.UTF_8.encode(name));
+	}
+
+	/**
+	 * @return The manifest of the specified snapshot
+	 * @throws IOException If the snapshot doesn't exist or is malformed
+	 */
+	private static Manifest readManifest(int worldID, String name) throws IOException {
+		if (!isValidName(name))
+			throw new IOException("Invalid snapshot name \"" + name + "\".");
+		BufferedReader reader = Files.newBufferedReader(new File(worldDirectory(worldID), name + EXTENSION).toPath(), StandardCharsets.UTF_8);
+		try {
+			String[] header = reader.readLine().split(" ");
+			if (header.length != 3 || !header[0].equals(MAGIC) || Integer.parseInt(header[1]) != VERSION)
+				throw new IOException("Snapshot \"" + name + "\" of world " + worldID + " is not a snapshot manifest of the current version.");
+			Manifest manifest = new Manifest(Long.parseLong(header[2]));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				String[] fields = line.split(" ");
+				if (fields.length != 5 || fields[1].length() != 64)
+					throw new IOException("Snapshot \"" + name + "\" of world " + worldID + " has a malformed entry.");
+				manifest.entries.put(Integer.parseInt(fields[0]), new Entry(fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4])));
+			}
+			return manifest;
+		} catch (NumberFormatException | NullPointerException e) {
+			throw new IOException("Snapshot \"" + name + "\" of world " + worldID + " is malformed.");
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the supplied data to a temporary file and atomically moves it over the specified file.
+	 */
+	private static void writeAtomically(File file, ByteBuffer data) throws IOException {
+		File tempFile = new File(file.getPath() + LevelFormat.TEMP_SUFFIX);
+		try {
+			FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				data = data.duplicate();
+				while (data.hasRemaining())
+					channel.write(data);
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * The manifest of a snapshot: the time it was taken and the entry of each level, keyed by level ID.
+	 */
+	private static class Manifest {
+
+		/**
+		 * The time, in milliseconds since the epoch, at which the snapshot was taken
+		 */
+		private final long created;
+
+		/**
+		 * The entry of each level in the snapshot, keyed by level ID
+		 */
+		private final TreeMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+
+		private Manifest(long created) {
+			this.created = created;
+		}
+	}
+
+	/**
+	 * A level in a snapshot: the hash of its content and the catalog entry it had when it was hashed.
+	 */
+	private static class Entry {
+
+		/**
+		 * The SHA-256 hash of the level's content, in hexadecimal
+		 */
+		private final String hash;
+
+		/**
+		 * The size, checksum and modification time from the level's catalog entry (-1, 0 and -1 if the level had
+		 * unsaved modifications, which the catalog entry doesn't describe)
+		 */
+		private final long size, lastModified;
+
+		private final int checksum;
+
+		private Entry(String hash, long size, int checksum, long lastModified) {
+			this.hash = hash;
+			this.size = size;
+			this.checksum = checksum;
+			this.lastModified = lastModified;
+		}
+
+		private Entry(String hash, WorldCatalog.LevelEntry catalogEntry) {
+			this(hash, catalogEntry == null ? -1 : catalogEntry.getSize(), catalogEntry == null ? 0 : catalogEntry.getChecksum(), catalogEntry == null ? -1 : catalogEntry.getLastModified());
+		}
+	}
+}